@@ -4,6 +4,7 @@ import android.Manifest;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Environment;
+import android.util.Log;
 import android.view.View;
 
 import androidx.annotation.NonNull;
@@ -12,10 +13,20 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
 import com.sample.breakpad.BreakpadInit;
+import com.sample.breakpad.CrashStore;
+import com.sample.breakpad.DumpModeBenchmark;
+import com.sample.breakpad.JavaCrashCapture;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class MainActivity extends AppCompatActivity {
+    private static final String TAG = "MainActivity";
     private static final int WRITE_EXTERNAL_STORAGE_REQUEST_CODE = 100;
 
     static {
@@ -23,13 +34,24 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
+    private static JavaCrashCapture sJavaCrashCapture;
+    // One store per process, every activity instance ingests through the same thread.
+    private static CrashStore sCrashStore;
+    private static final ExecutorService sCrashStoreExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "crash-store");
+                }
+            });
+
     private File externalReportPath;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-
+        installJavaCrashCapture();
 
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -50,6 +72,22 @@ public class MainActivity extends AppCompatActivity {
                     }
                 });
 
+        findViewById(R.id.id_java_oom).setOnClickListener(
+                new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        exhaustHeap();
+                    }
+                });
+
+        findViewById(R.id.id_dump_benchmark).setOnClickListener(
+                new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        runDumpBenchmark();
+                    }
+                });
+
     }
 
     @Override
@@ -63,6 +101,30 @@ public class MainActivity extends AppCompatActivity {
         if (!externalReportPath.exists()) {
             externalReportPath.mkdirs();
         }
+        ingestCrashDumps();
+    }
+
+    /**
+     * Moves the dumps of previous crashes into the bucketed store, off the main thread.
+     */
+    private void ingestCrashDumps() {
+        final File crashDir = externalReportPath;
+        if (sCrashStore == null) {
+            sCrashStore = new CrashStore(new File(getFilesDir(), "crashStore"));
+        }
+        final CrashStore store = sCrashStore;
+        sCrashStoreExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (store.ingestDirectory(crashDir) > 0) {
+                        Log.i(TAG, store.printCurrentState());
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "ingesting crash dumps failed", e);
+                }
+            }
+        });
     }
 
     private void initBreakPad() {
@@ -72,5 +134,42 @@ public class MainActivity extends AppCompatActivity {
         BreakpadInit.initBreakpad(externalReportPath.getAbsolutePath());
     }
 
+    private void installJavaCrashCapture() {
+        if (sJavaCrashCapture != null) {
+            return;
+        }
+        try {
+            sJavaCrashCapture = new JavaCrashCapture(new File(getFilesDir(), "java_crash.bin"));
+        } catch (IOException e) {
+            Log.e(TAG, "cannot map the java crash record", e);
+            return;
+        }
+        if (sJavaCrashCapture.getPendingReport() != null) {
+            Log.e(TAG, "last run crashed:\n" + sJavaCrashCapture.getPendingReport());
+        }
+        sJavaCrashCapture.install();
+        sJavaCrashCapture.startSampling(1000);
+    }
+
+    private static void exhaustHeap() {
+        final List<long[]> hog = new ArrayList<>();
+        while (true) {
+            hog.add(new long[64 * 1024]);
+        }
+    }
+
+    private void runDumpBenchmark() {
+        final File scratch = new File(getCacheDir(), "dumpBenchmark");
+        scratch.mkdirs();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, new DumpModeBenchmark(scratch).run());
+                // Back to the handler the crash button installs.
+                initBreakPad();
+            }
+        }, "dump-benchmark").start();
+    }
+
     public native void crash();
 }
@@ -1,4 +1,8 @@
+#include <pthread.h>
 #include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
 #include <jni.h>
 #include <android/log.h>
 
@@ -13,6 +17,15 @@
 #define ALOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 #define ALOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 
+// Keep in sync with BreakpadInit.MODE_*.
+#define MODE_MINIDUMP 0
+#define MODE_MICRODUMP 1
+
+// The installed handler, replaced on every init. Init and writeDump may run on different
+// threads, handlerLock keeps a dump from using a handler that is being deleted.
+static google_breakpad::ExceptionHandler *exceptionHandler = NULL;
+static pthread_mutex_t handlerLock = PTHREAD_MUTEX_INITIALIZER;
+
 
 bool DumpCallback(const google_breakpad::MinidumpDescriptor &descriptor,
                   void *context,
@@ -22,17 +35,117 @@ bool DumpCallback(const google_breakpad::MinidumpDescriptor &descriptor,
     return succeeded;
 }
 
+static void InstallHandler(const google_breakpad::MinidumpDescriptor &descriptor) {
+    // set_minidump_descriptor() cannot switch between file and microdump mode, the descriptor
+    // asserts on it. The new handler goes on top of the handler stack before the old one is
+    // removed, so no crash slips through in between.
+    pthread_mutex_lock(&handlerLock);
+    google_breakpad::ExceptionHandler *previous = exceptionHandler;
+    exceptionHandler = new google_breakpad::ExceptionHandler(descriptor, NULL, DumpCallback,
+                                                             NULL, true, -1);
+    delete previous;
+    pthread_mutex_unlock(&handlerLock);
+}
+
+// Start address of the first mapping of the library, 0 when it is not loaded. Read at init
+// time, the crash handler must not touch /proc through stdio.
+static uintptr_t FindLibrary(const char *library) {
+    FILE *maps = fopen("/proc/self/maps", "r");
+    if (maps == NULL) {
+        return 0;
+    }
+    const size_t length = strlen(library);
+    uintptr_t address = 0;
+    char line[512];
+    while (address == 0 && fgets(line, sizeof(line), maps) != NULL) {
+        char *end = line + strlen(line);
+        while (end > line && (end[-1] == '\n' || end[-1] == ' ')) {
+            *--end = '\0';
+        }
+        if ((size_t) (end - line) > length && end[-length - 1] == '/'
+            && strcmp(end - length, library) == 0) {
+            address = (uintptr_t) strtoull(line, NULL, 16);
+        }
+    }
+    fclose(maps);
+    return address;
+}
+
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_sample_breakpad_BreakpadInit_initBreakpadNative(JNIEnv *env, jclass type, jstring path_) {
     const char *path = env->GetStringUTFChars(path_, 0);
 
     google_breakpad::MinidumpDescriptor descriptor(path);
-    static google_breakpad::ExceptionHandler eh(descriptor, NULL, DumpCallback, NULL, true, -1);
+    InstallHandler(descriptor);
 
     env->ReleaseStringUTFChars(path_, path);
 }
 
+// Only dump crashes whose stacks point into the library, and zero the stack words that do
+// not look like pointers.
+static void FilterDump(google_breakpad::MinidumpDescriptor *descriptor,
+                       const char *principalLibrary, bool sanitizeStacks) {
+    if (principalLibrary != NULL) {
+        const uintptr_t address = FindLibrary(principalLibrary);
+        if (address != 0) {
+            descriptor->set_address_within_principal_mapping(address);
+            descriptor->set_skip_dump_if_principal_mapping_not_referenced(true);
+        } else {
+            ALOGW("%s is not loaded, dumping every crash", principalLibrary);
+        }
+    }
+    descriptor->set_sanitize_stacks(sanitizeStacks);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_sample_breakpad_BreakpadInit_initBreakpadWithModeNative(JNIEnv *env, jclass type,
+                                                                 jstring path_, jint mode,
+                                                                 jlong sizeLimit,
+                                                                 jstring principalLibrary_,
+                                                                 jboolean sanitizeStacks) {
+    const char *principalLibrary = principalLibrary_ != NULL
+                                   ? env->GetStringUTFChars(principalLibrary_, 0) : NULL;
+
+    if (mode == MODE_MICRODUMP) {
+        google_breakpad::MinidumpDescriptor descriptor(
+                google_breakpad::MinidumpDescriptor::kMicrodumpOnConsole);
+        FilterDump(&descriptor, principalLibrary, sanitizeStacks);
+        InstallHandler(descriptor);
+    } else {
+        const char *path = env->GetStringUTFChars(path_, 0);
+        google_breakpad::MinidumpDescriptor descriptor(path);
+        descriptor.set_size_limit(sizeLimit);
+        FilterDump(&descriptor, principalLibrary, sanitizeStacks);
+        InstallHandler(descriptor);
+        env->ReleaseStringUTFChars(path_, path);
+    }
+
+    if (principalLibrary != NULL) {
+        env->ReleaseStringUTFChars(principalLibrary_, principalLibrary);
+    }
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_sample_breakpad_BreakpadInit_writeDumpNative(JNIEnv *env, jclass type) {
+    pthread_mutex_lock(&handlerLock);
+    if (exceptionHandler == NULL) {
+        pthread_mutex_unlock(&handlerLock);
+        return -1;
+    }
+    timespec start, end;
+    clock_gettime(CLOCK_MONOTONIC, &start);
+    const bool written = exceptionHandler->WriteMinidump();
+    clock_gettime(CLOCK_MONOTONIC, &end);
+    pthread_mutex_unlock(&handlerLock);
+    if (!written) {
+        return -1;
+    }
+    return (end.tv_sec - start.tv_sec) * 1000000000LL + (end.tv_nsec - start.tv_nsec);
+}
+
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     JNIEnv *env;
     if (vm->GetEnv((void **) &env, JNI_VERSION_1_6) != JNI_OK) {
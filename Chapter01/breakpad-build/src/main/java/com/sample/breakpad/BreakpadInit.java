@@ -4,6 +4,18 @@ package com.sample.breakpad;
 import android.util.Log;
 
 public class BreakpadInit {
+    /**
+     * Full minidump written to the dump directory.
+     */
+    public static final int MODE_MINIDUMP = 0;
+    /**
+     * Microdump written to logcat: the crashing thread's stack and the loaded modules, a few
+     * kilobytes of text. The dump directory is not used.
+     */
+    public static final int MODE_MICRODUMP = 1;
+
+    public static final long NO_SIZE_LIMIT = -1;
+
     static {
         System.loadLibrary("breakpad-core");
     }
@@ -13,5 +25,37 @@ public class BreakpadInit {
         initBreakpadNative(path);
     }
 
+    /**
+     * Installs the handler, or changes the mode of the installed one.
+     *
+     * @param mode             {@link #MODE_MINIDUMP} or {@link #MODE_MICRODUMP}
+     * @param sizeLimit        bytes a minidump should stay within, or {@link #NO_SIZE_LIMIT}.
+     *                         Over the limit, threads past the 20th get 2KB of stack each
+     * @param principalLibrary file name of a library, e.g. "libcrash-lib.so". Crashes whose
+     *                         stacks do not point into it are not dumped. Null dumps every crash
+     * @param sanitizeStacks   zero the stack words that are not pointers, which also makes the
+     *                         dumps compress better
+     */
+    public static void initBreakpad(String path, int mode, long sizeLimit,
+                                     String principalLibrary, boolean sanitizeStacks) {
+        Log.d("path", path + " mode " + mode + " limit " + sizeLimit);
+        initBreakpadWithModeNative(path, mode, sizeLimit, principalLibrary, sanitizeStacks);
+    }
+
+    /**
+     * Dumps the running process with the installed mode, without crashing.
+     *
+     * @return nanoseconds it took, -1 if nothing was written
+     */
+    public static long writeDump() {
+        return writeDumpNative();
+    }
+
     private static native void initBreakpadNative(String path);
+
+    private static native void initBreakpadWithModeNative(String path, int mode, long sizeLimit,
+                                                          String principalLibrary,
+                                                          boolean sanitizeStacks);
+
+    private static native long writeDumpNative();
 }
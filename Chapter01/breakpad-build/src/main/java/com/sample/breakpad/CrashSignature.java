@@ -0,0 +1,222 @@
+package com.sample.breakpad;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Signature of a crash, computed from its minidump without symbols.
+ * <p>
+ * The frames are the crashing thread's pc, its link register on ARM, and then the return
+ * address candidates found by scanning its stack: words that point into a loaded module.
+ * Each frame is recorded as the module's build id plus the offset into the module, which
+ * stays the same across devices and address space layouts as long as the binary is the
+ * same. A pc outside any module, a jump through a bad pointer, is kept as a frame without
+ * module and offset. Stack words outside any module are not return addresses and are left out.
+ * Two crashes with the same signature crashed at the same place of the same build, by way
+ * of the same callers as far as the scan can tell.
+ */
+public class CrashSignature {
+    // Words of the stack looked at when scanning for return addresses.
+    private static final int MAX_SCAN_WORDS = 1024;
+
+    private static final long FNV64_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV64_PRIME = 0x100000001b3L;
+
+    public static class Frame {
+        public final String module;
+        public final String buildId;
+        public final long offset;
+
+        Frame(String module, String buildId, long offset) {
+            this.module = module;
+            this.buildId = buildId;
+            this.offset = offset;
+        }
+
+        @Override
+        public String toString() {
+            if (module.isEmpty()) {
+                return "<unmapped>";
+            }
+            return module + "+0x" + Long.toHexString(offset) + " (" + buildId + ")";
+        }
+    }
+
+    private final long mHash;
+    private final int mExceptionCode;
+    private final List<Frame> mFrames;
+
+    private CrashSignature(long hash, int exceptionCode, List<Frame> frames) {
+        mHash = hash;
+        mExceptionCode = exceptionCode;
+        mFrames = frames;
+    }
+
+    /**
+     * 64-bit hash over the exception code and the frames.
+     */
+    public long getHash() {
+        return mHash;
+    }
+
+    /**
+     * The signal on Linux.
+     */
+    public int getExceptionCode() {
+        return mExceptionCode;
+    }
+
+    public List<Frame> getFrames() {
+        return mFrames;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%016x", mHash)).append(" signal ").append(mExceptionCode);
+        for (Frame frame : mFrames) {
+            sb.append("\n  ").append(frame);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param maxFrames frames that make up the signature, more frames split buckets finer
+     */
+    public static CrashSignature compute(File minidump, int maxFrames) throws IOException {
+        final MinidumpReader reader = new MinidumpReader(minidump);
+        try {
+            return compute(reader, maxFrames);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static CrashSignature compute(MinidumpReader reader, int maxFrames)
+            throws IOException {
+        final MinidumpReader.ExceptionInfo exception = reader.getException();
+        final MinidumpReader.SystemInfo systemInfo = reader.getSystemInfo();
+        if (exception == null || systemInfo == null) {
+            throw new IOException("No exception or system info stream");
+        }
+        final ByteBuffer context = reader.getContext(exception);
+        final List<MinidumpReader.ModuleInfo> modules = reader.getModules();
+
+        final long pc;
+        final long sp;
+        long lr = 0;
+        final int wordSize;
+        switch (systemInfo.cpu) {
+            case MinidumpReader.CPU_ARM:
+                requireContext(context, 4 + 16 * 4);
+                pc = context.getInt(4 + 15 * 4) & 0xFFFFFFFFL;
+                sp = context.getInt(4 + 13 * 4) & 0xFFFFFFFFL;
+                lr = context.getInt(4 + 14 * 4) & 0xFFFFFFFFL;
+                wordSize = 4;
+                break;
+            case MinidumpReader.CPU_ARM64:
+            case MinidumpReader.CPU_ARM64_OLD:
+                // Both layouts keep x0..x30, sp and pc at the same offsets.
+                requireContext(context, 8 + 33 * 8);
+                pc = context.getLong(8 + 32 * 8);
+                sp = context.getLong(8 + 31 * 8);
+                lr = context.getLong(8 + 30 * 8);
+                wordSize = 8;
+                break;
+            case MinidumpReader.CPU_X86:
+                requireContext(context, 200);
+                pc = context.getInt(184) & 0xFFFFFFFFL;
+                sp = context.getInt(196) & 0xFFFFFFFFL;
+                wordSize = 4;
+                break;
+            case MinidumpReader.CPU_AMD64:
+                requireContext(context, 256);
+                pc = context.getLong(248);
+                sp = context.getLong(152);
+                wordSize = 8;
+                break;
+            default:
+                throw new IOException("Unsupported cpu " + systemInfo.cpu);
+        }
+
+        final List<Frame> frames = new ArrayList<>();
+        if (!addFrame(frames, modules, pc, maxFrames)) {
+            frames.add(new Frame("", "", 0));
+        }
+        if (lr != 0) {
+            addFrame(frames, modules, lr, maxFrames);
+        }
+        final MinidumpReader.ThreadInfo thread = reader.findThread(exception.threadId);
+        if (thread != null) {
+            scanStack(reader, thread, sp, wordSize, modules, frames, maxFrames);
+        }
+
+        long hash = FNV64_OFFSET;
+        hash = hashLong(hash, exception.code);
+        for (Frame frame : frames) {
+            hash = hashString(hash, frame.buildId);
+            hash = hashLong(hash, frame.offset);
+        }
+        return new CrashSignature(hash, exception.code, frames);
+    }
+
+    private static void requireContext(ByteBuffer context, int size) throws IOException {
+        if (context.capacity() < size) {
+            throw new IOException("Context of " + context.capacity() + " bytes is too short");
+        }
+    }
+
+    private static void scanStack(MinidumpReader reader, MinidumpReader.ThreadInfo thread, long sp,
+                                  int wordSize, List<MinidumpReader.ModuleInfo> modules,
+                                  List<Frame> frames, int maxFrames) throws IOException {
+        final long stackSize = thread.stackSize & 0xFFFFFFFFL;
+        if (sp < thread.stackStart || sp - thread.stackStart >= stackSize) {
+            return;
+        }
+        final ByteBuffer stack = reader.getStack(thread);
+        final int end = (int) Math.min(stackSize,
+                sp - thread.stackStart + (long) MAX_SCAN_WORDS * wordSize);
+        for (int off = (int) (sp - thread.stackStart);
+             off + wordSize <= end && frames.size() < maxFrames; off += wordSize) {
+            final long word = wordSize == 8 ? stack.getLong(off) : stack.getInt(off) & 0xFFFFFFFFL;
+            addFrame(frames, modules, word, maxFrames);
+        }
+    }
+
+    private static boolean addFrame(List<Frame> frames, List<MinidumpReader.ModuleInfo> modules,
+                                    long address, int maxFrames) {
+        if (frames.size() >= maxFrames) {
+            return false;
+        }
+        for (MinidumpReader.ModuleInfo module : modules) {
+            // A module's base is its ELF header, never code.
+            if (address != module.base && module.contains(address)) {
+                frames.add(new Frame(baseName(module.name), module.buildId,
+                        address - module.base));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String baseName(String path) {
+        return path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+    }
+
+    private static long hashLong(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ ((value >>> (i * 8)) & 0xFF)) * FNV64_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hashString(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV64_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,318 @@
+package com.sample.breakpad;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Buckets minidumps by {@link CrashSignature} and keeps storage bounded.
+ * <p>
+ * Only the first {@code keepPerBucket} dumps of a bucket are kept, gzipped, as
+ * {@code <signature>_<n>.dmp.gz}. Every further dump with the same signature only bumps the
+ * bucket's count and last seen time in the index and is deleted. The index is a file of
+ * fixed size records, one per bucket, rewritten through a temporary file and a rename so a
+ * crash while writing it leaves the previous one. With at most {@code maxBuckets} buckets
+ * the store never grows past maxBuckets * keepPerBucket compressed dumps, whatever the
+ * crash volume, and a crash loop costs one signature computation per dump.
+ */
+public class CrashStore {
+    private static final String TAG = "CrashStore";
+
+    private static final String INDEX_FILE = "index";
+    private static final int INDEX_MAGIC = 0x43534958; // "CSIX"
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * Bucket of the dumps a signature could not be computed for.
+     */
+    public static final long UNKNOWN_SIGNATURE = 0;
+
+    public static final int DEFAULT_SIGNATURE_FRAMES = 5;
+
+    public static class Bucket {
+        public final long signature;
+        public int count;
+        public int kept;
+        public long firstSeen;
+        public long lastSeen;
+
+        Bucket(long signature) {
+            this.signature = signature;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x", signature) + " count " + count + " kept " + kept
+                    + " first " + firstSeen + " last " + lastSeen;
+        }
+    }
+
+    private final File mDir;
+    private final int mKeepPerBucket;
+    private final int mMaxBuckets;
+    private final int mSignatureFrames;
+    private final Map<Long, Bucket> mBuckets = new HashMap<>();
+    private boolean mLoaded;
+
+    public CrashStore(File dir, int keepPerBucket, int maxBuckets, int signatureFrames) {
+        mDir = dir;
+        mKeepPerBucket = keepPerBucket;
+        mMaxBuckets = maxBuckets;
+        mSignatureFrames = signatureFrames;
+    }
+
+    public CrashStore(File dir) {
+        this(dir, 3, 64, DEFAULT_SIGNATURE_FRAMES);
+    }
+
+    /**
+     * Moves every .dmp file of the directory breakpad writes to into the store.
+     *
+     * @return the number of dumps ingested
+     */
+    public synchronized int ingestDirectory(File crashDir) throws IOException {
+        final File[] dumps = crashDir.listFiles();
+        if (dumps == null) {
+            return 0;
+        }
+        load();
+        int ingested = 0;
+        try {
+            for (File dump : dumps) {
+                if (dump.isFile() && dump.getName().endsWith(".dmp")) {
+                    ingestLocked(dump);
+                    ingested++;
+                }
+            }
+        } finally {
+            // Keep the counts of the dumps already moved even if a later one failed.
+            if (ingested > 0) {
+                save();
+            }
+        }
+        return ingested;
+    }
+
+    /**
+     * Moves a single dump into the store.
+     *
+     * @return the bucket it was counted in
+     */
+    public synchronized Bucket ingest(File dump) throws IOException {
+        load();
+        final Bucket bucket = ingestLocked(dump);
+        save();
+        return bucket;
+    }
+
+    /**
+     * Buckets, the most frequent first.
+     */
+    public synchronized List<Bucket> getBuckets() throws IOException {
+        load();
+        final List<Bucket> buckets = new ArrayList<>(mBuckets.values());
+        Collections.sort(buckets, new Comparator<Bucket>() {
+            @Override
+            public int compare(Bucket o1, Bucket o2) {
+                return o2.count - o1.count;
+            }
+        });
+        return buckets;
+    }
+
+    /**
+     * The compressed dumps kept for a bucket.
+     */
+    public File[] getDumps(Bucket bucket) {
+        final File[] dumps = new File[bucket.kept];
+        for (int i = 0; i < bucket.kept; i++) {
+            dumps[i] = dumpFile(bucket.signature, i);
+        }
+        return dumps;
+    }
+
+    public synchronized String printCurrentState() throws IOException {
+        final List<Bucket> buckets = getBuckets();
+        final StringBuilder sb = new StringBuilder();
+        int total = 0;
+        int kept = 0;
+        for (Bucket bucket : buckets) {
+            total += bucket.count;
+            kept += bucket.kept;
+        }
+        sb.append(buckets.size()).append(" buckets, ").append(total).append(" crashes, ")
+                .append(kept).append(" dumps kept");
+        for (Bucket bucket : buckets) {
+            sb.append("\n  ").append(bucket);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Does not throw: a dump that cannot be stored is still counted and deleted, so that it
+     * cannot hold up the dumps after it.
+     */
+    private Bucket ingestLocked(File dump) {
+        long signature;
+        try {
+            signature = CrashSignature.compute(dump, mSignatureFrames).getHash();
+        } catch (IOException e) {
+            Log.w(TAG, "no signature for " + dump + ": " + e);
+            signature = UNKNOWN_SIGNATURE;
+        }
+        final long time = dump.lastModified();
+        Bucket bucket = mBuckets.get(signature);
+        final boolean created = bucket == null;
+        if (created) {
+            bucket = new Bucket(signature);
+            bucket.firstSeen = time;
+        }
+        if (bucket.kept < mKeepPerBucket) {
+            try {
+                compress(dump, dumpFile(signature, bucket.kept));
+                bucket.kept++;
+            } catch (IOException e) {
+                // Left in place it would fail again on every start and the crash directory
+                // would grow without bound. It is counted like a dump over the limit.
+                Log.w(TAG, "cannot store " + dump + ", counting it only", e);
+            }
+        }
+        bucket.count++;
+        bucket.firstSeen = Math.min(bucket.firstSeen, time);
+        bucket.lastSeen = Math.max(bucket.lastSeen, time);
+        if (created) {
+            mBuckets.put(signature, bucket);
+        }
+        if (!dump.delete()) {
+            Log.w(TAG, "cannot delete " + dump);
+        }
+        if (mBuckets.size() > mMaxBuckets) {
+            evictOldest(signature);
+        }
+        return bucket;
+    }
+
+    private void evictOldest(long keep) {
+        Bucket oldest = null;
+        for (Bucket bucket : mBuckets.values()) {
+            if (bucket.signature != keep
+                    && (oldest == null || bucket.lastSeen < oldest.lastSeen)) {
+                oldest = bucket;
+            }
+        }
+        if (oldest == null) {
+            return;
+        }
+        for (File file : getDumps(oldest)) {
+            file.delete();
+        }
+        mBuckets.remove(oldest.signature);
+    }
+
+    private File dumpFile(long signature, int index) {
+        return new File(mDir, String.format("%016x_%d.dmp.gz", signature, index));
+    }
+
+    private static void compress(File from, File to) throws IOException {
+        final File tmp = new File(to.getPath() + ".tmp");
+        final InputStream in = new FileInputStream(from);
+        boolean written = false;
+        try {
+            final OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 64 * 1024);
+            try {
+                final byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            written = true;
+        } finally {
+            in.close();
+            if (!written) {
+                tmp.delete();
+            }
+        }
+        if (!tmp.renameTo(to)) {
+            tmp.delete();
+            throw new IOException("cannot rename " + tmp + " to " + to);
+        }
+    }
+
+    private void load() throws IOException {
+        if (mLoaded) {
+            return;
+        }
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("cannot create " + mDir);
+        }
+        mLoaded = true;
+        final File index = new File(mDir, INDEX_FILE);
+        if (!index.exists()) {
+            return;
+        }
+        final DataInputStream in = new DataInputStream(new FileInputStream(index));
+        try {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                Log.w(TAG, "ignoring index " + index);
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final Bucket bucket = new Bucket(in.readLong());
+                bucket.count = in.readInt();
+                bucket.kept = in.readInt();
+                bucket.firstSeen = in.readLong();
+                bucket.lastSeen = in.readLong();
+                mBuckets.put(bucket.signature, bucket);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void save() throws IOException {
+        final File index = new File(mDir, INDEX_FILE);
+        final File tmp = new File(mDir, INDEX_FILE + ".tmp");
+        final FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            // Header and 32 bytes per bucket, a single write.
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(file, 12 + mBuckets.size() * 32));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(mBuckets.size());
+            for (Bucket bucket : mBuckets.values()) {
+                out.writeLong(bucket.signature);
+                out.writeInt(bucket.count);
+                out.writeInt(bucket.kept);
+                out.writeLong(bucket.firstSeen);
+                out.writeLong(bucket.lastSeen);
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(index)) {
+            throw new IOException("cannot rename " + tmp + " to " + index);
+        }
+    }
+}
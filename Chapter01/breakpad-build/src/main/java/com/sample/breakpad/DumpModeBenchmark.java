@@ -0,0 +1,256 @@
+package com.sample.breakpad;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how long writing a dump takes, and how big it gets, in each dump mode.
+ * <p>
+ * Dumps are written with {@link BreakpadInit#writeDump()}, the same writer that runs at crash
+ * time, from the calling thread. Optional extra threads with deep stacks stand in for a
+ * large process, the writer copies every thread's stack. Minidump sizes are the file sizes.
+ * Microdumps go to logcat, which an app may read for its own process. A microdump's size is
+ * taken from logcat only if a new one appeared there since the previous dump; otherwise, e.g.
+ * when logcat cannot be read, the iteration counts as skipped.
+ * <p>
+ * Installs a different handler mode per run. Call {@link BreakpadInit#initBreakpad} again
+ * afterwards to restore the one the app uses.
+ */
+public class DumpModeBenchmark {
+    private static final String MICRODUMP_BEGIN = "-----BEGIN BREAKPAD MICRODUMP-----";
+    private static final String MICRODUMP_END = "-----END BREAKPAD MICRODUMP-----";
+
+    public static class Mode {
+        public final String name;
+        public final int mode;
+        public final long sizeLimit;
+        public final String principalLibrary;
+        public final boolean sanitizeStacks;
+
+        public Mode(String name, int mode, long sizeLimit, String principalLibrary,
+                    boolean sanitizeStacks) {
+            this.name = name;
+            this.mode = mode;
+            this.sizeLimit = sizeLimit;
+            this.principalLibrary = principalLibrary;
+            this.sanitizeStacks = sanitizeStacks;
+        }
+    }
+
+    public static class Result {
+        public final Mode mode;
+        public int written;
+        public int skipped;
+        public long totalNanos;
+        public long maxNanos;
+        public long totalBytes;
+        public long maxBytes;
+
+        Result(Mode mode) {
+            this.mode = mode;
+        }
+
+        @Override
+        public String toString() {
+            if (written == 0) {
+                return mode.name + ": nothing written, " + skipped + " skipped";
+            }
+            return mode.name + ": " + written + " dumps, avg " + totalNanos / written / 1000
+                    + "us max " + maxNanos / 1000 + "us, avg " + totalBytes / written
+                    + " bytes max " + maxBytes + (skipped > 0 ? ", " + skipped + " skipped" : "");
+        }
+    }
+
+    private final File mDir;
+    private final int mIterations;
+    private final int mExtraThreads;
+    private final int mExtraStackDepth;
+
+    /**
+     * @param dir             scratch directory minidumps are written to and deleted from, not
+     *                        the one real crashes are dumped to
+     * @param extraThreads    threads started for the run, parked at the bottom of a call chain
+     * @param extraStackDepth frames of that call chain
+     */
+    public DumpModeBenchmark(File dir, int iterations, int extraThreads, int extraStackDepth) {
+        mDir = dir;
+        mIterations = iterations;
+        mExtraThreads = extraThreads;
+        mExtraStackDepth = extraStackDepth;
+    }
+
+    public DumpModeBenchmark(File dir) {
+        this(dir, 5, 50, 200);
+    }
+
+    /**
+     * Full minidump, minidump capped at 512KB with sanitized stacks, and microdump.
+     */
+    public static List<Mode> defaultModes() {
+        return Arrays.asList(
+                new Mode("minidump", BreakpadInit.MODE_MINIDUMP, BreakpadInit.NO_SIZE_LIMIT,
+                        null, false),
+                new Mode("minidump 512KB sanitized", BreakpadInit.MODE_MINIDUMP, 512 * 1024,
+                        null, true),
+                new Mode("microdump", BreakpadInit.MODE_MICRODUMP, BreakpadInit.NO_SIZE_LIMIT,
+                        null, false));
+    }
+
+    public String run() {
+        return run(defaultModes());
+    }
+
+    public String run(List<Mode> modes) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final CountDownLatch parked = new CountDownLatch(mExtraThreads);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < mExtraThreads; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deepPark(mExtraStackDepth, parked, done);
+                }
+            }, "dump-bench-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        final StringBuilder sb = new StringBuilder();
+        try {
+            parked.await();
+            sb.append(Thread.activeCount()).append(" threads");
+            for (Mode mode : modes) {
+                sb.append('\n').append(measure(mode));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            done.countDown();
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private Result measure(Mode mode) {
+        BreakpadInit.initBreakpad(mDir.getAbsolutePath(), mode.mode, mode.sizeLimit,
+                mode.principalLibrary, mode.sanitizeStacks);
+        final Result result = new Result(mode);
+        final boolean microdump = mode.mode == BreakpadInit.MODE_MICRODUMP;
+        final long[] microdumps = new long[2];
+        if (microdump) {
+            readMicrodumps(microdumps);
+        }
+        // The first dump also pays for page faults in the writer and the log buffers.
+        for (int i = -1; i < mIterations; i++) {
+            long nanos = BreakpadInit.writeDump();
+            final long bytes;
+            if (microdump) {
+                final long before = microdumps[0];
+                if (!readMicrodumps(microdumps) || microdumps[0] <= before) {
+                    // Not written, filtered out, or not in logcat: the size would be an old one.
+                    nanos = -1;
+                }
+                bytes = microdumps[1];
+            } else {
+                bytes = takeMinidumpSize();
+            }
+            if (i < 0) {
+                continue;
+            }
+            if (nanos < 0) {
+                result.skipped++;
+                continue;
+            }
+            result.written++;
+            result.totalNanos += nanos;
+            result.maxNanos = Math.max(result.maxNanos, nanos);
+            result.totalBytes += bytes;
+            result.maxBytes = Math.max(result.maxBytes, bytes);
+        }
+        return result;
+    }
+
+    /**
+     * Size of the minidumps in the directory, which are deleted.
+     */
+    private long takeMinidumpSize() {
+        final File[] files = mDir.listFiles();
+        long bytes = 0;
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".dmp")) {
+                    bytes += file.length();
+                    file.delete();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the microdumps in logcat into {@code result}: their number and the size of the
+     * last one.
+     *
+     * @return false if logcat cannot be read
+     */
+    private static boolean readMicrodumps(long[] result) {
+        long count = 0;
+        long bytes = 0;
+        try {
+            final Process process = Runtime.getRuntime().exec(new String[]{
+                    "logcat", "-d", "-b", "crash", "-b", "main", "-v", "raw",
+                    "-s", "google-breakpad"});
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()));
+            try {
+                long current = -1;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(MICRODUMP_BEGIN)) {
+                        current = 0;
+                    }
+                    if (current >= 0) {
+                        current += line.length() + 1;
+                    }
+                    if (line.startsWith(MICRODUMP_END) && current >= 0) {
+                        count++;
+                        bytes = current;
+                        current = -1;
+                    }
+                }
+            } finally {
+                reader.close();
+                process.destroy();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        result[0] = count;
+        result[1] = bytes;
+        return true;
+    }
+
+    private static void deepPark(int depth, CountDownLatch parked, CountDownLatch done) {
+        if (depth > 0) {
+            deepPark(depth - 1, parked, done);
+            return;
+        }
+        parked.countDown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
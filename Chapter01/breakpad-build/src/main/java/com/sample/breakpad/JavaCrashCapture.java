@@ -0,0 +1,397 @@
+package com.sample.breakpad;
+
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records uncaught Java exceptions into a file mapped at install time.
+ * <p>
+ * The default handler formats the stack trace into Strings before anything reaches disk,
+ * which fails when the crash is an OutOfMemoryError. Here everything is set up front: the
+ * mapping, the thread array and a number scratch buffer. At crash time the exception chain
+ * and the state of every thread are encoded as UTF-8 straight into the mapping, without
+ * building Strings. Walking a Throwable's stack trace still allocates inside the runtime,
+ * so a ballast array allocated at install time is dropped first and leaves the runtime that
+ * much room. The mapping is shared, its pages belong to the kernel and reach the file even
+ * when the process is killed right after, nothing needs to be flushed.
+ * <p>
+ * The same file holds a ring of samples, e.g. heap usage, written by {@link #recordSample}
+ * or {@link #startSampling} while the app runs, so the history before the crash costs
+ * nothing at crash time. The previous run's record is read back when the next one starts,
+ * see {@link #getPendingReport()}.
+ */
+public class JavaCrashCapture implements Thread.UncaughtExceptionHandler {
+    private static final String TAG = "JavaCrashCapture";
+
+    public static final int SAMPLE_JAVA_HEAP_USED = 1;
+    public static final int SAMPLE_NATIVE_HEAP_ALLOCATED = 2;
+    public static final int SAMPLE_THREAD_COUNT = 3;
+
+    private static final int MAGIC = 0x4a435253; // "JCRS"
+    private static final int VERSION = 1;
+
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_WRITING = 1;
+    private static final int STATE_COMPLETE = 2;
+
+    // Header fields.
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_STATE = 8;
+    private static final int OFFSET_TEXT_LENGTH = 12;
+    private static final int OFFSET_WALL_TIME = 16;
+    private static final int OFFSET_UPTIME = 24;
+    private static final int OFFSET_PID = 32;
+    private static final int OFFSET_TID = 36;
+    private static final int OFFSET_SAMPLE_COUNT = 40;
+    private static final int OFFSET_SAMPLE_CAPACITY = 48;
+    private static final int HEADER_SIZE = 64;
+
+    // Uptime, kind, value.
+    private static final int SAMPLE_SIZE = 24;
+
+    private static final int MAX_CAUSES = 8;
+    private static final int MAX_FRAMES = 64;
+    private static final int MAX_THREADS = 256;
+
+    private final MappedByteBuffer mMap;
+    private final int mSampleCapacity;
+    private final int mTextStart;
+    private final int mTextEnd;
+    private final String mPendingReport;
+    private final Thread.UncaughtExceptionHandler mPrevious;
+
+    private final AtomicBoolean mCrashing = new AtomicBoolean();
+    private final Throwable[] mCauses = new Throwable[MAX_CAUSES];
+    private final Thread[] mThreads = new Thread[MAX_THREADS];
+    private final byte[] mDigits = new byte[20];
+    // Only held, to be dropped at crash time.
+    private volatile byte[] mBallast;
+    private int mPos;
+
+    private volatile Thread mSampler;
+
+    /**
+     * @param file         mapped file, created if missing
+     * @param textBytes    room for the crash text, longer text is cut off
+     * @param sampleCount  samples the ring keeps
+     * @param ballastBytes heap released when a crash is being recorded
+     */
+    public JavaCrashCapture(File file, int textBytes, int sampleCount, int ballastBytes)
+            throws IOException {
+        mSampleCapacity = sampleCount;
+        mTextStart = HEADER_SIZE + sampleCount * SAMPLE_SIZE;
+        mTextEnd = mTextStart + textBytes;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            mPendingReport = readReport(raf);
+            raf.setLength(mTextEnd);
+            mMap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mTextEnd);
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+        mMap.order(ByteOrder.LITTLE_ENDIAN);
+        mMap.putInt(OFFSET_STATE, STATE_EMPTY);
+        mMap.putInt(OFFSET_MAGIC, MAGIC);
+        mMap.putInt(OFFSET_VERSION, VERSION);
+        mMap.putLong(OFFSET_SAMPLE_COUNT, 0);
+        mMap.putInt(OFFSET_SAMPLE_CAPACITY, sampleCount);
+        // Touch every page now, a page fault at crash time may need memory too.
+        for (int i = HEADER_SIZE; i < mTextEnd; i += 4096) {
+            mMap.put(i, (byte) 0);
+        }
+        mBallast = new byte[ballastBytes];
+        mPrevious = Thread.getDefaultUncaughtExceptionHandler();
+    }
+
+    public JavaCrashCapture(File file) throws IOException {
+        this(file, 64 * 1024, 256, 256 * 1024);
+    }
+
+    /**
+     * Installs this as the default handler. The handler that was installed before still runs
+     * after the crash is recorded.
+     */
+    public void install() {
+        Thread.setDefaultUncaughtExceptionHandler(this);
+    }
+
+    /**
+     * The crash the previous run recorded, null if it did not crash in Java.
+     */
+    public String getPendingReport() {
+        return mPendingReport;
+    }
+
+    /**
+     * Adds a sample to the ring, overwriting the oldest. Does not allocate.
+     */
+    public synchronized void recordSample(int kind, long value) {
+        final long count = mMap.getLong(OFFSET_SAMPLE_COUNT);
+        final int offset = HEADER_SIZE + (int) (count % mSampleCapacity) * SAMPLE_SIZE;
+        mMap.putLong(offset, SystemClock.uptimeMillis());
+        mMap.putInt(offset + 8, kind);
+        mMap.putLong(offset + 16, value);
+        mMap.putLong(OFFSET_SAMPLE_COUNT, count + 1);
+    }
+
+    /**
+     * Records heap usage and the thread count every intervalMs on a daemon thread.
+     */
+    public synchronized void startSampling(final long intervalMs) {
+        if (mSampler != null) {
+            return;
+        }
+        mSampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Runtime runtime = Runtime.getRuntime();
+                while (mSampler == Thread.currentThread()) {
+                    recordSample(SAMPLE_JAVA_HEAP_USED,
+                            runtime.totalMemory() - runtime.freeMemory());
+                    recordSample(SAMPLE_NATIVE_HEAP_ALLOCATED, Debug.getNativeHeapAllocatedSize());
+                    recordSample(SAMPLE_THREAD_COUNT, Thread.activeCount());
+                    SystemClock.sleep(intervalMs);
+                }
+            }
+        }, "crash-sampler");
+        mSampler.setDaemon(true);
+        mSampler.start();
+    }
+
+    public synchronized void stopSampling() {
+        mSampler = null;
+    }
+
+    @Override
+    public void uncaughtException(Thread thread, Throwable throwable) {
+        // Only the first crash is recorded, a second thread crashing meanwhile goes straight on.
+        if (mCrashing.compareAndSet(false, true)) {
+            mBallast = null;
+            try {
+                record(thread, throwable);
+            } catch (Throwable t) {
+                // Whatever made it into the mapping is kept, the state says it is incomplete.
+            }
+        }
+        if (mPrevious != null) {
+            mPrevious.uncaughtException(thread, throwable);
+        }
+    }
+
+    private void record(Thread thread, Throwable throwable) {
+        mMap.putInt(OFFSET_STATE, STATE_WRITING);
+        mMap.putLong(OFFSET_WALL_TIME, System.currentTimeMillis());
+        mMap.putLong(OFFSET_UPTIME, SystemClock.uptimeMillis());
+        mMap.putInt(OFFSET_PID, Process.myPid());
+        mMap.putInt(OFFSET_TID, Process.myTid());
+        mPos = mTextStart;
+        mMap.putInt(OFFSET_TEXT_LENGTH, 0);
+
+        putText("Java crash in thread \"");
+        putText(thread.getName());
+        putText("\" id ");
+        putNumber(thread.getId());
+        putText("\n");
+        writeCauses(throwable);
+        mMap.putInt(OFFSET_TEXT_LENGTH, mPos - mTextStart);
+        writeThreads();
+        mMap.putInt(OFFSET_TEXT_LENGTH, mPos - mTextStart);
+        mMap.putInt(OFFSET_STATE, STATE_COMPLETE);
+    }
+
+    private void writeCauses(Throwable throwable) {
+        int depth = 0;
+        for (Throwable t = throwable; t != null && depth < MAX_CAUSES; t = t.getCause()) {
+            for (int i = 0; i < depth; i++) {
+                if (mCauses[i] == t) {
+                    putText("[cause cycle]\n");
+                    return;
+                }
+            }
+            mCauses[depth++] = t;
+            if (t != throwable) {
+                putText("Caused by: ");
+            }
+            putText(t.getClass().getName());
+            final String message = t.getMessage();
+            if (message != null) {
+                putText(": ");
+                putText(message);
+            }
+            putText("\n");
+            final StackTraceElement[] frames = t.getStackTrace();
+            final int count = Math.min(frames.length, MAX_FRAMES);
+            for (int i = 0; i < count; i++) {
+                writeFrame(frames[i]);
+            }
+            if (frames.length > count) {
+                putText("\t... ");
+                putNumber(frames.length - count);
+                putText(" more\n");
+            }
+            // Flushed after every cause, a crash further on still leaves this much readable.
+            mMap.putInt(OFFSET_TEXT_LENGTH, mPos - mTextStart);
+        }
+    }
+
+    private void writeFrame(StackTraceElement frame) {
+        putText("\tat ");
+        putText(frame.getClassName());
+        putText(".");
+        putText(frame.getMethodName());
+        putText("(");
+        if (frame.isNativeMethod()) {
+            putText("Native Method");
+        } else if (frame.getFileName() != null) {
+            putText(frame.getFileName());
+            if (frame.getLineNumber() >= 0) {
+                putText(":");
+                putNumber(frame.getLineNumber());
+            }
+        } else {
+            putText("Unknown Source");
+        }
+        putText(")\n");
+    }
+
+    private void writeThreads() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root != null && root.getParent() != null) {
+            root = root.getParent();
+        }
+        if (root == null) {
+            return;
+        }
+        final int count = root.enumerate(mThreads, true);
+        putText("Threads: ");
+        putNumber(count);
+        putText("\n");
+        for (int i = 0; i < count; i++) {
+            final Thread thread = mThreads[i];
+            putText("  ");
+            putNumber(thread.getId());
+            putText(" \"");
+            putText(thread.getName());
+            putText("\" ");
+            putText(thread.getState().name());
+            putText(thread.isDaemon() ? " daemon prio " : " prio ");
+            putNumber(thread.getPriority());
+            putText("\n");
+            mThreads[i] = null;
+        }
+    }
+
+    private void putText(String s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            int c = s.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, s.charAt(++i));
+            }
+            if (c < 0x80) {
+                putByte(c);
+            } else if (c < 0x800) {
+                putByte(0xC0 | c >> 6);
+                putByte(0x80 | c & 0x3F);
+            } else if (c < 0x10000) {
+                putByte(0xE0 | c >> 12);
+                putByte(0x80 | c >> 6 & 0x3F);
+                putByte(0x80 | c & 0x3F);
+            } else {
+                putByte(0xF0 | c >> 18);
+                putByte(0x80 | c >> 12 & 0x3F);
+                putByte(0x80 | c >> 6 & 0x3F);
+                putByte(0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private void putNumber(long value) {
+        if (value < 0) {
+            putByte('-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            mDigits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0 && n < mDigits.length);
+        while (n > 0) {
+            putByte(mDigits[--n]);
+        }
+    }
+
+    private void putByte(int b) {
+        if (mPos < mTextEnd) {
+            mMap.put(mPos++, (byte) b);
+        }
+    }
+
+    /**
+     * Formats the record in the file, null if there is none.
+     */
+    private static String readReport(RandomAccessFile raf) throws IOException {
+        if (raf.length() < HEADER_SIZE) {
+            return null;
+        }
+        final byte[] header = new byte[HEADER_SIZE];
+        raf.seek(0);
+        raf.readFully(header);
+        final ByteBuffer h = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (h.getInt(OFFSET_MAGIC) != MAGIC || h.getInt(OFFSET_VERSION) != VERSION) {
+            return null;
+        }
+        final int state = h.getInt(OFFSET_STATE);
+        if (state == STATE_EMPTY) {
+            return null;
+        }
+        final int capacity = h.getInt(OFFSET_SAMPLE_CAPACITY);
+        final long sampleCount = h.getLong(OFFSET_SAMPLE_COUNT);
+        final long crashUptime = h.getLong(OFFSET_UPTIME);
+        final int textStart = HEADER_SIZE + capacity * SAMPLE_SIZE;
+        final int textLength = h.getInt(OFFSET_TEXT_LENGTH);
+        if (capacity < 0 || textLength < 0 || textStart + (long) textLength > raf.length()) {
+            return null;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("pid ").append(h.getInt(OFFSET_PID)).append(" tid ").append(h.getInt(OFFSET_TID))
+                .append(" at ").append(h.getLong(OFFSET_WALL_TIME));
+        if (state != STATE_COMPLETE) {
+            sb.append(" (incomplete)");
+        }
+        sb.append('\n');
+        final byte[] text = new byte[textLength];
+        raf.seek(textStart);
+        raf.readFully(text);
+        sb.append(new String(text, "UTF-8"));
+
+        final long samples = Math.min(sampleCount, capacity);
+        sb.append("Samples: ").append(samples).append('\n');
+        final byte[] sample = new byte[SAMPLE_SIZE];
+        for (long i = sampleCount - samples; i < sampleCount; i++) {
+            raf.seek(HEADER_SIZE + (i % capacity) * SAMPLE_SIZE);
+            raf.readFully(sample);
+            final ByteBuffer s = ByteBuffer.wrap(sample)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            sb.append("  ").append(s.getLong(0) - crashUptime).append("ms kind ")
+                    .append(s.getInt(8)).append(' ').append(s.getLong(16)).append('\n');
+        }
+        Log.i(TAG, "read crash record of " + textLength + " bytes");
+        return sb.toString();
+    }
+}
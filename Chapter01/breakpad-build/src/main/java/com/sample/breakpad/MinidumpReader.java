@@ -0,0 +1,401 @@
+package com.sample.breakpad;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the header streams of a minidump without the native processor.
+ * <p>
+ * The file is mapped, not read. Opening only decodes the header and the stream directory,
+ * the thread list, exception, module list and system info streams are decoded the first
+ * time they are asked for. Memory regions, i.e. the stacks and the memory list, are never
+ * touched unless {@link #getStack} or {@link #getContext} is called, and then they are
+ * views into the mapping, not copies. That makes reading what is needed to triage and
+ * bucket a crash a matter of microseconds and a few pages of I/O, however big the dump.
+ * <p>
+ * Layouts are the ones in google_breakpad/common/minidump_format.h.
+ */
+public class MinidumpReader implements Closeable {
+    public static final int THREAD_LIST_STREAM = 3;
+    public static final int MODULE_LIST_STREAM = 4;
+    public static final int EXCEPTION_STREAM = 6;
+    public static final int SYSTEM_INFO_STREAM = 7;
+
+    public static final int CPU_X86 = 0;
+    public static final int CPU_ARM = 5;
+    public static final int CPU_AMD64 = 9;
+    public static final int CPU_ARM64 = 12;
+    public static final int CPU_ARM64_OLD = 0x8003;
+
+    public static final int OS_LINUX = 0x8201;
+    public static final int OS_ANDROID = 0x8203;
+
+    private static final int SIGNATURE = 0x504d444d; // "MDMP"
+    private static final int CV_SIGNATURE_ELF = 0x4270454c; // "BpEL"
+    private static final int CV_SIGNATURE_PDB70 = 0x53445352; // "RSDS"
+
+    private static final int HEADER_SIZE = 32;
+    private static final int DIRECTORY_ENTRY_SIZE = 12;
+    private static final int THREAD_SIZE = 48;
+    private static final int MODULE_SIZE = 108;
+    private static final int EXCEPTION_SIZE = 168;
+    private static final int SYSTEM_INFO_SIZE = 56;
+
+    public static class ThreadInfo {
+        public int id;
+        public int suspendCount;
+        public int priority;
+        public long stackStart;
+        public int stackSize;
+        int stackRva;
+        int contextSize;
+        int contextRva;
+
+        @Override
+        public String toString() {
+            return "thread " + id + " stack 0x" + Long.toHexString(stackStart) + " +" + stackSize;
+        }
+    }
+
+    public static class ExceptionInfo {
+        public int threadId;
+        /**
+         * The signal on Linux.
+         */
+        public int code;
+        /**
+         * The si_code on Linux.
+         */
+        public int flags;
+        public long address;
+        int contextSize;
+        int contextRva;
+
+        @Override
+        public String toString() {
+            return "exception " + code + " flags " + flags + " at 0x" + Long.toHexString(address)
+                    + " in thread " + threadId;
+        }
+    }
+
+    public static class ModuleInfo {
+        public long base;
+        public long size;
+        public String name;
+        /**
+         * Hex of the ELF build id, or of the PDB GUID and age. Empty if there is none.
+         */
+        public String buildId;
+
+        public boolean contains(long address) {
+            return address >= base && address - base < size;
+        }
+
+        @Override
+        public String toString() {
+            return name + " 0x" + Long.toHexString(base) + " +" + size + " " + buildId;
+        }
+    }
+
+    public static class SystemInfo {
+        public int cpu;
+        public int cpuCount;
+        public int os;
+        public String osVersion;
+
+        @Override
+        public String toString() {
+            return "cpu " + cpu + " x" + cpuCount + " os 0x" + Integer.toHexString(os) + " "
+                    + osVersion;
+        }
+    }
+
+    private final ByteBuffer mMap;
+    private final int mStreamCount;
+    private final long mTimestamp;
+    private final int[] mStreamTypes;
+    private final int[] mStreamSizes;
+    private final int[] mStreamRvas;
+
+    private List<ThreadInfo> mThreads;
+    private List<ModuleInfo> mModules;
+    private ExceptionInfo mException;
+    private boolean mExceptionRead;
+    private SystemInfo mSystemInfo;
+
+    public MinidumpReader(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Not a minidump: " + length + " bytes");
+            }
+            mMap = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+        mMap.order(ByteOrder.LITTLE_ENDIAN);
+        if (mMap.getInt(0) != SIGNATURE) {
+            throw new IOException("Not a minidump");
+        }
+        mStreamCount = mMap.getInt(8);
+        final int directory = mMap.getInt(12);
+        mTimestamp = mMap.getInt(20) & 0xFFFFFFFFL;
+        check(directory, (long) mStreamCount * DIRECTORY_ENTRY_SIZE);
+        mStreamTypes = new int[mStreamCount];
+        mStreamSizes = new int[mStreamCount];
+        mStreamRvas = new int[mStreamCount];
+        for (int i = 0; i < mStreamCount; i++) {
+            final int entry = directory + i * DIRECTORY_ENTRY_SIZE;
+            mStreamTypes[i] = mMap.getInt(entry);
+            mStreamSizes[i] = mMap.getInt(entry + 4);
+            mStreamRvas[i] = mMap.getInt(entry + 8);
+        }
+    }
+
+    /**
+     * Seconds since the epoch the dump was written at.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public boolean hasStream(int type) {
+        return findStream(type) >= 0;
+    }
+
+    public List<ThreadInfo> getThreads() throws IOException {
+        if (mThreads == null) {
+            final List<ThreadInfo> threads = new ArrayList<>();
+            final int stream = findStream(THREAD_LIST_STREAM);
+            if (stream >= 0) {
+                final int start = listStart(stream, THREAD_SIZE);
+                final int count = listCount(stream);
+                for (int i = 0; i < count; i++) {
+                    final int entry = start + i * THREAD_SIZE;
+                    final ThreadInfo thread = new ThreadInfo();
+                    thread.id = mMap.getInt(entry);
+                    thread.suspendCount = mMap.getInt(entry + 4);
+                    thread.priority = mMap.getInt(entry + 12);
+                    thread.stackStart = mMap.getLong(entry + 24);
+                    thread.stackSize = mMap.getInt(entry + 32);
+                    thread.stackRva = mMap.getInt(entry + 36);
+                    thread.contextSize = mMap.getInt(entry + 40);
+                    thread.contextRva = mMap.getInt(entry + 44);
+                    threads.add(thread);
+                }
+            }
+            mThreads = Collections.unmodifiableList(threads);
+        }
+        return mThreads;
+    }
+
+    public ThreadInfo findThread(int id) throws IOException {
+        for (ThreadInfo thread : getThreads()) {
+            if (thread.id == id) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    public List<ModuleInfo> getModules() throws IOException {
+        if (mModules == null) {
+            final List<ModuleInfo> modules = new ArrayList<>();
+            final int stream = findStream(MODULE_LIST_STREAM);
+            if (stream >= 0) {
+                final int start = listStart(stream, MODULE_SIZE);
+                final int count = listCount(stream);
+                for (int i = 0; i < count; i++) {
+                    final int entry = start + i * MODULE_SIZE;
+                    final ModuleInfo module = new ModuleInfo();
+                    module.base = mMap.getLong(entry);
+                    module.size = mMap.getInt(entry + 8) & 0xFFFFFFFFL;
+                    module.name = readString(mMap.getInt(entry + 20));
+                    module.buildId = readBuildId(mMap.getInt(entry + 80), mMap.getInt(entry + 76));
+                    modules.add(module);
+                }
+            }
+            mModules = Collections.unmodifiableList(modules);
+        }
+        return mModules;
+    }
+
+    public ModuleInfo findModule(long address) throws IOException {
+        for (ModuleInfo module : getModules()) {
+            if (module.contains(address)) {
+                return module;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Null if the dump was not written for a crash.
+     */
+    public ExceptionInfo getException() throws IOException {
+        if (!mExceptionRead) {
+            final int stream = findStream(EXCEPTION_STREAM);
+            if (stream >= 0) {
+                final int rva = mStreamRvas[stream];
+                check(rva, EXCEPTION_SIZE);
+                final ExceptionInfo exception = new ExceptionInfo();
+                exception.threadId = mMap.getInt(rva);
+                exception.code = mMap.getInt(rva + 8);
+                exception.flags = mMap.getInt(rva + 12);
+                exception.address = mMap.getLong(rva + 24);
+                exception.contextSize = mMap.getInt(rva + 160);
+                exception.contextRva = mMap.getInt(rva + 164);
+                mException = exception;
+            }
+            mExceptionRead = true;
+        }
+        return mException;
+    }
+
+    /**
+     * Null if the dump has no system info stream.
+     */
+    public SystemInfo getSystemInfo() throws IOException {
+        if (mSystemInfo == null) {
+            final int stream = findStream(SYSTEM_INFO_STREAM);
+            if (stream < 0) {
+                return null;
+            }
+            final int rva = mStreamRvas[stream];
+            check(rva, SYSTEM_INFO_SIZE);
+            final SystemInfo info = new SystemInfo();
+            info.cpu = mMap.getShort(rva) & 0xFFFF;
+            info.cpuCount = mMap.get(rva + 6) & 0xFF;
+            info.os = mMap.getInt(rva + 20);
+            info.osVersion = mMap.getInt(rva + 8) + "." + mMap.getInt(rva + 12) + "."
+                    + mMap.getInt(rva + 16) + " " + readString(mMap.getInt(rva + 24));
+            mSystemInfo = info;
+        }
+        return mSystemInfo;
+    }
+
+    /**
+     * The CPU context the exception happened in, a view into the mapping.
+     */
+    public ByteBuffer getContext(ExceptionInfo exception) throws IOException {
+        return slice(exception.contextRva, exception.contextSize);
+    }
+
+    /**
+     * The saved part of the thread's stack, from {@link ThreadInfo#stackStart} up. A view into
+     * the mapping.
+     */
+    public ByteBuffer getStack(ThreadInfo thread) throws IOException {
+        return slice(thread.stackRva, thread.stackSize);
+    }
+
+    /**
+     * Nothing to release, the mapping goes away with the reader. Here for try/finally.
+     */
+    @Override
+    public void close() {
+    }
+
+    private int findStream(int type) {
+        for (int i = 0; i < mStreamCount; i++) {
+            if (mStreamTypes[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Offset of the first entry of a list stream. Some writers pad the count to 8 bytes, as the
+     * native processor does this is told from the stream size.
+     */
+    private int listStart(int stream, int entrySize) throws IOException {
+        final int rva = mStreamRvas[stream];
+        final long size = mStreamSizes[stream] & 0xFFFFFFFFL;
+        check(rva, size);
+        final long entries = listCount(stream) * (long) entrySize;
+        if (size == 4 + entries) {
+            return rva + 4;
+        }
+        if (size == 8 + entries) {
+            return rva + 8;
+        }
+        throw new IOException("Stream " + mStreamTypes[stream] + " has " + listCount(stream)
+                + " entries in " + size + " bytes");
+    }
+
+    private int listCount(int stream) throws IOException {
+        check(mStreamRvas[stream], 4);
+        return mMap.getInt(mStreamRvas[stream]);
+    }
+
+    private String readString(int rva) throws IOException {
+        if (rva == 0) {
+            return "";
+        }
+        check(rva, 4);
+        final int length = mMap.getInt(rva);
+        if (length <= 0) {
+            return "";
+        }
+        check(rva + 4, length);
+        final byte[] bytes = new byte[length];
+        final ByteBuffer view = mMap.duplicate();
+        view.position(rva + 4);
+        view.get(bytes);
+        try {
+            return new String(bytes, "UTF-16LE");
+        } catch (UnsupportedEncodingException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    private String readBuildId(int rva, int size) throws IOException {
+        if (rva == 0 || size < 4) {
+            return "";
+        }
+        check(rva, size);
+        final int signature = mMap.getInt(rva);
+        final int length;
+        if (signature == CV_SIGNATURE_ELF) {
+            length = size - 4;
+        } else if (signature == CV_SIGNATURE_PDB70 && size >= 24) {
+            // GUID and age.
+            length = 20;
+        } else {
+            return "";
+        }
+        final StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            final int b = mMap.get(rva + 4 + i);
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private ByteBuffer slice(int rva, int size) throws IOException {
+        check(rva, size & 0xFFFFFFFFL);
+        final ByteBuffer view = mMap.duplicate();
+        view.position(rva);
+        view.limit(rva + size);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void check(int rva, long size) throws IOException {
+        final long start = rva & 0xFFFFFFFFL;
+        if (size < 0 || start + size > mMap.capacity()) {
+            throw new IOException("Location " + start + " +" + size + " is outside the file");
+        }
+    }
+}
@@ -0,0 +1,256 @@
+// Symbolizes a directory of minidumps in parallel, e.g. the crashDump/ directory that
+// BreakpadInit.initBreakpad() writes to, pulled from devices with adb.
+//
+//   minidump_batch [-j threads] [-c cache_mb] [-o out_dir] [-a] symbol_path dump_dir|dump...
+//
+// symbol_path is laid out the way dump_syms output is stored for minidump_stackwalk:
+// <symbol_path>/<module>/<debug id>/<module>.sym. Several paths can be given separated by
+// ':'. Each dump's report goes to <out_dir>/<dump>.txt, or to stdout when no out_dir is
+// given. -a prints every thread, not only the crashing one.
+
+#include <dirent.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <mutex>
+#include <sstream>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include "google_breakpad/processor/call_stack.h"
+#include "google_breakpad/processor/code_module.h"
+#include "google_breakpad/processor/fast_source_line_resolver.h"
+#include "google_breakpad/processor/minidump.h"
+#include "google_breakpad/processor/minidump_processor.h"
+#include "google_breakpad/processor/process_state.h"
+#include "google_breakpad/processor/stack_frame.h"
+#include "processor/pathname_stripper.h"
+#include "symbol_cache.h"
+
+using google_breakpad::CallStack;
+using google_breakpad::CodeModule;
+using google_breakpad::FastSourceLineResolver;
+using google_breakpad::Minidump;
+using google_breakpad::MinidumpProcessor;
+using google_breakpad::PathnameStripper;
+using google_breakpad::ProcessResult;
+using google_breakpad::ProcessState;
+using google_breakpad::StackFrame;
+
+namespace {
+
+struct Options {
+    int threads = 0;
+    size_t cache_bytes = 512u << 20;
+    std::string out_dir;
+    bool all_threads = false;
+    std::vector<std::string> symbol_paths;
+    std::vector<std::string> dumps;
+};
+
+void Usage(const char *self) {
+    fprintf(stderr, "usage: %s [-j threads] [-c cache_mb] [-o out_dir] [-a] "
+                    "symbol_path[:symbol_path...] dump_dir|dump...\n", self);
+}
+
+bool EndsWith(const std::string &s, const char *suffix) {
+    const size_t n = strlen(suffix);
+    return s.size() >= n && s.compare(s.size() - n, n, suffix) == 0;
+}
+
+void AddDumps(const std::string &path, std::vector<std::string> *dumps) {
+    DIR *dir = opendir(path.c_str());
+    if (!dir) {
+        dumps->push_back(path);
+        return;
+    }
+    while (struct dirent *entry = readdir(dir)) {
+        const std::string name = entry->d_name;
+        if (EndsWith(name, ".dmp")) {
+            dumps->push_back(path + "/" + name);
+        }
+    }
+    closedir(dir);
+}
+
+void PrintFrame(std::ostringstream &out, int index, const StackFrame *frame) {
+    char buf[64];
+    snprintf(buf, sizeof(buf), "%2d  ", index);
+    out << buf;
+    const uint64_t pc = frame->ReturnAddress();
+    if (frame->module) {
+        out << PathnameStripper::File(frame->module->code_file());
+        if (!frame->function_name.empty()) {
+            out << "!" << frame->function_name;
+            if (!frame->source_file_name.empty()) {
+                snprintf(buf, sizeof(buf), " : %d + 0x%" PRIx64, frame->source_line,
+                         pc - frame->source_line_base);
+                out << " [" << PathnameStripper::File(frame->source_file_name) << buf << "]";
+            } else {
+                snprintf(buf, sizeof(buf), " + 0x%" PRIx64, pc - frame->function_base);
+                out << buf;
+            }
+        } else {
+            snprintf(buf, sizeof(buf), " + 0x%" PRIx64, pc - frame->module->base_address());
+            out << buf;
+        }
+    } else {
+        snprintf(buf, sizeof(buf), "0x%" PRIx64, pc);
+        out << buf;
+    }
+    out << "\n";
+}
+
+void PrintThread(std::ostringstream &out, int index, const CallStack *stack, bool crashed) {
+    out << "Thread " << index << (crashed ? " (crashed)" : "") << "\n";
+    const std::vector<StackFrame *> *frames = stack->frames();
+    for (size_t i = 0; i < frames->size(); i++) {
+        PrintFrame(out, static_cast<int>(i), frames->at(i));
+    }
+    out << "\n";
+}
+
+std::string Report(const std::string &path, const ProcessState &state, bool all_threads) {
+    std::ostringstream out;
+    char buf[64];
+    out << path << "\n";
+    out << "OS: " << state.system_info()->os << " " << state.system_info()->os_version << "\n";
+    out << "CPU: " << state.system_info()->cpu << " " << state.system_info()->cpu_info << "\n";
+    if (state.crashed()) {
+        snprintf(buf, sizeof(buf), "0x%" PRIx64, state.crash_address());
+        out << "Crash reason: " << state.crash_reason() << "\nCrash address: " << buf << "\n";
+    } else {
+        out << "No crash\n";
+    }
+    if (!state.assertion().empty()) {
+        out << "Assertion: " << state.assertion() << "\n";
+    }
+    out << "\n";
+    const int requesting = state.requesting_thread();
+    for (size_t i = 0; i < state.threads()->size(); i++) {
+        if (all_threads || static_cast<int>(i) == requesting) {
+            PrintThread(out, static_cast<int>(i), state.threads()->at(i),
+                        static_cast<int>(i) == requesting && state.crashed());
+        }
+    }
+    out << "Modules without symbols:";
+    for (const CodeModule *module : *state.modules_without_symbols()) {
+        out << "\n  " << PathnameStripper::File(module->code_file()) << " "
+            << module->debug_identifier();
+    }
+    out << (state.modules_without_symbols()->empty() ? " none\n" : "\n");
+    return out.str();
+}
+
+bool WriteFile(const std::string &path, const std::string &data) {
+    FILE *file = fopen(path.c_str(), "w");
+    if (!file) {
+        return false;
+    }
+    const bool ok = fwrite(data.data(), 1, data.size(), file) == data.size();
+    return fclose(file) == 0 && ok;
+}
+
+} // namespace
+
+int main(int argc, char **argv) {
+    Options options;
+    int opt;
+    while ((opt = getopt(argc, argv, "j:c:o:a")) != -1) {
+        switch (opt) {
+            case 'j':
+                options.threads = atoi(optarg);
+                break;
+            case 'c':
+                options.cache_bytes = static_cast<size_t>(atol(optarg)) << 20;
+                break;
+            case 'o':
+                options.out_dir = optarg;
+                break;
+            case 'a':
+                options.all_threads = true;
+                break;
+            default:
+                Usage(argv[0]);
+                return 1;
+        }
+    }
+    if (argc - optind < 2) {
+        Usage(argv[0]);
+        return 1;
+    }
+    std::stringstream paths(argv[optind++]);
+    for (std::string path; std::getline(paths, path, ':');) {
+        options.symbol_paths.push_back(path);
+    }
+    for (; optind < argc; optind++) {
+        AddDumps(argv[optind], &options.dumps);
+    }
+    if (options.threads <= 0) {
+        options.threads = std::max(1u, std::thread::hardware_concurrency());
+    }
+
+    SymbolCache cache(options.symbol_paths, options.cache_bytes);
+    std::atomic<size_t> next(0);
+    std::atomic<int> processed(0);
+    std::atomic<int> failed(0);
+    std::mutex output_mutex;
+    const auto start = std::chrono::steady_clock::now();
+
+    std::vector<std::thread> workers;
+    for (int t = 0; t < options.threads; t++) {
+        workers.emplace_back([&]() {
+            for (size_t i = next++; i < options.dumps.size(); i = next++) {
+                const std::string &path = options.dumps[i];
+                // Resolver and supplier are per dump. Loading cached symbols into a fresh
+                // FastSourceLineResolver costs next to nothing, and everything a dump
+                // pinned is released with it.
+                FastSourceLineResolver resolver;
+                CachedSymbolSupplier supplier(&cache);
+                MinidumpProcessor processor(&supplier, &resolver);
+                ProcessState state;
+                const ProcessResult result = processor.Process(path, &state);
+                if (result != google_breakpad::PROCESS_OK) {
+                    failed++;
+                    std::lock_guard<std::mutex> lock(output_mutex);
+                    fprintf(stderr, "%s: processing failed (%d)\n", path.c_str(), result);
+                    continue;
+                }
+                const std::string report = Report(path, state, options.all_threads);
+                processed++;
+                if (!options.out_dir.empty()) {
+                    const std::string out = options.out_dir + "/"
+                                            + PathnameStripper::File(path) + ".txt";
+                    if (!WriteFile(out, report)) {
+                        std::lock_guard<std::mutex> lock(output_mutex);
+                        fprintf(stderr, "%s: cannot write\n", out.c_str());
+                    }
+                } else {
+                    std::lock_guard<std::mutex> lock(output_mutex);
+                    fwrite(report.data(), 1, report.size(), stdout);
+                    fputs("\n", stdout);
+                }
+            }
+        });
+    }
+    for (std::thread &worker : workers) {
+        worker.join();
+    }
+
+    const long ms = std::chrono::duration_cast<std::chrono::milliseconds>(
+            std::chrono::steady_clock::now() - start).count();
+    const SymbolCacheStats stats = cache.stats();
+    fprintf(stderr, "%d dumps processed, %d failed in %ldms on %d threads\n",
+            processed.load(), failed.load(), ms, options.threads);
+    fprintf(stderr, "symbols: %ld parsed in %ldms, %ld hits, %ld waited for a parse, "
+                    "%ld evicted, %zu bytes cached\n",
+            stats.misses, stats.parse_ms, stats.hits, stats.waits, stats.evictions,
+            stats.bytes);
+    return failed > 0 ? 2 : 0;
+}
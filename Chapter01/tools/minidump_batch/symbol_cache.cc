@@ -0,0 +1,138 @@
+#include "symbol_cache.h"
+
+#include <chrono>
+
+#include "processor/module_serializer.h"
+
+using google_breakpad::CodeModule;
+using google_breakpad::ModuleSerializer;
+using google_breakpad::SymbolSupplier;
+using google_breakpad::SystemInfo;
+
+SymbolCache::SymbolCache(const std::vector<std::string> &symbol_paths, size_t capacity_bytes)
+        : supplier_(symbol_paths),
+          capacity_bytes_(capacity_bytes) {
+}
+
+std::shared_ptr<const SymbolEntry> SymbolCache::Get(const CodeModule *module,
+                                                    const SystemInfo *system_info) {
+    const std::string key = module->debug_file() + "/" + module->debug_identifier();
+    std::promise<std::shared_ptr<const SymbolEntry>> promise;
+    EntryFuture cached;
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        auto it = slots_.find(key);
+        if (it != slots_.end()) {
+            lru_.splice(lru_.begin(), lru_, it->second.lru);
+            if (it->second.ready) {
+                stats_.hits++;
+            } else {
+                stats_.waits++;
+            }
+            cached = it->second.future;
+        } else {
+            stats_.misses++;
+            lru_.push_front(key);
+            Slot &slot = slots_[key];
+            slot.future = promise.get_future().share();
+            slot.lru = lru_.begin();
+        }
+    }
+    if (cached.valid()) {
+        // Waits if another worker is still parsing this module.
+        return cached.get();
+    }
+
+    // Reading and parsing happen outside the lock, other modules are served meanwhile.
+    std::shared_ptr<const SymbolEntry> entry = Load(module, system_info);
+    promise.set_value(entry);
+
+    std::lock_guard<std::mutex> lock(mutex_);
+    auto it = slots_.find(key);
+    if (it != slots_.end()) {
+        it->second.ready = true;
+        it->second.size = entry->size + key.size();
+        stats_.bytes += it->second.size;
+        Trim(key);
+    }
+    return entry;
+}
+
+std::shared_ptr<const SymbolEntry> SymbolCache::Load(const CodeModule *module,
+                                                     const SystemInfo *system_info) {
+    std::shared_ptr<SymbolEntry> entry = std::make_shared<SymbolEntry>();
+    const auto start = std::chrono::steady_clock::now();
+    std::string symbol_data;
+    if (supplier_.GetSymbolFile(module, system_info, &entry->symbol_file, &symbol_data)
+        == SymbolSupplier::FOUND) {
+        ModuleSerializer serializer;
+        unsigned int size = 0;
+        char *serialized = serializer.SerializeSymbolFileData(symbol_data, &size);
+        if (serialized) {
+            entry->data.reset(serialized);
+            entry->size = size;
+            entry->found = true;
+        }
+    }
+    const long ms = std::chrono::duration_cast<std::chrono::milliseconds>(
+            std::chrono::steady_clock::now() - start).count();
+    std::lock_guard<std::mutex> lock(mutex_);
+    stats_.parse_ms += ms;
+    return entry;
+}
+
+void SymbolCache::Trim(const std::string &keep) {
+    auto it = lru_.end();
+    while (stats_.bytes > capacity_bytes_ && it != lru_.begin()) {
+        --it;
+        auto slot = slots_.find(*it);
+        // Entries still being parsed have no size yet and others may be waiting on them.
+        if (*it == keep || !slot->second.ready) {
+            continue;
+        }
+        stats_.bytes -= slot->second.size;
+        stats_.evictions++;
+        slots_.erase(slot);
+        it = lru_.erase(it);
+    }
+}
+
+SymbolCacheStats SymbolCache::stats() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return stats_;
+}
+
+SymbolSupplier::SymbolResult CachedSymbolSupplier::GetSymbolFile(
+        const CodeModule *module, const SystemInfo *system_info, std::string *symbol_file) {
+    std::shared_ptr<const SymbolEntry> entry = cache_->Get(module, system_info);
+    if (!entry->found) {
+        return NOT_FOUND;
+    }
+    *symbol_file = entry->symbol_file;
+    return FOUND;
+}
+
+SymbolSupplier::SymbolResult CachedSymbolSupplier::GetSymbolFile(
+        const CodeModule *module, const SystemInfo *system_info, std::string *symbol_file,
+        std::string *symbol_data) {
+    return NOT_FOUND;
+}
+
+SymbolSupplier::SymbolResult CachedSymbolSupplier::GetCStringSymbolData(
+        const CodeModule *module, const SystemInfo *system_info, std::string *symbol_file,
+        char **symbol_data, size_t *symbol_data_size) {
+    std::shared_ptr<const SymbolEntry> entry = cache_->Get(module, system_info);
+    if (!entry->found) {
+        return NOT_FOUND;
+    }
+    held_[module->code_file()] = entry;
+    *symbol_file = entry->symbol_file;
+    // FastSourceLineResolver only reads the buffer.
+    *symbol_data = entry->data.get();
+    *symbol_data_size = entry->size;
+    return FOUND;
+}
+
+void CachedSymbolSupplier::FreeSymbolData(const CodeModule *module) {
+    held_.erase(module->code_file());
+}
@@ -0,0 +1,107 @@
+#ifndef MINIDUMP_BATCH_SYMBOL_CACHE_H
+#define MINIDUMP_BATCH_SYMBOL_CACHE_H
+
+#include <future>
+#include <list>
+#include <map>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <vector>
+
+#include "google_breakpad/processor/code_module.h"
+#include "google_breakpad/processor/symbol_supplier.h"
+#include "google_breakpad/processor/system_info.h"
+#include "processor/simple_symbol_supplier.h"
+
+// Symbols of one module version, parsed from its .sym file and serialized into the
+// format FastSourceLineResolver loads without parsing again.
+struct SymbolEntry {
+    bool found = false;
+    std::string symbol_file;
+    std::unique_ptr<char[]> data;
+    size_t size = 0;
+};
+
+struct SymbolCacheStats {
+    long hits = 0;
+    long misses = 0;
+    long waits = 0;
+    long evictions = 0;
+    long parse_ms = 0;
+    size_t bytes = 0;
+};
+
+// LRU cache of parsed symbols, shared by all workers.
+//
+// Entries are keyed by debug file and debug identifier, i.e. by module version. Each
+// version is read and parsed at most once while it stays cached. A worker that asks for
+// a module another worker is parsing waits for that parse instead of starting its own.
+// Entries are handed out as shared_ptr, so evicting one never pulls symbols from under
+// a dump that is still being processed. Modules without symbols are cached as well.
+class SymbolCache {
+public:
+    SymbolCache(const std::vector<std::string> &symbol_paths, size_t capacity_bytes);
+
+    std::shared_ptr<const SymbolEntry> Get(const google_breakpad::CodeModule *module,
+                                           const google_breakpad::SystemInfo *system_info);
+
+    SymbolCacheStats stats();
+
+private:
+    typedef std::shared_future<std::shared_ptr<const SymbolEntry>> EntryFuture;
+
+    struct Slot {
+        EntryFuture future;
+        std::list<std::string>::iterator lru;
+        size_t size = 0;
+        bool ready = false;
+    };
+
+    std::shared_ptr<const SymbolEntry> Load(const google_breakpad::CodeModule *module,
+                                            const google_breakpad::SystemInfo *system_info);
+
+    // Drops least recently used entries until the cache fits. Called with mutex_ held.
+    void Trim(const std::string &keep);
+
+    google_breakpad::SimpleSymbolSupplier supplier_;
+    const size_t capacity_bytes_;
+
+    std::mutex mutex_;
+    std::map<std::string, Slot> slots_;
+    // Most recently used first.
+    std::list<std::string> lru_;
+    SymbolCacheStats stats_;
+};
+
+// Supplier for one dump. Hands out the cached, already serialized symbols and keeps them
+// alive until the dump is done: FastSourceLineResolver keeps pointing into the buffer.
+class CachedSymbolSupplier : public google_breakpad::SymbolSupplier {
+public:
+    explicit CachedSymbolSupplier(SymbolCache *cache) : cache_(cache) {}
+
+    SymbolResult GetSymbolFile(const google_breakpad::CodeModule *module,
+                               const google_breakpad::SystemInfo *system_info,
+                               std::string *symbol_file) override;
+
+    // The text of the symbol file is not kept, only its serialized form, so this answers
+    // NOT_FOUND. The processor only asks for GetCStringSymbolData().
+    SymbolResult GetSymbolFile(const google_breakpad::CodeModule *module,
+                               const google_breakpad::SystemInfo *system_info,
+                               std::string *symbol_file,
+                               std::string *symbol_data) override;
+
+    SymbolResult GetCStringSymbolData(const google_breakpad::CodeModule *module,
+                                      const google_breakpad::SystemInfo *system_info,
+                                      std::string *symbol_file,
+                                      char **symbol_data,
+                                      size_t *symbol_data_size) override;
+
+    void FreeSymbolData(const google_breakpad::CodeModule *module) override;
+
+private:
+    SymbolCache *cache_;
+    std::map<std::string, std::shared_ptr<const SymbolEntry>> held_;
+};
+
+#endif // MINIDUMP_BATCH_SYMBOL_CACHE_H
@@ -0,0 +1,231 @@
+package com.lang.chapter02;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allocates the same objects once with finalize() and once registered with a
+ * {@link ResourceCleaner}, and compares the two.
+ * <p>
+ * Per variant it measures:
+ * <ul>
+ * <li>allocation throughput, and the longest gap between two allocations, which is where
+ * the allocating thread waited for the GC;</li>
+ * <li>the GCs that ran meanwhile, their time and how much of it blocked, from the ART runtime
+ * stats (API 23 and up);</li>
+ * <li>how long it takes, and how many explicit GCs, until every object's cleanup has run and
+ * its memory can be reused.</li>
+ * </ul>
+ * Run it on a background thread, it takes a few seconds and forces GCs.
+ */
+public class CleanerBenchmark {
+    private static final AtomicInteger sFinalized = new AtomicInteger();
+    private static final AtomicInteger sCleaned = new AtomicInteger();
+
+    private static class FinalizableResource {
+        final byte[] payload;
+
+        FinalizableResource(int size) {
+            payload = new byte[size];
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            sFinalized.incrementAndGet();
+            super.finalize();
+        }
+    }
+
+    private static class CleanableResource {
+        final byte[] payload;
+
+        CleanableResource(ResourceCleaner cleaner, int size) {
+            payload = new byte[size];
+            cleaner.register(this, CLEANUP);
+        }
+    }
+
+    // Static, so that it does not capture the resource.
+    private static final Runnable CLEANUP = new Runnable() {
+        @Override
+        public void run() {
+            sCleaned.incrementAndGet();
+        }
+    };
+
+    public static class Result {
+        public String name;
+        public int count;
+        public long allocNanos;
+        public long maxStallNanos;
+        public long gcCount = -1;
+        public long gcTimeMs = -1;
+        public long blockingGcCount = -1;
+        public long blockingGcTimeMs = -1;
+        public long reclaimMs;
+        public int reclaimGcs;
+        public int reclaimed;
+
+        public long allocationsPerSecond() {
+            return allocNanos > 0 ? count * 1000000000L / allocNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + count + " objects at " + allocationsPerSecond() + "/s, longest stall "
+                    + maxStallNanos / 1000000 + "ms, gc " + gcCount + " runs " + gcTimeMs
+                    + "ms (blocking " + blockingGcCount + " runs " + blockingGcTimeMs
+                    + "ms); " + reclaimed + " reclaimed in " + reclaimMs + "ms after "
+                    + reclaimGcs + " explicit gc";
+        }
+    }
+
+    private final int mCount;
+    private final int mPayloadSize;
+    private final long mReclaimTimeoutMs;
+
+    /**
+     * @param count       objects per variant
+     * @param payloadSize bytes each object holds, the memory that finalize() keeps alive longer
+     */
+    public CleanerBenchmark(int count, int payloadSize, long reclaimTimeoutMs) {
+        mCount = count;
+        mPayloadSize = payloadSize;
+        mReclaimTimeoutMs = reclaimTimeoutMs;
+    }
+
+    public CleanerBenchmark() {
+        this(200000, 256, 30000);
+    }
+
+    /**
+     * Runs both variants, finalize() first, and returns a report.
+     */
+    public String run() {
+        final ResourceCleaner cleaner = new ResourceCleaner("benchmark");
+        try {
+            // Warm up both paths so that neither pays for class loading and compilation.
+            runFinalizable(mCount / 10);
+            runCleanable(cleaner, mCount / 10);
+
+            final Result finalizable = runFinalizable(mCount);
+            final Result cleanable = runCleanable(cleaner, mCount);
+            return finalizable + "\n" + cleanable + "\n" + cleaner.printCurrentState();
+        } finally {
+            cleaner.shutdown();
+        }
+    }
+
+    private Result runFinalizable(int count) {
+        settle();
+        sFinalized.set(0);
+        final Result result = new Result();
+        result.name = "finalize()";
+        result.count = count;
+        final long[] gcBefore = readGcStats();
+        long last = System.nanoTime();
+        final long start = last;
+        for (int i = 0; i < count; i++) {
+            new FinalizableResource(mPayloadSize);
+            final long now = System.nanoTime();
+            result.maxStallNanos = Math.max(result.maxStallNanos, now - last);
+            last = now;
+        }
+        result.allocNanos = last - start;
+        fillGcStats(result, gcBefore);
+        reclaim(result, sFinalized, count);
+        return result;
+    }
+
+    private Result runCleanable(ResourceCleaner cleaner, int count) {
+        settle();
+        sCleaned.set(0);
+        final Result result = new Result();
+        result.name = "ResourceCleaner";
+        result.count = count;
+        final long[] gcBefore = readGcStats();
+        long last = System.nanoTime();
+        final long start = last;
+        for (int i = 0; i < count; i++) {
+            new CleanableResource(cleaner, mPayloadSize);
+            final long now = System.nanoTime();
+            result.maxStallNanos = Math.max(result.maxStallNanos, now - last);
+            last = now;
+        }
+        result.allocNanos = last - start;
+        fillGcStats(result, gcBefore);
+        reclaim(result, sCleaned, count);
+        return result;
+    }
+
+    /**
+     * Forces GCs until the counter reaches {@code count} or the timeout passes.
+     */
+    private void reclaim(Result result, AtomicInteger counter, int count) {
+        final long start = SystemClock.uptimeMillis();
+        while (counter.get() < count
+                && SystemClock.uptimeMillis() - start < mReclaimTimeoutMs) {
+            Runtime.getRuntime().gc();
+            result.reclaimGcs++;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        result.reclaimMs = SystemClock.uptimeMillis() - start;
+        result.reclaimed = counter.get();
+    }
+
+    /**
+     * Leaves as little garbage of the previous run as possible to the next.
+     */
+    private static void settle() {
+        for (int i = 0; i < 3; i++) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+        }
+    }
+
+    private static long[] readGcStats() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return null;
+        }
+        return new long[]{
+                parseStat("art.gc.gc-count"),
+                parseStat("art.gc.gc-time"),
+                parseStat("art.gc.blocking-gc-count"),
+                parseStat("art.gc.blocking-gc-time"),
+        };
+    }
+
+    private static void fillGcStats(Result result, long[] before) {
+        final long[] after = readGcStats();
+        if (before == null || after == null) {
+            return;
+        }
+        result.gcCount = delta(before[0], after[0]);
+        result.gcTimeMs = delta(before[1], after[1]);
+        result.blockingGcCount = delta(before[2], after[2]);
+        result.blockingGcTimeMs = delta(before[3], after[3]);
+    }
+
+    private static long delta(long before, long after) {
+        return before < 0 || after < 0 ? -1 : after - before;
+    }
+
+    private static long parseStat(String name) {
+        final String value = Debug.getRuntimeStat(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.lang.chapter02;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches the FinalizerDaemon: queue backlog, time objects wait in the queue, and how long
+ * finalize() takes per class.
+ * <p>
+ * The single FinalizerDaemon runs every finalize() one after the other. One slow
+ * finalizer delays every object queued behind it. When a single call takes longer than
+ * the timeout (10s on most devices), FinalizerWatchdogDaemon kills the process.
+ * {@link WatchDogKiller} only stops the watchdog, which hides the slow class. This
+ * monitor finds it instead, and warns while there is still time to act.
+ * <ul>
+ * <li>The object the daemon is finalizing is polled every {@code pollIntervalMs}, from
+ * {@code FinalizerDaemon.finalizingObject}. Without that field, the daemon's stack is
+ * sampled instead, but a stack trace suspends the daemon and costs far more than a field
+ * read: the poll slows down to {@link #STACK_POLL_INTERVAL_MS}, and stacks are only taken
+ * while the canary shows the daemon is behind. Durations are therefore sampled. Calls
+ * shorter than one poll are recorded as 0ms or missed, which is fine because the slow ones
+ * are what matter.</li>
+ * <li>Queue depth is read from the finalizer ReferenceQueue where reflection allows it.</li>
+ * <li>Time in queue is measured with a canary: an object with a finalize() and a
+ * WeakReference to it. Both are cleared by the same GC. The time from the WeakReference
+ * being cleared to the canary's finalize() running is the wait behind the other objects
+ * in the queue.</li>
+ * </ul>
+ */
+public class FinalizerMonitor {
+    private static final String TAG = "FinalizerMonitor";
+
+    private static final long DEFAULT_TIMEOUT_MS = 10000;
+    // Histogram buckets in milliseconds: [0, 1), [1, 2), [2, 4) ... [8192, inf).
+    private static final int BUCKETS = 15;
+    // The queue is walked every this many polls.
+    private static final int QUEUE_DEPTH_EVERY = 25;
+    // Walking the queue stops here; a deeper queue is reported as at least this deep.
+    private static final int MAX_QUEUE_WALK = 100000;
+    // Poll interval when the daemon's stack has to be sampled.
+    private static final long STACK_POLL_INTERVAL_MS = 500;
+    // ... and how long the canary has to wait in the queue before stacks are taken.
+    private static final long STACK_LAG_MS = 1000;
+
+    public interface Listener {
+        /**
+         * A finalize() has been running for {@code runningMs} out of {@code timeoutMs}.
+         * Called once per call, on the monitor thread.
+         *
+         * @param stack the finalizer daemon's stack at the time, may be empty
+         */
+        void onSlowFinalize(String className, long runningMs, long timeoutMs,
+                            StackTraceElement[] stack);
+
+        /**
+         * The canary has been waiting in the queue for {@code waitingMs}.
+         *
+         * @param queueDepth -1 if the queue cannot be read
+         */
+        void onFinalizerBacklog(long waitingMs, int queueDepth);
+    }
+
+    public static class Histogram {
+        final long[] buckets = new long[BUCKETS];
+        long count;
+        long totalMs;
+        long maxMs;
+
+        void record(long ms) {
+            final int bucket = ms <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+            buckets[bucket]++;
+            count++;
+            totalMs += ms;
+            if (ms > maxMs) {
+                maxMs = ms;
+            }
+        }
+
+        /**
+         * Upper bound in milliseconds of the bucket that holds the percentile.
+         */
+        public long percentile(int percent) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (count * percent + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(maxMs, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return maxMs;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long maxMs() {
+            return maxMs;
+        }
+
+        @Override
+        public String toString() {
+            return count + "x, avg " + (count > 0 ? totalMs / count : 0) + "ms, p50 "
+                    + percentile(50) + "ms, p99 " + percentile(99) + "ms, max " + maxMs + "ms";
+        }
+    }
+
+    private final long mPollIntervalMs;
+    private final long mCanaryIntervalMs;
+    private final int mWarnPercent;
+    private final Listener mListener;
+    private final long mTimeoutMs;
+
+    // Reflection, resolved once; null where the runtime does not have it.
+    private Object mFinalizerDaemon;
+    private Field mFinalizingObjectField;
+    private AtomicInteger mProgressCounter;
+    private Thread mFinalizerThread;
+    private Object mFinalizerQueue;
+    private Field mQueueHeadField;
+    private Field mQueueNextField;
+    private Field mQueueLengthField;
+
+    // Only touched on the monitor thread, read under the lock in printCurrentState().
+    private final Map<String, Histogram> mClassStats = new HashMap<>();
+    private final Histogram mQueueTime = new Histogram();
+    private int mQueueDepth = -1;
+    private int mMaxQueueDepth = -1;
+    private long mWarnings;
+
+    // State of the finalize() in progress, monitor thread only.
+    private Object mCurrentObject;
+    private String mCurrentClass;
+    private long mCurrentStart;
+    private boolean mCurrentWarned;
+    private long mPolls;
+
+    // Canary state.
+    private final ReferenceQueue<Object> mCanaryQueue = new ReferenceQueue<>();
+    private WeakReference<Object> mCanaryRef;
+    private long mCanaryCleared;
+    private long mNextCanary;
+    private boolean mCanaryWarned;
+    volatile long mCanaryFinalized;
+
+    private volatile Thread mThread;
+
+    /**
+     * @param pollIntervalMs   how often the finalizer daemon is looked at
+     * @param canaryIntervalMs pause between two time-in-queue measurements
+     * @param warnPercent      share of the timeout after which a finalize() or the canary
+     *                         counts as slow
+     */
+    public FinalizerMonitor(long pollIntervalMs, long canaryIntervalMs, int warnPercent,
+                            Listener listener) {
+        mPollIntervalMs = pollIntervalMs;
+        mCanaryIntervalMs = canaryIntervalMs;
+        mWarnPercent = warnPercent;
+        mListener = listener;
+        mTimeoutMs = readTimeoutMs();
+        resolveDaemon();
+        resolveQueue();
+    }
+
+    public FinalizerMonitor(Listener listener) {
+        this(20, 5000, 50, listener);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        final Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * The finalize() timeout the watchdog enforces.
+     */
+    public long getTimeoutMs() {
+        return mTimeoutMs;
+    }
+
+    private void loop() {
+        final Thread self = Thread.currentThread();
+        while (mThread == self) {
+            final long now = SystemClock.uptimeMillis();
+            final long interval;
+            synchronized (this) {
+                interval = pollIntervalMs();
+                pollDaemon(now);
+                pollCanary(now);
+                if (mPolls++ % QUEUE_DEPTH_EVERY == 0) {
+                    mQueueDepth = readQueueDepth();
+                    mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueueDepth);
+                }
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private long pollIntervalMs() {
+        return mFinalizingObjectField != null
+                ? mPollIntervalMs : Math.max(mPollIntervalMs, STACK_POLL_INTERVAL_MS);
+    }
+
+    private void pollDaemon(long now) {
+        Object object = null;
+        String className = null;
+        if (mFinalizingObjectField != null) {
+            try {
+                object = mFinalizingObjectField.get(mFinalizerDaemon);
+            } catch (IllegalAccessException e) {
+                mFinalizingObjectField = null;
+            }
+            if (object != null) {
+                className = object.getClass().getName();
+            }
+        } else if (mFinalizerThread != null && mCanaryCleared != 0 && mCanaryFinalized == 0
+                && now - mCanaryCleared >= STACK_LAG_MS) {
+            // No access to the object, go by the class in finalize() at the top of the stack.
+            // Two objects of one class in a row look like one long call here, and a call is
+            // only seen from the moment the canary is late.
+            className = finalizingClass(mFinalizerThread.getStackTrace());
+        }
+
+        final boolean changed = mFinalizingObjectField != null
+                ? object != mCurrentObject
+                : (className == null ? mCurrentClass != null : !className.equals(mCurrentClass));
+        if (changed) {
+            if (mCurrentClass != null) {
+                classStats(mCurrentClass).record(
+                        Math.max(0, now - mCurrentStart - pollIntervalMs() / 2));
+            }
+            mCurrentObject = object;
+            mCurrentClass = className;
+            mCurrentStart = now;
+            mCurrentWarned = false;
+        } else if (className != null && !mCurrentWarned) {
+            final long running = now - mCurrentStart;
+            if (running * 100 >= mTimeoutMs * mWarnPercent) {
+                mCurrentWarned = true;
+                mWarnings++;
+                final StackTraceElement[] stack = mFinalizerThread != null
+                        ? mFinalizerThread.getStackTrace() : new StackTraceElement[0];
+                Log.w(TAG, className + ".finalize() running for " + running + "ms, timeout is "
+                        + mTimeoutMs + "ms");
+                if (mListener != null) {
+                    mListener.onSlowFinalize(className, running, mTimeoutMs, stack);
+                }
+            }
+        }
+    }
+
+    private void pollCanary(long now) {
+        if (mCanaryRef == null) {
+            if (now >= mNextCanary) {
+                mCanaryFinalized = 0;
+                mCanaryCleared = 0;
+                mCanaryWarned = false;
+                mCanaryRef = new WeakReference<Object>(new Canary(this), mCanaryQueue);
+            }
+            return;
+        }
+        if (mCanaryCleared == 0 && mCanaryQueue.poll() != null) {
+            mCanaryCleared = now;
+        }
+        final long finalized = mCanaryFinalized;
+        if (finalized != 0) {
+            // The WeakReference is only seen at the next poll, the finalizer may have been
+            // quicker than that.
+            final long cleared = mCanaryCleared != 0 ? mCanaryCleared : finalized;
+            mQueueTime.record(Math.max(0, finalized - cleared));
+            mCanaryRef = null;
+            mNextCanary = now + mCanaryIntervalMs;
+        } else if (mCanaryCleared != 0 && !mCanaryWarned) {
+            final long waiting = now - mCanaryCleared;
+            if (waiting * 100 >= mTimeoutMs * mWarnPercent) {
+                mCanaryWarned = true;
+                mWarnings++;
+                Log.w(TAG, "finalizer queue backlog: waiting for " + waiting + "ms, depth "
+                        + mQueueDepth);
+                if (mListener != null) {
+                    mListener.onFinalizerBacklog(waiting, mQueueDepth);
+                }
+            }
+        }
+    }
+
+    private Histogram classStats(String className) {
+        Histogram stats = mClassStats.get(className);
+        if (stats == null) {
+            stats = new Histogram();
+            mClassStats.put(className, stats);
+        }
+        return stats;
+    }
+
+    private static String finalizingClass(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            if ("finalize".equals(frame.getMethodName())) {
+                return frame.getClassName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Walks the queue of references waiting for the daemon. Unsynchronized, so the count
+     * may be slightly off while the queue changes.
+     */
+    private int readQueueDepth() {
+        if (mFinalizerQueue == null) {
+            return -1;
+        }
+        try {
+            if (mQueueLengthField != null) {
+                return (int) mQueueLengthField.getLong(mFinalizerQueue);
+            }
+            Object ref = mQueueHeadField.get(mFinalizerQueue);
+            int depth = 0;
+            while (ref != null && depth < MAX_QUEUE_WALK) {
+                depth++;
+                final Object next = mQueueNextField.get(ref);
+                // ART marks the end of the queue with a reference pointing to itself.
+                if (next == ref) {
+                    break;
+                }
+                ref = next;
+            }
+            return depth;
+        } catch (Exception e) {
+            mFinalizerQueue = null;
+            return -1;
+        }
+    }
+
+    private void resolveDaemon() {
+        try {
+            final Class<?> clazz = Class.forName("java.lang.Daemons$FinalizerDaemon");
+            final Field instance = clazz.getDeclaredField("INSTANCE");
+            instance.setAccessible(true);
+            mFinalizerDaemon = instance.get(null);
+            final Field thread = declaredField(clazz.getSuperclass(), "thread");
+            if (thread != null) {
+                mFinalizerThread = (Thread) thread.get(mFinalizerDaemon);
+            }
+            mFinalizingObjectField = declaredField(clazz, "finalizingObject");
+            // Android P and later count finished finalizers.
+            final Field progress = declaredField(clazz, "progressCounter");
+            if (progress != null) {
+                mProgressCounter = (AtomicInteger) progress.get(mFinalizerDaemon);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "FinalizerDaemon not accessible: " + e);
+        }
+        if (mFinalizerThread == null) {
+            mFinalizerThread = findThread("FinalizerDaemon", "Finalizer");
+        }
+    }
+
+    private static Field declaredField(Class<?> clazz, String name) {
+        try {
+            final Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void resolveQueue() {
+        try {
+            Field queueField;
+            try {
+                queueField = Class.forName("java.lang.ref.FinalizerReference")
+                        .getDeclaredField("queue");
+            } catch (ClassNotFoundException e) {
+                // A plain JVM, e.g. in unit tests.
+                queueField = Class.forName("java.lang.ref.Finalizer").getDeclaredField("queue");
+            }
+            queueField.setAccessible(true);
+            final Object queue = queueField.get(null);
+            try {
+                final Field length = ReferenceQueue.class.getDeclaredField("queueLength");
+                length.setAccessible(true);
+                mQueueLengthField = length;
+            } catch (NoSuchFieldException e) {
+                final Field head = ReferenceQueue.class.getDeclaredField("head");
+                head.setAccessible(true);
+                final Field next = java.lang.ref.Reference.class.getDeclaredField("queueNext");
+                next.setAccessible(true);
+                mQueueHeadField = head;
+                mQueueNextField = next;
+            }
+            mFinalizerQueue = queue;
+        } catch (Exception e) {
+            Log.w(TAG, "finalizer queue not accessible: " + e);
+        }
+    }
+
+    private static Thread findThread(String... names) {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            for (String name : names) {
+                if (name.equals(t.getName())) {
+                    return t;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * ART reads the timeout from Daemons.MAX_FINALIZE_NANOS, newer releases from
+     * VMRuntime.getFinalizerTimeoutMs().
+     */
+    private static long readTimeoutMs() {
+        try {
+            final Class<?> runtime = Class.forName("dalvik.system.VMRuntime");
+            final Object instance = runtime.getDeclaredMethod("getRuntime").invoke(null);
+            final Method timeout = runtime.getDeclaredMethod("getFinalizerTimeoutMs");
+            return (Long) timeout.invoke(instance);
+        } catch (Exception e) {
+            // Older release, or not ART at all.
+        }
+        try {
+            final Field field = Class.forName("java.lang.Daemons")
+                    .getDeclaredField("MAX_FINALIZE_NANOS");
+            field.setAccessible(true);
+            return field.getLong(null) / 1000000;
+        } catch (Exception e) {
+            return DEFAULT_TIMEOUT_MS;
+        }
+    }
+
+    /**
+     * Queue depth, time in queue and the per-class finalize() durations, slowest first.
+     */
+    public synchronized String printCurrentState() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("finalizer: timeout ").append(mTimeoutMs).append("ms, ").append(mWarnings)
+                .append(" warnings, queue depth ").append(mQueueDepth)
+                .append(" (max ").append(mMaxQueueDepth).append(")");
+        if (mProgressCounter != null) {
+            sb.append(", ").append(mProgressCounter.get()).append(" finalized");
+        }
+        sb.append('\n');
+        sb.append("time in queue: ").append(mQueueTime).append('\n');
+        if (mCurrentClass != null) {
+            sb.append("finalizing ").append(mCurrentClass).append(" for ")
+                    .append(SystemClock.uptimeMillis() - mCurrentStart).append("ms\n");
+        }
+        final List<Map.Entry<String, Histogram>> entries = new ArrayList<>(mClassStats.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Histogram>>() {
+            @Override
+            public int compare(Map.Entry<String, Histogram> a, Map.Entry<String, Histogram> b) {
+                return Long.compare(b.getValue().maxMs, a.getValue().maxMs);
+            }
+        });
+        for (Map.Entry<String, Histogram> entry : entries) {
+            sb.append("  ").append(entry.getKey()).append(": ").append(entry.getValue())
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static class Canary {
+        private final FinalizerMonitor mMonitor;
+
+        Canary(FinalizerMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            mMonitor.mCanaryFinalized = SystemClock.uptimeMillis();
+            super.finalize();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.lang.chapter02;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times the messages of one looper and finds out where the slow ones spend their time.
+ * <p>
+ * The looper's thread calls {@link #messageBegin(String)} and {@link #messageEnd()} around
+ * every message, which only stores a timestamp. A second thread calls {@link #tick()} and
+ * sleeps for as long as it returns. Once a message runs longer than the slow threshold, every
+ * tick samples the looper thread's stack and counts how often each stack was seen; the
+ * stacks seen most often are where the message is stuck. A message still running at the
+ * report threshold, which should be below the 5s of an input ANR, is reported while it still
+ * runs, and every slow message again once it finished.
+ * <p>
+ * This class has no Android dependencies: time and stacks come from the {@link Clock} and
+ * the {@link StackSource}, so it can be driven by a simulated message loop.
+ * {@link MainLooperWatchdog} hooks it up to the main looper.
+ */
+public class LooperWatchdog {
+
+    public interface Clock {
+        long uptimeMillis();
+    }
+
+    public interface StackSource {
+        /**
+         * Current stack of the looper thread, innermost frame first.
+         */
+        StackTraceElement[] sample();
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread that calls {@link #tick()}.
+         */
+        void onReport(Report report);
+    }
+
+    public static class Blame {
+        /**
+         * Innermost frames of the stack, at most maxDepth of them.
+         */
+        public final StackTraceElement[] frames;
+        public int count;
+
+        Blame(StackTraceElement[] frames) {
+            this.frames = frames;
+        }
+    }
+
+    public static class Report {
+        public final String target;
+        public final long startUptime;
+        public final long durationMs;
+        /**
+         * False while the message is still running, i.e. for the report ahead of an ANR.
+         */
+        public final boolean finished;
+        public final int sampleCount;
+        /**
+         * Sampled stacks, most often seen first.
+         */
+        public final List<Blame> blames;
+
+        Report(String target, long startUptime, long durationMs, boolean finished,
+               int sampleCount, List<Blame> blames) {
+            this.target = target;
+            this.startUptime = startUptime;
+            this.durationMs = durationMs;
+            this.finished = finished;
+            this.sampleCount = sampleCount;
+            this.blames = blames;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(finished ? "slow message " : "message still running ")
+                    .append(target).append(" for ").append(durationMs).append("ms, ")
+                    .append(sampleCount).append(" samples");
+            for (Blame blame : blames) {
+                sb.append("\n  ").append(blame.count).append("/").append(sampleCount)
+                        .append(" samples:");
+                for (StackTraceElement frame : blame.frames) {
+                    sb.append("\n    at ").append(frame);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final Comparator<Blame> BY_COUNT = new Comparator<Blame>() {
+        @Override
+        public int compare(Blame a, Blame b) {
+            return b.count - a.count;
+        }
+    };
+
+    private final Clock mClock;
+    private final StackSource mStackSource;
+    private final Listener mListener;
+    private final long mSlowMs;
+    private final long mSampleIntervalMs;
+    private final long mReportMs;
+    private final int mMaxDepth;
+
+    // Guarded by this. The looper thread only ever holds the lock for a few stores.
+    private long mSequence;
+    private boolean mRunning;
+    private String mTarget;
+    private long mStartUptime;
+    private boolean mReported;
+    private final Map<List<StackTraceElement>, Blame> mBlames = new HashMap<>();
+    private int mSamples;
+    private final List<Report> mFinished = new ArrayList<>();
+
+    private long mMessageCount;
+    private long mSlowCount;
+    private long mReportCount;
+    private long mMaxDurationMs;
+
+    /**
+     * @param slowMs           messages running longer than this are sampled and reported
+     * @param sampleIntervalMs time between two stack samples of a slow message
+     * @param reportMs         a message running this long is reported before it finishes
+     * @param maxDepth         innermost frames that make up a stack when counting them
+     */
+    public LooperWatchdog(Clock clock, StackSource stackSource, Listener listener,
+                          long slowMs, long sampleIntervalMs, long reportMs, int maxDepth) {
+        mClock = clock;
+        mStackSource = stackSource;
+        mListener = listener;
+        mSlowMs = slowMs;
+        mSampleIntervalMs = sampleIntervalMs;
+        mReportMs = reportMs;
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * Called by the looper thread before it dispatches a message.
+     */
+    public void messageBegin(String target) {
+        final long now = mClock.uptimeMillis();
+        synchronized (this) {
+            mSequence++;
+            mRunning = true;
+            mTarget = target;
+            mStartUptime = now;
+            mReported = false;
+        }
+    }
+
+    /**
+     * Called by the looper thread after it dispatched a message.
+     */
+    public void messageEnd() {
+        final long now = mClock.uptimeMillis();
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            mMessageCount++;
+            final long duration = now - mStartUptime;
+            mMaxDurationMs = Math.max(mMaxDurationMs, duration);
+            if (duration >= mSlowMs) {
+                mSlowCount++;
+                mFinished.add(buildReport(duration, true));
+            }
+            mBlames.clear();
+            mSamples = 0;
+        }
+    }
+
+    /**
+     * Samples and reports the running message if needed. Called by the watching thread.
+     *
+     * @return milliseconds until the next call is needed
+     */
+    public long tick() {
+        List<Report> reports = null;
+        final long sequence;
+        final long elapsed;
+        synchronized (this) {
+            if (!mFinished.isEmpty()) {
+                reports = new ArrayList<>(mFinished);
+                mFinished.clear();
+            }
+            sequence = mSequence;
+            elapsed = mRunning ? mClock.uptimeMillis() - mStartUptime : -1;
+        }
+
+        long delay;
+        if (elapsed < 0) {
+            delay = mSlowMs;
+        } else if (elapsed < mSlowMs) {
+            delay = mSlowMs - elapsed;
+        } else {
+            // Taking the stack can take a while, so not while holding the lock.
+            final StackTraceElement[] stack = mStackSource.sample();
+            synchronized (this) {
+                if (mRunning && mSequence == sequence) {
+                    addSample(stack);
+                    final long now = mClock.uptimeMillis();
+                    if (!mReported && now - mStartUptime >= mReportMs) {
+                        mReported = true;
+                        if (reports == null) {
+                            reports = new ArrayList<>();
+                        }
+                        reports.add(buildReport(now - mStartUptime, false));
+                    }
+                }
+            }
+            delay = mSampleIntervalMs;
+        }
+
+        if (reports != null && mListener != null) {
+            for (Report report : reports) {
+                mListener.onReport(report);
+            }
+        }
+        return delay;
+    }
+
+    private void addSample(StackTraceElement[] stack) {
+        if (stack == null) {
+            return;
+        }
+        final List<StackTraceElement> key = new ArrayList<>(Math.min(stack.length, mMaxDepth));
+        for (int i = 0; i < stack.length && i < mMaxDepth; i++) {
+            key.add(stack[i]);
+        }
+        Blame blame = mBlames.get(key);
+        if (blame == null) {
+            blame = new Blame(key.toArray(new StackTraceElement[0]));
+            mBlames.put(key, blame);
+        }
+        blame.count++;
+        mSamples++;
+    }
+
+    private Report buildReport(long durationMs, boolean finished) {
+        mReportCount++;
+        final List<Blame> blames = new ArrayList<>(mBlames.size());
+        for (Blame blame : mBlames.values()) {
+            final Blame copy = new Blame(blame.frames);
+            copy.count = blame.count;
+            blames.add(copy);
+        }
+        Collections.sort(blames, BY_COUNT);
+        return new Report(mTarget, mStartUptime, durationMs, finished, mSamples, blames);
+    }
+
+    public synchronized long getMessageCount() {
+        return mMessageCount;
+    }
+
+    public synchronized long getSlowCount() {
+        return mSlowCount;
+    }
+
+    public synchronized String printCurrentState() {
+        return "looper watchdog: " + mMessageCount + " messages, " + mSlowCount + " slower than "
+                + mSlowMs + "ms, " + mReportCount + " reports, longest " + mMaxDurationMs + "ms"
+                + (mRunning ? ", running " + mTarget + " for "
+                + (mClock.uptimeMillis() - mStartUptime) + "ms" : "");
+    }
+}
@@ -4,16 +4,29 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import android.os.Bundle;
 import android.os.Handler;
+import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
 import android.widget.Toast;
 
 public class MainActivity extends AppCompatActivity {
+    // 在超时之前报出慢的 finalize()，而不是关掉 watchdog
+    private static final FinalizerMonitor sFinalizerMonitor = new FinalizerMonitor(null);
+    // 主线程的慢消息在 ANR 之前带着堆栈报出来
+    private static MainLooperWatchdog sLooperWatchdog;
+    // ReferenceQueueDaemon、FinalizerDaemon、HeapTaskDaemon 跟不上时提前报出来
+    private static final RuntimeDaemonMonitor sDaemonMonitor = new RuntimeDaemonMonitor(null);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        sFinalizerMonitor.start();
+        sDaemonMonitor.start();
+        if (sLooperWatchdog == null) {
+            sLooperWatchdog = new MainLooperWatchdog(null);
+            sLooperWatchdog.start();
+        }
 
         findViewById(R.id.kill_watchdog).setOnClickListener(new View.OnClickListener() {
             @Override
@@ -44,6 +57,21 @@ public class MainActivity extends AppCompatActivity {
                 Toast.makeText(MainActivity.this, "请等待。。。。", Toast.LENGTH_SHORT).show();
             }
         });
+
+        findViewById(R.id.cleaner_benchmark).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // 会多次触发 GC，放到子线程里跑，结果看 logcat
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.i("CleanerBenchmark", new CleanerBenchmark().run());
+                    }
+                }, "CleanerBenchmark").start();
+
+                Toast.makeText(MainActivity.this, "请等待。。。。", Toast.LENGTH_SHORT).show();
+            }
+        });
         resetWatchDogStatus();
     }
 
@@ -53,6 +81,7 @@ public class MainActivity extends AppCompatActivity {
 
     private void resetWatchDogStatus() {
         boolean alive = WatchDogKiller.checkWatchDogAlive();
+        Log.i("RuntimeDaemonMonitor", sDaemonMonitor.printCurrentState());
         TextView mStatusView = findViewById(R.id.watch_status);
         mStatusView.setText(alive ? "ON" : "OFF");
     }
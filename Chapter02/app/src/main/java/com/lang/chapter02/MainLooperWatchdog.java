@@ -0,0 +1,109 @@
+package com.lang.chapter02;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Printer;
+
+/**
+ * Watches the main looper with a {@link LooperWatchdog}.
+ * <p>
+ * Message timing comes from the looper's message logging, which prints a line before and
+ * after every message. That is the only hook a looper offers, and setting it replaces any
+ * printer set before. The stacks are sampled on a thread of its own.
+ */
+public class MainLooperWatchdog {
+    private static final String TAG = "LooperWatchdog";
+    private static final String DISPATCHING = ">>>>> Dispatching to ";
+    private static final String FINISHED = "<<<<< Finished to ";
+
+    private final LooperWatchdog mWatchdog;
+    private final Thread mMainThread;
+    private HandlerThread mThread;
+    private volatile Handler mHandler;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            final long delay = mWatchdog.tick();
+            final Handler handler = mHandler;
+            if (handler != null) {
+                handler.postDelayed(this, delay);
+            }
+        }
+    };
+
+    private final Printer mPrinter = new Printer() {
+        @Override
+        public void println(String x) {
+            if (x.startsWith(DISPATCHING)) {
+                mWatchdog.messageBegin(x.substring(DISPATCHING.length()));
+            } else if (x.startsWith(FINISHED)) {
+                mWatchdog.messageEnd();
+            }
+        }
+    };
+
+    /**
+     * @param listener receives the reports, null to log them
+     */
+    public MainLooperWatchdog(long slowMs, long sampleIntervalMs, long reportMs,
+                              LooperWatchdog.Listener listener) {
+        mMainThread = Looper.getMainLooper().getThread();
+        if (listener == null) {
+            listener = new LooperWatchdog.Listener() {
+                @Override
+                public void onReport(LooperWatchdog.Report report) {
+                    Log.w(TAG, report.toString());
+                }
+            };
+        }
+        mWatchdog = new LooperWatchdog(new LooperWatchdog.Clock() {
+            @Override
+            public long uptimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
+        }, new LooperWatchdog.StackSource() {
+            @Override
+            public StackTraceElement[] sample() {
+                return mMainThread.getStackTrace();
+            }
+        }, listener, slowMs, sampleIntervalMs, reportMs, 16);
+    }
+
+    public MainLooperWatchdog(LooperWatchdog.Listener listener) {
+        // Reported a second ahead of the 5s input dispatch timeout.
+        this(300, 50, 4000, listener);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread("looper-watchdog");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mTick);
+        Looper.getMainLooper().setMessageLogging(mPrinter);
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        Looper.getMainLooper().setMessageLogging(null);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+    }
+
+    public LooperWatchdog getWatchdog() {
+        return mWatchdog;
+    }
+
+    public String printCurrentState() {
+        return mWatchdog.printCurrentState();
+    }
+}
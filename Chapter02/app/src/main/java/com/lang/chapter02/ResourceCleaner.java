@@ -0,0 +1,288 @@
+package com.lang.chapter02;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Releases resources of unreachable objects through phantom references instead of
+ * finalize().
+ * <p>
+ * A finalizable object such as {@link GhostObject} survives one more GC, because finalize()
+ * must run before its memory can be reclaimed. All of those calls also share the single
+ * FinalizerDaemon, and one slow finalize() stalls the rest until the watchdog kills the
+ * process. Here the object's memory goes with the first GC that finds it unreachable. Only
+ * the registered action runs afterwards, and it must not reference the object. The actions
+ * run on a bounded pool: a reaper thread takes the references off the queue and hands them
+ * over. When the pool's queue is full, the reaper runs the action itself, so a backlog slows
+ * reaping down instead of growing without bound.
+ * <pre>
+ * final long handle = nativeOpen();
+ * cleaner.register(this, new Runnable() {
+ *     public void run() {
+ *         nativeClose(handle);
+ *     }
+ * });
+ * </pre>
+ * Actions that run longer than the budget are counted and logged. Actions cannot be
+ * interrupted, so a slow one still occupies its worker, but it no longer holds up the
+ * others the way a slow finalize() does.
+ */
+public class ResourceCleaner {
+    private static final String TAG = "ResourceCleaner";
+
+    // Histogram buckets in microseconds: [0, 1), [1, 2), [2, 4) ... [2^22, inf).
+    private static final int BUCKETS = 24;
+
+    /**
+     * Returned by {@link #register(Object, Runnable)} to release the resource explicitly.
+     */
+    public interface Cleanable {
+        /**
+         * Runs the action now, on the calling thread, unless it already ran. The object is
+         * no longer watched afterwards.
+         */
+        void clean();
+    }
+
+    private final class Ref extends PhantomReference<Object> implements Cleanable, Runnable {
+        private final Runnable mAction;
+        private final AtomicInteger mState = new AtomicInteger();
+        // Registered references are linked so that they stay reachable themselves.
+        Ref mPrev;
+        Ref mNext;
+
+        Ref(Object referent, Runnable action) {
+            super(referent, mQueue);
+            mAction = action;
+        }
+
+        @Override
+        public void clean() {
+            if (mState.compareAndSet(0, 1)) {
+                unlink(this);
+                clear();
+                mCleanedExplicitly.incrementAndGet();
+                runAction(mAction);
+            }
+        }
+
+        /**
+         * Runs on the pool after the object became unreachable.
+         */
+        @Override
+        public void run() {
+            mPending.decrementAndGet();
+            if (mState.compareAndSet(0, 1)) {
+                unlink(this);
+                mCleanedByGc.incrementAndGet();
+                runAction(mAction);
+            }
+        }
+    }
+
+    private final String mName;
+    private final long mBudgetNanos;
+    private final ReferenceQueue<Object> mQueue = new ReferenceQueue<>();
+    private final ThreadPoolExecutor mExecutor;
+    private final Thread mReaper;
+    private final Ref mList;
+    private volatile boolean mShutdown;
+
+    private final AtomicLong mRegistered = new AtomicLong();
+    private final AtomicLong mCleanedExplicitly = new AtomicLong();
+    private final AtomicLong mCleanedByGc = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mOverBudget = new AtomicLong();
+    private final AtomicLong mRanOnReaper = new AtomicLong();
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+    private final AtomicLongArray mDurations = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param threads       workers that run the actions
+     * @param queueCapacity actions that may wait for a worker before the reaper runs them
+     * @param budgetMs      how long one action may take before it counts as over budget
+     */
+    public ResourceCleaner(String name, int threads, int queueCapacity, long budgetMs) {
+        mName = name;
+        mBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        mList = new Ref(null, null);
+        mList.mPrev = mList;
+        mList.mNext = mList;
+        final AtomicInteger counter = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, mName + "-cleaner-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                mRanOnReaper.incrementAndGet();
+                r.run();
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+        mReaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reap();
+            }
+        }, mName + "-reaper");
+        mReaper.setDaemon(true);
+        mReaper.start();
+    }
+
+    public ResourceCleaner(String name) {
+        this(name, 2, 256, 100);
+    }
+
+    /**
+     * Runs {@code action} once {@code object} is phantom reachable. The action must not
+     * reference the object, or it will never become unreachable.
+     */
+    public Cleanable register(Object object, Runnable action) {
+        if (object == null || action == null) {
+            throw new NullPointerException();
+        }
+        if (mShutdown) {
+            throw new IllegalStateException(mName + " is shut down");
+        }
+        final Ref ref = new Ref(object, action);
+        link(ref);
+        mRegistered.incrementAndGet();
+        return ref;
+    }
+
+    /**
+     * Stops the reaper and the workers. Actions already handed to the workers still run,
+     * those of objects that become unreachable afterwards do not. {@link Cleanable#clean()}
+     * keeps working.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        mReaper.interrupt();
+        mExecutor.shutdown();
+    }
+
+    private void reap() {
+        while (!mShutdown) {
+            final Ref ref;
+            try {
+                ref = (Ref) mQueue.remove();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            mPending.incrementAndGet();
+            mExecutor.execute(ref);
+        }
+    }
+
+    private void runAction(Runnable action) {
+        final long start = System.nanoTime();
+        try {
+            action.run();
+        } catch (Throwable t) {
+            mFailures.incrementAndGet();
+            Log.e(TAG, mName + ": cleanup " + action.getClass().getName() + " failed", t);
+        }
+        final long duration = System.nanoTime() - start;
+        final long micros = duration / 1000;
+        mDurations.incrementAndGet(micros == 0 ? 0
+                : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        mTotalNanos.addAndGet(duration);
+        long max;
+        while (duration > (max = mMaxNanos.get())) {
+            if (mMaxNanos.compareAndSet(max, duration)) {
+                break;
+            }
+        }
+        if (duration > mBudgetNanos) {
+            mOverBudget.incrementAndGet();
+            Log.w(TAG, mName + ": cleanup " + action.getClass().getName() + " took "
+                    + TimeUnit.NANOSECONDS.toMillis(duration) + "ms, budget is "
+                    + TimeUnit.NANOSECONDS.toMillis(mBudgetNanos) + "ms");
+        }
+    }
+
+    private synchronized void link(Ref ref) {
+        ref.mPrev = mList;
+        ref.mNext = mList.mNext;
+        mList.mNext.mPrev = ref;
+        mList.mNext = ref;
+    }
+
+    private synchronized void unlink(Ref ref) {
+        ref.mPrev.mNext = ref.mNext;
+        ref.mNext.mPrev = ref.mPrev;
+        ref.mPrev = ref;
+        ref.mNext = ref;
+    }
+
+    public long getRegisteredCount() {
+        return mRegistered.get();
+    }
+
+    /**
+     * Actions that ran, explicitly or after a GC.
+     */
+    public long getCleanedCount() {
+        return mCleanedExplicitly.get() + mCleanedByGc.get();
+    }
+
+    /**
+     * Actions whose objects are unreachable but that did not run yet.
+     */
+    public int getPendingCount() {
+        return mPending.get();
+    }
+
+    /**
+     * Upper bound in microseconds of the duration bucket that holds the percentile.
+     */
+    public long percentileMicros(int percent) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mDurations.get(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (count * percent + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mDurations.get(i);
+            if (seen >= rank) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return mMaxNanos.get() / 1000;
+    }
+
+    public String printCurrentState() {
+        final long cleaned = getCleanedCount();
+        return mName + ": " + mRegistered.get() + " registered, " + cleaned + " cleaned ("
+                + mCleanedExplicitly.get() + " explicitly, " + mCleanedByGc.get() + " after gc), "
+                + mPending.get() + " pending, " + mRanOnReaper.get() + " ran on the reaper, "
+                + mFailures.get() + " failed, " + mOverBudget.get() + " over budget; took avg "
+                + (cleaned > 0 ? mTotalNanos.get() / cleaned / 1000 : 0) + "us, p50 "
+                + percentileMicros(50) + "us, p99 " + percentileMicros(99) + "us, max "
+                + mMaxNanos.get() / 1000 + "us"
+                + " (at " + SystemClock.uptimeMillis() + ")";
+    }
+}
@@ -0,0 +1,154 @@
+package com.lang.chapter02;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Reflective handle to one of the daemons in java.lang.Daemons, resolved once.
+ * <p>
+ * Each daemon is a singleton INSTANCE of a subclass of Daemons$Daemon, which keeps its
+ * thread in a field and answers isRunning(). Where the runtime does not have them, e.g. on
+ * a plain JVM, the handle still works, it only knows less: the thread is then looked up by
+ * name, and {@link #isRunning()} answers false; {@link #isResolved()} tells the two apart.
+ */
+public class RuntimeDaemon {
+    private static final String TAG = "RuntimeDaemon";
+
+    public static final RuntimeDaemon REFERENCE_QUEUE = new RuntimeDaemon("ReferenceQueueDaemon");
+    public static final RuntimeDaemon FINALIZER = new RuntimeDaemon("FinalizerDaemon");
+    public static final RuntimeDaemon FINALIZER_WATCHDOG =
+            new RuntimeDaemon("FinalizerWatchdogDaemon");
+    public static final RuntimeDaemon HEAP_TASK = new RuntimeDaemon("HeapTaskDaemon");
+
+    // The kernel keeps 15 characters of a thread name.
+    private static final int COMM_LENGTH = 15;
+
+    private final String mName;
+    private Object mInstance;
+    private Method mIsRunning;
+    private Field mThreadField;
+    private Thread mThread;
+    private int mTid = -1;
+
+    private RuntimeDaemon(String name) {
+        mName = name;
+        try {
+            final Class<?> clazz = Class.forName("java.lang.Daemons$" + name);
+            final Field instance = clazz.getDeclaredField("INSTANCE");
+            instance.setAccessible(true);
+            mInstance = instance.get(null);
+            final Method isRunning = clazz.getSuperclass().getDeclaredMethod("isRunning");
+            isRunning.setAccessible(true);
+            mIsRunning = isRunning;
+            final Field thread = clazz.getSuperclass().getDeclaredField("thread");
+            thread.setAccessible(true);
+            mThreadField = thread;
+        } catch (Exception e) {
+            Log.w(TAG, name + " not accessible: " + e);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Whether {@link #isRunning()} can ask the runtime.
+     */
+    public boolean isResolved() {
+        return mIsRunning != null;
+    }
+
+    /**
+     * Whether the runtime considers the daemon started and not stopped.
+     */
+    public boolean isRunning() {
+        if (mIsRunning == null) {
+            return false;
+        }
+        try {
+            return (boolean) mIsRunning.invoke(mInstance);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * The daemon's thread, or null if it is not running or cannot be found.
+     */
+    public synchronized Thread getThread() {
+        if (mThreadField != null) {
+            try {
+                final Thread thread = (Thread) mThreadField.get(mInstance);
+                if (thread != mThread) {
+                    mThread = thread;
+                    mTid = -1;
+                }
+                return thread;
+            } catch (IllegalAccessException e) {
+                mThreadField = null;
+            }
+        }
+        if (mThread == null || !mThread.isAlive()) {
+            mThread = null;
+            mTid = -1;
+            for (Thread t : Thread.getAllStackTraces().keySet()) {
+                if (mName.equals(t.getName())) {
+                    mThread = t;
+                    break;
+                }
+            }
+        }
+        return mThread;
+    }
+
+    /**
+     * Linux thread id of the daemon, found by its name in /proc/self/task. -1 if none.
+     */
+    public synchronized int getTid() {
+        final Thread thread = getThread();
+        if (thread == null) {
+            return -1;
+        }
+        if (mTid > 0 && new File("/proc/self/task/" + mTid).exists()) {
+            return mTid;
+        }
+        mTid = -1;
+        final String comm = mName.length() > COMM_LENGTH
+                ? mName.substring(0, COMM_LENGTH) : mName;
+        final File[] tasks = new File("/proc/self/task").listFiles();
+        if (tasks == null) {
+            return -1;
+        }
+        final byte[] buffer = new byte[64];
+        for (File task : tasks) {
+            if (comm.equals(readComm(new File(task, "comm"), buffer))) {
+                try {
+                    mTid = Integer.parseInt(task.getName());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                break;
+            }
+        }
+        return mTid;
+    }
+
+    private static String readComm(File file, byte[] buffer) {
+        try (FileInputStream in = new FileInputStream(file)) {
+            final int length = in.read(buffer);
+            if (length <= 0) {
+                return null;
+            }
+            final int end = buffer[length - 1] == '\n' ? length - 1 : length;
+            return new String(buffer, 0, end, "UTF-8");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.lang.chapter02;
+
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+
+/**
+ * Periodically checks the runtime's daemon threads: whether they run, their thread state,
+ * how much CPU they use and how far behind their work is.
+ * <p>
+ * Under allocation pressure the daemons fall behind before anything fails. References wait
+ * to be enqueued, objects wait to be finalized, and native memory held by either is not
+ * released. The work they have pending is not visible, so its latency is measured with
+ * canaries:
+ * <ul>
+ * <li>ReferenceQueueDaemon: a WeakReference with a queue. The GC clears it, then the daemon
+ * puts it on the queue. The time between the two is the daemon's latency. The references
+ * still waiting for the daemon are counted where reflection allows it.</li>
+ * <li>FinalizerDaemon: an object with a finalize() and a WeakReference to it. Both are cleared
+ * by the same GC, and finalize() runs once the daemon gets to it.
+ * {@link FinalizerMonitor} goes further, per class.</li>
+ * <li>HeapTaskDaemon runs heap trims and concurrent GCs, and its queue is native. Instead,
+ * the time it has been busy without a break is tracked: the thread was runnable and used CPU
+ * at every poll.</li>
+ * <li>FinalizerWatchdogDaemon only has to be alive.</li>
+ * </ul>
+ * The canaries do not force GCs, so they measure the latency of the GCs the app triggers
+ * anyway.
+ */
+public class RuntimeDaemonMonitor {
+    private static final String TAG = "RuntimeDaemonMonitor";
+    // The queue is walked up to here; a longer queue is reported as at least this long. The
+    // walk holds the lock the ReferenceQueueDaemon and the GC enqueue under, keep it short.
+    private static final int MAX_QUEUE_WALK = 1000;
+
+    public interface Listener {
+        /**
+         * A daemon stopped, or its work is late by more than the warning threshold. Called
+         * once until the daemon recovers, on the monitor thread.
+         */
+        void onDaemonUnhealthy(DaemonStatus status, String reason);
+    }
+
+    public static class DaemonStatus {
+        public final RuntimeDaemon daemon;
+        public int tid = -1;
+        public boolean running;
+        public Thread.State state;
+        /**
+         * CPU time of the thread in total, and as a share of the last poll interval.
+         */
+        public long cpuMs = -1;
+        public int cpuPercent = -1;
+        /**
+         * How long the current work has been pending, or the daemon busy for the heap task
+         * daemon. 0 if none, -1 if not measured for this daemon.
+         */
+        public long pendingMs = -1;
+        public long lastLatencyMs = -1;
+        public long maxLatencyMs = -1;
+        public long latencyCount;
+        /**
+         * References waiting for the daemon, -1 if not measured. Capped at 1000, a value of
+         * 1000 means at least that many.
+         */
+        public int queueDepth = -1;
+        boolean unhealthy;
+        long baseCpuMs = -1;
+
+        DaemonStatus(RuntimeDaemon daemon) {
+            this.daemon = daemon;
+        }
+
+        void recordLatency(long ms) {
+            lastLatencyMs = ms;
+            maxLatencyMs = Math.max(maxLatencyMs, ms);
+            latencyCount++;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(daemon.getName()).append(" tid ").append(tid)
+                    .append(running ? " running " : " stopped ").append(state)
+                    .append(", cpu ").append(cpuMs).append("ms (").append(cpuPercent).append("%)");
+            if (pendingMs >= 0) {
+                sb.append(", pending ").append(pendingMs).append("ms");
+            }
+            if (latencyCount > 0) {
+                sb.append(", latency last ").append(lastLatencyMs).append("ms max ")
+                        .append(maxLatencyMs).append("ms over ").append(latencyCount);
+            }
+            if (queueDepth >= MAX_QUEUE_WALK) {
+                sb.append(", queue >= ").append(MAX_QUEUE_WALK);
+            } else if (queueDepth >= 0) {
+                sb.append(", queue ").append(queueDepth);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final long mPollIntervalMs;
+    private final long mWarnMs;
+    private final Listener mListener;
+    private final long mJiffyMillis;
+    private final byte[] mStatBuffer = new byte[512];
+
+    private final DaemonStatus mReferenceQueue = new DaemonStatus(RuntimeDaemon.REFERENCE_QUEUE);
+    private final DaemonStatus mFinalizer = new DaemonStatus(RuntimeDaemon.FINALIZER);
+    private final DaemonStatus mWatchdog = new DaemonStatus(RuntimeDaemon.FINALIZER_WATCHDOG);
+    private final DaemonStatus mHeapTask = new DaemonStatus(RuntimeDaemon.HEAP_TASK);
+    private final DaemonStatus[] mStatuses = {mReferenceQueue, mFinalizer, mWatchdog, mHeapTask};
+
+    // References waiting for the ReferenceQueueDaemon, where reflection allows it.
+    private Field mUnenqueuedField;
+    private Field mPendingNextField;
+
+    // Canaries, monitor thread only.
+    private final ReferenceQueue<Object> mQueue = new ReferenceQueue<>();
+    private WeakReference<Object> mQueueCanary;
+    private long mQueueCanaryCleared;
+    private WeakReference<Object> mFinalizerCanary;
+    private long mFinalizerCanaryCleared;
+    volatile long mFinalizerCanaryFinalized;
+    private long mHeapTaskBusySince;
+    private long mLastPoll;
+
+    private volatile Thread mThread;
+
+    /**
+     * @param pollIntervalMs how often the daemons are checked
+     * @param warnMs         pending work older than this is reported
+     */
+    public RuntimeDaemonMonitor(long pollIntervalMs, long warnMs, Listener listener) {
+        mPollIntervalMs = pollIntervalMs;
+        mWarnMs = warnMs;
+        mListener = listener;
+        final long hz = Os.sysconf(OsConstants._SC_CLK_TCK);
+        mJiffyMillis = hz > 0 ? 1000 / hz : 10;
+        mReferenceQueue.pendingMs = 0;
+        mFinalizer.pendingMs = 0;
+        mHeapTask.pendingMs = 0;
+        try {
+            mUnenqueuedField = ReferenceQueue.class.getDeclaredField("unenqueued");
+            mUnenqueuedField.setAccessible(true);
+            mPendingNextField = Reference.class.getDeclaredField("pendingNext");
+            mPendingNextField.setAccessible(true);
+        } catch (Exception e) {
+            mUnenqueuedField = null;
+        }
+    }
+
+    public RuntimeDaemonMonitor(Listener listener) {
+        this(1000, 2000, listener);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        final Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void loop() {
+        final Thread self = Thread.currentThread();
+        while (mThread == self) {
+            poll();
+            try {
+                Thread.sleep(mPollIntervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks every daemon once. Called by the monitor thread, can also be called directly.
+     */
+    public synchronized void poll() {
+        final long now = SystemClock.uptimeMillis();
+        final long interval = mLastPoll > 0 ? now - mLastPoll : 0;
+        mLastPoll = now;
+        for (DaemonStatus status : mStatuses) {
+            final Thread thread = status.daemon.getThread();
+            status.running = status.daemon.isResolved() ? status.daemon.isRunning()
+                    : thread != null && thread.isAlive();
+            status.state = thread != null ? thread.getState() : null;
+            status.tid = status.daemon.getTid();
+            final long cpuMs = status.tid > 0 ? readCpuMs(status.tid) : -1;
+            status.cpuPercent = cpuMs >= 0 && status.baseCpuMs >= 0 && interval > 0
+                    ? (int) ((cpuMs - status.baseCpuMs) * 100 / interval) : -1;
+            status.cpuMs = cpuMs;
+            status.baseCpuMs = cpuMs;
+        }
+        pollReferenceQueue(now);
+        pollFinalizer(now);
+        pollHeapTask(now);
+        for (DaemonStatus status : mStatuses) {
+            check(status);
+        }
+    }
+
+    private void pollReferenceQueue(long now) {
+        if (mQueueCanary == null) {
+            mQueueCanary = new WeakReference<>(new Object(), mQueue);
+            mQueueCanaryCleared = 0;
+        } else if (mQueue.poll() != null) {
+            // Cleared and enqueued between two polls counts as half a poll.
+            final long cleared = mQueueCanaryCleared != 0 ? mQueueCanaryCleared
+                    : now - mPollIntervalMs / 2;
+            mReferenceQueue.recordLatency(Math.max(0, now - cleared));
+            mQueueCanary = null;
+        } else if (mQueueCanaryCleared == 0 && mQueueCanary.get() == null) {
+            mQueueCanaryCleared = now;
+        }
+        mReferenceQueue.pendingMs = mQueueCanary != null && mQueueCanaryCleared != 0
+                ? now - mQueueCanaryCleared : 0;
+        mReferenceQueue.queueDepth = readUnenqueuedDepth();
+    }
+
+    private void pollFinalizer(long now) {
+        if (mFinalizerCanary == null) {
+            mFinalizerCanaryFinalized = 0;
+            mFinalizerCanaryCleared = 0;
+            mFinalizerCanary = new WeakReference<Object>(new Canary(this));
+            return;
+        }
+        final long finalized = mFinalizerCanaryFinalized;
+        if (finalized != 0) {
+            final long cleared = mFinalizerCanaryCleared != 0 ? mFinalizerCanaryCleared : finalized;
+            mFinalizer.recordLatency(Math.max(0, finalized - cleared));
+            mFinalizerCanary = null;
+        } else if (mFinalizerCanaryCleared == 0 && mFinalizerCanary.get() == null) {
+            mFinalizerCanaryCleared = now;
+        }
+        mFinalizer.pendingMs = mFinalizerCanary != null && mFinalizerCanaryCleared != 0
+                ? now - mFinalizerCanaryCleared : 0;
+    }
+
+    private void pollHeapTask(long now) {
+        final boolean busy = mHeapTask.state == Thread.State.RUNNABLE && mHeapTask.cpuPercent > 0;
+        if (!busy) {
+            if (mHeapTaskBusySince != 0) {
+                mHeapTask.recordLatency(now - mHeapTaskBusySince);
+            }
+            mHeapTaskBusySince = 0;
+        } else if (mHeapTaskBusySince == 0) {
+            mHeapTaskBusySince = now - mPollIntervalMs;
+        }
+        mHeapTask.pendingMs = mHeapTaskBusySince != 0 ? now - mHeapTaskBusySince : 0;
+    }
+
+    private void check(DaemonStatus status) {
+        String reason = null;
+        if (status.daemon == RuntimeDaemon.FINALIZER_WATCHDOG && !status.running) {
+            // The watchdog may have been stopped on purpose, see WatchDogKiller. Daemon.stop()
+            // also clears its thread, so this is shown as stopped rather than reported.
+        } else if (status.daemon.getThread() == null) {
+            reason = "thread not found";
+        } else if (!status.running) {
+            reason = "not running";
+        } else if (status.pendingMs > mWarnMs) {
+            reason = (status == mHeapTask ? "busy for " : "work pending for ")
+                    + status.pendingMs + "ms";
+        }
+        if (reason == null) {
+            status.unhealthy = false;
+        } else if (!status.unhealthy) {
+            status.unhealthy = true;
+            Log.w(TAG, status + ": " + reason);
+            if (mListener != null) {
+                mListener.onDaemonUnhealthy(status, reason);
+            }
+        }
+    }
+
+    /**
+     * utime + stime from /proc/self/task/tid/stat.
+     */
+    private long readCpuMs(int tid) {
+        final int length;
+        try (FileInputStream in = new FileInputStream("/proc/self/task/" + tid + "/stat")) {
+            length = in.read(mStatBuffer);
+        } catch (IOException e) {
+            return -1;
+        }
+        // The name in parentheses may contain spaces, count fields after the last ')'.
+        int i = length - 1;
+        while (i >= 0 && mStatBuffer[i] != ')') {
+            i--;
+        }
+        if (i < 0) {
+            return -1;
+        }
+        // state is field 3, utime field 14 and stime field 15.
+        int field = 2;
+        long utime = 0;
+        long stime = 0;
+        for (i++; i < length && field <= 15; i++) {
+            final byte b = mStatBuffer[i];
+            if (b == ' ') {
+                field++;
+            } else if (b >= '0' && b <= '9') {
+                if (field == 14) {
+                    utime = utime * 10 + (b - '0');
+                } else if (field == 15) {
+                    stime = stime * 10 + (b - '0');
+                }
+            }
+        }
+        return (utime + stime) * mJiffyMillis;
+    }
+
+    /**
+     * Walks the circular list of references cleared by the GC but not yet enqueued.
+     */
+    private int readUnenqueuedDepth() {
+        if (mUnenqueuedField == null) {
+            return -1;
+        }
+        try {
+            synchronized (ReferenceQueue.class) {
+                final Object head = mUnenqueuedField.get(null);
+                if (head == null) {
+                    return 0;
+                }
+                int depth = 1;
+                Object ref = mPendingNextField.get(head);
+                while (ref != head && ref != null && depth < MAX_QUEUE_WALK) {
+                    depth++;
+                    ref = mPendingNextField.get(ref);
+                }
+                return depth;
+            }
+        } catch (Exception e) {
+            mUnenqueuedField = null;
+            return -1;
+        }
+    }
+
+    public synchronized String printCurrentState() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("runtime daemons:");
+        for (DaemonStatus status : mStatuses) {
+            sb.append("\n  ").append(status);
+        }
+        return sb.toString();
+    }
+
+    private static class Canary {
+        private final RuntimeDaemonMonitor mMonitor;
+
+        Canary(RuntimeDaemonMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            mMonitor.mFinalizerCanaryFinalized = SystemClock.uptimeMillis();
+            super.finalize();
+        }
+    }
+}
@@ -11,21 +11,9 @@ public class WatchDogKiller {
     private static final String TAG = "WatchDogKiller";
     private static volatile boolean sWatchdogStopped = false;
 
+    // 反射只在 RuntimeDaemon 里做一次
     public static boolean checkWatchDogAlive() {
-        final Class clazz;
-        try {
-            clazz = Class.forName("java.lang.Daemons$FinalizerWatchdogDaemon");
-            final Field field = clazz.getDeclaredField("INSTANCE");
-            field.setAccessible(true);
-            final Object watchdog = field.get(null);
-            Method isRunningMethod = clazz.getSuperclass().getDeclaredMethod("isRunning");
-            isRunningMethod.setAccessible(true);
-            boolean isRunning = (boolean) isRunningMethod.invoke(watchdog);
-            return isRunning;
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return false;
+        return RuntimeDaemon.FINALIZER_WATCHDOG.isRunning();
     }
 
     // Android P 以后不能反射FinalizerWatchdogDaemon
@@ -0,0 +1,148 @@
+package com.lang.chapter02;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link LooperWatchdog} with a simulated clock and message loop.
+ */
+public class LooperWatchdogTest {
+    private static final StackTraceElement[] IO_STACK = {
+            new StackTraceElement("java.io.FileOutputStream", "write", "FileOutputStream.java", 1),
+            new StackTraceElement("com.lang.chapter02.Sample", "save", "Sample.java", 10),
+    };
+    private static final StackTraceElement[] GC_STACK = {
+            new StackTraceElement("java.lang.Runtime", "gc", "Runtime.java", 1),
+            new StackTraceElement("com.lang.chapter02.Sample", "testGc", "Sample.java", 20),
+    };
+
+    private long mNow;
+    private StackTraceElement[] mStack;
+    private Runnable mDuringSample;
+    private final List<LooperWatchdog.Report> mReports = new ArrayList<>();
+    private LooperWatchdog mWatchdog;
+
+    @Before
+    public void setUp() {
+        mNow = 1000;
+        mWatchdog = new LooperWatchdog(new LooperWatchdog.Clock() {
+            @Override
+            public long uptimeMillis() {
+                return mNow;
+            }
+        }, new LooperWatchdog.StackSource() {
+            @Override
+            public StackTraceElement[] sample() {
+                if (mDuringSample != null) {
+                    mDuringSample.run();
+                }
+                return mStack;
+            }
+        }, new LooperWatchdog.Listener() {
+            @Override
+            public void onReport(LooperWatchdog.Report report) {
+                mReports.add(report);
+            }
+        }, 300, 50, 4000, 16);
+    }
+
+    /**
+     * Runs one message of {@code durationMs}, ticking the watchdog whenever it asks to.
+     */
+    private void runMessage(String target, long durationMs, StackTraceElement[]... stacks) {
+        mWatchdog.messageBegin(target);
+        final long end = mNow + durationMs;
+        final long start = mNow;
+        long next = mNow + mWatchdog.tick();
+        while (next < end) {
+            mNow = next;
+            final int phase = (int) ((mNow - start) * stacks.length / durationMs);
+            mStack = stacks.length > 0 ? stacks[phase] : null;
+            next = mNow + mWatchdog.tick();
+        }
+        mNow = end;
+        mWatchdog.messageEnd();
+    }
+
+    @Test
+    public void fastMessagesAreNotReported() {
+        for (int i = 0; i < 100; i++) {
+            runMessage("fast", 16, IO_STACK);
+        }
+        mWatchdog.tick();
+        assertEquals(100, mWatchdog.getMessageCount());
+        assertEquals(0, mWatchdog.getSlowCount());
+        assertTrue(mReports.isEmpty());
+    }
+
+    @Test
+    public void slowMessageIsReportedWithBlame() {
+        runMessage("slow", 1300, IO_STACK, GC_STACK, GC_STACK, GC_STACK);
+        assertTrue(mReports.isEmpty());
+        mWatchdog.tick();
+
+        assertEquals(1, mReports.size());
+        final LooperWatchdog.Report report = mReports.get(0);
+        assertTrue(report.finished);
+        assertEquals("slow", report.target);
+        assertEquals(1300, report.durationMs);
+        // Sampled every 50ms from 300ms on.
+        assertEquals(20, report.sampleCount);
+        assertEquals(2, report.blames.size());
+        assertArrayEquals(GC_STACK, report.blames.get(0).frames);
+        assertEquals(report.sampleCount, report.blames.get(0).count + report.blames.get(1).count);
+        assertTrue(report.blames.get(0).count > report.blames.get(1).count);
+    }
+
+    @Test
+    public void hungMessageIsReportedBeforeItFinishes() {
+        mWatchdog.messageBegin("hung");
+        final long start = mNow;
+        mStack = IO_STACK;
+        while (mNow - start < 4500) {
+            mNow += mWatchdog.tick();
+        }
+        assertEquals(1, mReports.size());
+        assertFalse(mReports.get(0).finished);
+        assertTrue(mReports.get(0).durationMs >= 4000);
+        assertEquals(mReports.get(0).sampleCount, mReports.get(0).blames.get(0).count);
+
+        mWatchdog.messageEnd();
+        mWatchdog.tick();
+        assertEquals(2, mReports.size());
+        assertTrue(mReports.get(1).finished);
+        assertTrue(mReports.get(1).sampleCount > mReports.get(0).sampleCount);
+    }
+
+    @Test
+    public void sampleOfFinishedMessageIsDropped() {
+        mWatchdog.messageBegin("first");
+        mNow += 400;
+        mStack = IO_STACK;
+        mDuringSample = new Runnable() {
+            @Override
+            public void run() {
+                mWatchdog.messageEnd();
+                mWatchdog.messageBegin("second");
+            }
+        };
+        mWatchdog.tick();
+        mDuringSample = null;
+        mWatchdog.tick();
+
+        assertEquals(1, mReports.size());
+        assertEquals("first", mReports.get(0).target);
+        assertEquals(0, mReports.get(0).sampleCount);
+        mNow += 400;
+        mWatchdog.tick();
+        mWatchdog.messageEnd();
+        mWatchdog.tick();
+        assertEquals("second", mReports.get(1).target);
+        assertEquals(1, mReports.get(1).sampleCount);
+    }
+}
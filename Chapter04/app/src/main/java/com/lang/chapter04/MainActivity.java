@@ -17,6 +17,7 @@ import android.widget.Toast;
 import com.android.tools.perflib.captures.DataBuffer;
 import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.lang.chapter04.tool.AnalyzerResult;
+import com.lang.chapter04.tool.FinalizerAnalyzer;
 import com.lang.chapter04.tool.Tools;
 import com.squareup.haha.perflib.ArrayInstance;
 import com.squareup.haha.perflib.ClassInstance;
@@ -82,6 +83,9 @@ public class MainActivity extends AppCompatActivity {
                     DataBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
                     //获得snapshot, 根据文件缓存区创建出对应的快照
                     Snapshot snapshot = Snapshot.createSnapshot(buffer);
+                    // 等待 finalize() 的对象按类统计，GhostObject 这类 finalizer 堵住时看是谁占着队列
+                    // 不算 retained size，支配树在 UI 线程上要算很久
+                    Tools.print(FinalizerAnalyzer.analyze(snapshot, false).toString());
                     // 获得Bitmap Class
                     Collection<ClassObj> bitmapClasses = snapshot.findClasses("android.graphics.Bitmap");
                     // 获得heap, 只需要分析app和default heap即可.
@@ -0,0 +1,277 @@
+package com.lang.chapter04.tool;
+
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.Snapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the objects in a heap dump that wait for their finalize(), grouped by class.
+ * <p>
+ * ART creates a FinalizerReference for every object whose class overrides finalize(). When
+ * the GC finds such an object unreachable, it moves the object from the reference's
+ * referent to its zombie field, which keeps it alive, and hands the reference over for
+ * enqueueing. The ReferenceQueueDaemon then puts it on the finalizer queue, and the
+ * FinalizerDaemon runs finalize() and drops it. Every FinalizerReference with a zombie is
+ * therefore backlog, and the pointers tell where it waits:
+ * <ul>
+ * <li>pendingNext set: cleared by the GC, not yet enqueued by the ReferenceQueueDaemon;</li>
+ * <li>queueNext set, and not to the marker of a dequeued reference: on the finalizer queue,
+ * waiting for the FinalizerDaemon;</li>
+ * <li>neither: taken off the queue, its finalize() is running or about to.</li>
+ * </ul>
+ * The FinalizerReference instances are visited once, in any order, instead of following the
+ * queue. That keeps the analysis linear in the number of references and independent of
+ * broken or cyclic chains. Retained sizes need the dominator tree, which is the only part
+ * that costs more than the scan. Leave it off on large dumps.
+ */
+public class FinalizerAnalyzer {
+    private static final String FINALIZER_REFERENCE = "java.lang.ref.FinalizerReference";
+    private static final String REFERENCE_QUEUE = "java.lang.ref.ReferenceQueue";
+
+    public static class ClassStats {
+        private final String className;
+        private int count;
+        private int unenqueued;
+        private int queued;
+        private long shallowSize;
+        private long retainedSize;
+
+        ClassStats(String className) {
+            this.className = className;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * Instances waiting for their finalize(), wherever they wait.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public int getUnenqueued() {
+            return unenqueued;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        public long getShallowSize() {
+            return shallowSize;
+        }
+
+        /**
+         * -1 when retained sizes were not computed.
+         */
+        public long getRetainedSize() {
+            return retainedSize;
+        }
+    }
+
+    public static class Result {
+        private int references;
+        private int registered;
+        private int pending;
+        private int unenqueued;
+        private int queued;
+        private long shallowSize;
+        private long retainedSize = -1;
+        private List<ClassStats> classes;
+
+        /**
+         * FinalizerReference instances in the dump.
+         */
+        public int getReferences() {
+            return references;
+        }
+
+        /**
+         * Finalizable objects that are still reachable.
+         */
+        public int getRegistered() {
+            return registered;
+        }
+
+        public int getPending() {
+            return pending;
+        }
+
+        public int getUnenqueued() {
+            return unenqueued;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        public long getShallowSize() {
+            return shallowSize;
+        }
+
+        public long getRetainedSize() {
+            return retainedSize;
+        }
+
+        /**
+         * Classes of the pending objects, largest share of the backlog first.
+         */
+        public List<ClassStats> getClasses() {
+            return classes;
+        }
+
+        public String toString(int maxClasses) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("finalizer backlog: ").append(pending).append(" pending (")
+                    .append(unenqueued).append(" not enqueued, ").append(queued)
+                    .append(" queued, ").append(pending - unenqueued - queued)
+                    .append(" dequeued), ").append(registered).append(" reachable, ")
+                    .append(references).append(" references\n");
+            sb.append("pending size: shallow ").append(shallowSize);
+            if (retainedSize >= 0) {
+                sb.append(", retained ").append(retainedSize);
+            }
+            sb.append('\n');
+            final long total = retainedSize >= 0 ? retainedSize : shallowSize;
+            for (int i = 0; i < classes.size() && i < maxClasses; i++) {
+                final ClassStats stats = classes.get(i);
+                final long size = retainedSize >= 0 ? stats.retainedSize : stats.shallowSize;
+                sb.append("  ").append(stats.className).append(": ").append(stats.count)
+                        .append(" pending (").append(stats.queued).append(" queued), shallow ")
+                        .append(stats.shallowSize);
+                if (stats.retainedSize >= 0) {
+                    sb.append(", retained ").append(stats.retainedSize);
+                }
+                sb.append(", ").append(total > 0 ? size * 100 / total : 0).append("% of backlog\n");
+            }
+            if (classes.size() > maxClasses) {
+                sb.append("  ... ").append(classes.size() - maxClasses).append(" more classes\n");
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toString(20);
+        }
+    }
+
+    /**
+     * @param computeRetained also sum up retained sizes, which computes the dominator tree
+     */
+    public static Result analyze(Snapshot snapshot, boolean computeRetained) {
+        final Result result = new Result();
+        final ClassObj referenceClass = snapshot.findClass(FINALIZER_REFERENCE);
+        if (referenceClass == null) {
+            result.classes = Collections.emptyList();
+            return result;
+        }
+        if (computeRetained) {
+            snapshot.computeDominators();
+        }
+
+        final Object dequeued = dequeuedMarker(snapshot);
+        final Map<ClassObj, ClassStats> byClass = new HashMap<>();
+        for (Instance reference : referenceClass.getInstancesList()) {
+            if (!(reference instanceof ClassInstance)) {
+                continue;
+            }
+            result.references++;
+            Instance referent = null;
+            Instance zombie = null;
+            boolean queued = false;
+            boolean unenqueued = false;
+            for (ClassInstance.FieldValue value : ((ClassInstance) reference).getValues()) {
+                final String name = value.getField().getName();
+                final Object target = value.getValue();
+                if ("zombie".equals(name)) {
+                    zombie = (Instance) target;
+                } else if ("referent".equals(name)) {
+                    referent = (Instance) target;
+                } else if ("queueNext".equals(name)) {
+                    queued = target != null && target != dequeued;
+                } else if ("pendingNext".equals(name)) {
+                    unenqueued = target != null;
+                }
+            }
+            if (zombie == null) {
+                if (referent != null) {
+                    result.registered++;
+                }
+                continue;
+            }
+
+            ClassStats stats = byClass.get(zombie.getClassObj());
+            if (stats == null) {
+                final ClassObj clazz = zombie.getClassObj();
+                stats = new ClassStats(clazz != null ? clazz.getClassName() : "?");
+                stats.retainedSize = computeRetained ? 0 : -1;
+                byClass.put(clazz, stats);
+            }
+            stats.count++;
+            stats.shallowSize += zombie.getSize();
+            if (computeRetained) {
+                stats.retainedSize += zombie.getTotalRetainedSize();
+            }
+            // A reference on the queue may still have pendingNext set from before.
+            if (queued) {
+                stats.queued++;
+                result.queued++;
+            } else if (unenqueued) {
+                stats.unenqueued++;
+                result.unenqueued++;
+            }
+            result.pending++;
+            result.shallowSize += zombie.getSize();
+        }
+
+        final List<ClassStats> classes = new ArrayList<>(byClass.values());
+        if (computeRetained) {
+            result.retainedSize = 0;
+            for (ClassStats stats : classes) {
+                result.retainedSize += stats.retainedSize;
+            }
+        }
+        Collections.sort(classes, new Comparator<ClassStats>() {
+            @Override
+            public int compare(ClassStats a, ClassStats b) {
+                final long sizeA = a.retainedSize >= 0 ? a.retainedSize : a.shallowSize;
+                final long sizeB = b.retainedSize >= 0 ? b.retainedSize : b.shallowSize;
+                if (sizeA != sizeB) {
+                    return sizeA > sizeB ? -1 : 1;
+                }
+                return b.count - a.count;
+            }
+        });
+        result.classes = classes;
+        return result;
+    }
+
+    /**
+     * ART points queueNext of a reference taken off its queue to a shared sentinel, so that
+     * it cannot be enqueued again. Null on releases without one.
+     */
+    private static Object dequeuedMarker(Snapshot snapshot) {
+        final ClassObj queueClass = snapshot.findClass(REFERENCE_QUEUE);
+        if (queueClass == null) {
+            return null;
+        }
+        for (Map.Entry<Field, Object> entry : queueClass.getStaticFieldValues().entrySet()) {
+            if ("sQueueNextUnenqueued".equals(entry.getKey().getName())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,363 @@
+package com.lang.chapter05;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Drives {@link ProcessCpuTracker#update()} at an interval that follows the load.
+ * <p>
+ * Every update rereads the stat files of every thread, so a fixed interval is either too
+ * coarse to see a spike or wasted work while the app idles. While the process CPU stays low
+ * and stable the interval doubles up to the maximum; as soon as the CPU usage or the page
+ * fault rate jumps it drops back to the minimum, and the optional {@link HotThreadSampler}
+ * is checked after each of those fast updates to sample the stacks of the hot threads.
+ * <p>
+ * The sampler measures its own cost as the CPU time of its thread and keeps it within a hard
+ * budget per minute: the cost is accounted in 10 second buckets over the last minute, and an
+ * update whose expected cost would exceed what is left is postponed until old buckets expire.
+ * Should a single update cost more than the whole budget, one update per minute still runs.
+ * The stack sampling sessions of the {@link HotThreadSampler} run on its own thread; their
+ * CPU time is charged to the same buckets, and no session starts or goes on while the budget
+ * is spent.
+ */
+public class AdaptiveCpuSampler {
+    private static final String TAG = "AdaptiveCpuSampler";
+
+    // Calm updates in a row before the interval is doubled.
+    private static final int CALM_UPDATES_TO_BACK_OFF = 3;
+    // Weight of the newest interval in the moving averages.
+    private static final float EWMA_ALPHA = 0.3f;
+    // A fault rate this many times the average counts as a jump.
+    private static final int FAULT_JUMP_FACTOR = 4;
+    // ... but only above this many faults per second, a quiet app jumps from 2 to 10 easily.
+    private static final int MIN_FAULT_JUMP_RATE = 1000;
+
+    // The cost of the last minute is kept in COST_BUCKETS buckets of COST_BUCKET_MS each.
+    private static final int COST_BUCKETS = 6;
+    private static final long COST_BUCKET_MS = 60 * 1000 / COST_BUCKETS;
+
+    public interface Listener {
+        /**
+         * Called on the sampler thread after every update of the tracker.
+         *
+         * @param fast whether the sampler is at its minimum interval
+         */
+        void onSample(ProcessCpuTracker tracker, boolean fast);
+    }
+
+    private final ProcessCpuTracker mTracker;
+    private final HotThreadSampler mHotThreadSampler;
+    private final long mMinIntervalMs;
+    private final long mMaxIntervalMs;
+    private final int mHighPercent;
+    private final int mLowPercent;
+    private final int mJumpPercent;
+    private final long mBudgetNsPerMinute;
+    private final Listener mListener;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Only touched on the sampler thread.
+    private long mIntervalMs;
+    private int mCalmUpdates;
+    private float mAvgPercent = -1;
+    private float mAvgFaultRate = -1;
+    private long mAvgCostNs;
+
+    // Charged from the sampler thread and the hot thread sampler's thread, guarded by itself.
+    private final long[] mCostBuckets = new long[COST_BUCKETS];
+    private final long[] mCostBucketEpochs = new long[COST_BUCKETS];
+
+    // Written on the sampler thread, read by printCurrentState().
+    private volatile boolean mStarted;
+    private volatile long mCurrentIntervalMs;
+    private volatile int mLastPercent;
+    private volatile long mLastFaultRate;
+    private volatile long mUpdateCount;
+    private volatile long mFastUpdateCount;
+    private volatile long mDeferredCount;
+    private volatile long mTotalCostNs;
+    // Written on the hot thread sampler's thread.
+    private volatile long mHotThreadCostNs;
+    private volatile long mMaxCostNs;
+    private volatile long mLastMinuteCostNs;
+
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+        }
+    };
+
+    private final HotThreadSampler.Budget mHotThreadBudget = new HotThreadSampler.Budget() {
+        @Override
+        public boolean hasBudget() {
+            return costOfLastMinute(SystemClock.uptimeMillis()) < mBudgetNsPerMinute;
+        }
+
+        @Override
+        public void charge(long costNs) {
+            addCost(SystemClock.uptimeMillis(), costNs);
+            mHotThreadCostNs += costNs;
+        }
+    };
+
+    /**
+     * @param hotThreadSampler   checked after every update at the minimum interval, may be null
+     * @param minIntervalMs      interval while the load is high or changing
+     * @param maxIntervalMs      interval the sampler backs off to while the app is quiet
+     * @param highPercent        process CPU percent that always counts as high load
+     * @param lowPercent         process CPU percent below which the interval may grow
+     * @param jumpPercent        rise over the average CPU percent that counts as a jump
+     * @param budgetMsPerMinute  CPU time the sampler may spend per minute, including the
+     *                           hot thread checks and sessions
+     */
+    public AdaptiveCpuSampler(ProcessCpuTracker tracker, HotThreadSampler hotThreadSampler,
+                              long minIntervalMs, long maxIntervalMs, int highPercent,
+                              int lowPercent, int jumpPercent, long budgetMsPerMinute,
+                              Listener listener) {
+        mTracker = tracker;
+        mHotThreadSampler = hotThreadSampler;
+        mMinIntervalMs = minIntervalMs;
+        mMaxIntervalMs = maxIntervalMs;
+        mHighPercent = highPercent;
+        mLowPercent = lowPercent;
+        mJumpPercent = jumpPercent;
+        mBudgetNsPerMinute = budgetMsPerMinute * 1000000;
+        mListener = listener;
+        mIntervalMs = maxIntervalMs;
+        mCurrentIntervalMs = maxIntervalMs;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        if (hotThreadSampler != null) {
+            hotThreadSampler.setBudget(mHotThreadBudget);
+        }
+    }
+
+    public AdaptiveCpuSampler(ProcessCpuTracker tracker, HotThreadSampler hotThreadSampler,
+                              Listener listener) {
+        this(tracker, hotThreadSampler, 250, 10000, 50, 5, 15, 300, listener);
+    }
+
+    /**
+     * Starts sampling. From here on the tracker must only be used on the sampler thread,
+     * e.g. from the {@link Listener}.
+     */
+    public void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mStarted) {
+                    return;
+                }
+                mStarted = true;
+                sample();
+            }
+        });
+    }
+
+    public void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStarted = false;
+                mHandler.removeCallbacks(mSampleRunnable);
+            }
+        });
+    }
+
+    public void release() {
+        if (mHotThreadSampler != null) {
+            mHotThreadSampler.setBudget(null);
+        }
+        mStarted = false;
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+    }
+
+    private void sample() {
+        if (!mStarted) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final long spent = costOfLastMinute(now);
+        if (spent > 0 && spent + mAvgCostNs > mBudgetNsPerMinute) {
+            // Not enough budget left for another update, wait for the oldest bucket to expire.
+            mDeferredCount++;
+            mCurrentIntervalMs = COST_BUCKET_MS - now % COST_BUCKET_MS;
+            mHandler.postDelayed(mSampleRunnable, mCurrentIntervalMs);
+            return;
+        }
+
+        final long startCpu = Debug.threadCpuTimeNanos();
+        mTracker.update();
+        final boolean fast = adjustInterval();
+        if (fast && mHotThreadSampler != null) {
+            mHotThreadSampler.check();
+        }
+        if (mListener != null) {
+            mListener.onSample(mTracker, fast);
+        }
+        final long cost = Debug.threadCpuTimeNanos() - startCpu;
+
+        addCost(now, cost);
+        mAvgCostNs = mAvgCostNs == 0 ? cost : (long) (mAvgCostNs + (cost - mAvgCostNs) * EWMA_ALPHA);
+        mUpdateCount++;
+        if (fast) {
+            mFastUpdateCount++;
+        }
+        mTotalCostNs += cost;
+        if (cost > mMaxCostNs) {
+            mMaxCostNs = cost;
+        }
+
+        mCurrentIntervalMs = mIntervalMs;
+        mHandler.postDelayed(mSampleRunnable, mIntervalMs);
+    }
+
+    /**
+     * Looks at the interval the tracker just measured and picks the next one.
+     *
+     * @return whether the sampler runs at its minimum interval
+     */
+    private boolean adjustInterval() {
+        final ProcessCpuTracker.Stats proc = mTracker.getCurrentProcStats();
+        if (proc.rel_uptime <= 0) {
+            return mIntervalMs == mMinIntervalMs;
+        }
+        final int percent = (int) ((proc.rel_utime + proc.rel_stime) * 100L / proc.rel_uptime);
+        final long faultRate = (proc.rel_minfaults + proc.rel_majfaults) * 1000L / proc.rel_uptime;
+        mLastPercent = percent;
+        mLastFaultRate = faultRate;
+        if (mAvgPercent < 0) {
+            // First interval, nothing to compare against yet.
+            mAvgPercent = percent;
+            mAvgFaultRate = faultRate;
+            return false;
+        }
+
+        final boolean jump = percent >= mHighPercent
+                || percent >= mAvgPercent + mJumpPercent
+                || (faultRate >= MIN_FAULT_JUMP_RATE
+                && faultRate >= mAvgFaultRate * FAULT_JUMP_FACTOR);
+        final boolean calm = percent < mLowPercent
+                && Math.abs(percent - mAvgPercent) < mLowPercent
+                && faultRate < Math.max(MIN_FAULT_JUMP_RATE, mAvgFaultRate * 2);
+
+        mAvgPercent += (percent - mAvgPercent) * EWMA_ALPHA;
+        mAvgFaultRate += (faultRate - mAvgFaultRate) * EWMA_ALPHA;
+
+        if (jump) {
+            mIntervalMs = mMinIntervalMs;
+            mCalmUpdates = 0;
+        } else if (calm) {
+            if (++mCalmUpdates >= CALM_UPDATES_TO_BACK_OFF) {
+                mIntervalMs = Math.min(mIntervalMs * 2, mMaxIntervalMs);
+                mCalmUpdates = 0;
+            }
+        } else {
+            mCalmUpdates = 0;
+        }
+        return mIntervalMs == mMinIntervalMs;
+    }
+
+    private void addCost(long now, long cost) {
+        synchronized (mCostBuckets) {
+            final long epoch = now / COST_BUCKET_MS;
+            final int index = (int) (epoch % COST_BUCKETS);
+            if (mCostBucketEpochs[index] != epoch) {
+                mCostBucketEpochs[index] = epoch;
+                mCostBuckets[index] = 0;
+            }
+            mCostBuckets[index] += cost;
+            mLastMinuteCostNs = costOfLastMinute(now);
+        }
+    }
+
+    private long costOfLastMinute(long now) {
+        synchronized (mCostBuckets) {
+            final long epoch = now / COST_BUCKET_MS;
+            long sum = 0;
+            for (int i = 0; i < COST_BUCKETS; i++) {
+                if (epoch - mCostBucketEpochs[i] < COST_BUCKETS) {
+                    sum += mCostBuckets[i];
+                }
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * CPU time the sampler spent on its own thread since {@link #start()}, in nanoseconds.
+     */
+    public long getTotalCostNs() {
+        return mTotalCostNs;
+    }
+
+    /**
+     * CPU time of the hot thread sessions, in nanoseconds.
+     */
+    public long getHotThreadCostNs() {
+        return mHotThreadCostNs;
+    }
+
+    public long getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    /**
+     * CPU time the sampler and the hot thread sessions spent during the last minute, in
+     * nanoseconds.
+     */
+    public long getLastMinuteCostNs() {
+        return mLastMinuteCostNs;
+    }
+
+    public long getCurrentIntervalMs() {
+        return mCurrentIntervalMs;
+    }
+
+    public String printCurrentState() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw, false);
+        final long updates = mUpdateCount;
+        final long total = mTotalCostNs;
+        pw.print("sampler: ");
+        pw.print(mStarted ? "every " : "stopped, was every ");
+        pw.print(mCurrentIntervalMs);
+        pw.print("ms, last interval ");
+        pw.print(mLastPercent);
+        pw.print("% cpu ");
+        pw.print(mLastFaultRate);
+        pw.println(" faults/s");
+        pw.print("sampler cost: ");
+        pw.print(updates);
+        pw.print(" updates (");
+        pw.print(mFastUpdateCount);
+        pw.print(" fast, ");
+        pw.print(mDeferredCount);
+        pw.print(" deferred for budget), ");
+        pw.print(total / 1000000);
+        pw.print("ms cpu, ");
+        pw.print(updates > 0 ? total / updates / 1000 : 0);
+        pw.print("us avg / ");
+        pw.print(mMaxCostNs / 1000);
+        pw.print("us max per update, ");
+        pw.print(mHotThreadCostNs / 1000000);
+        pw.print("ms cpu in hot thread sessions, ");
+        pw.print(mLastMinuteCostNs / 1000000);
+        pw.print("ms in the last minute of ");
+        pw.print(mBudgetNsPerMinute / 1000000);
+        pw.println("ms budget");
+        pw.flush();
+        return sw.toString();
+    }
+}
@@ -0,0 +1,361 @@
+package com.lang.chapter05;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * CPU accounting of the cgroup v2 the process runs in: usage and throttling from cpu.stat,
+ * the quota from cpu.max, and pressure stall information from cpu.pressure and io.pressure.
+ * <p>
+ * Under a CPU limit /proc/stat and /proc/loadavg can look idle while the process spends half
+ * of every period throttled; these are the numbers that show it. Every file is optional:
+ * without a cgroup v2 hierarchy {@link #isAvailable()} is false, without the cpu controller
+ * the throttling values and quota stay 0 / unlimited, and without per-cgroup PSI the system
+ * wide /proc/pressure files are used.
+ */
+public class CgroupCpuStats {
+    // cpu.stat, all in microseconds except the counts
+    private static final String[] CPU_STAT_KEYS = {
+            "usage_usec", "user_usec", "system_usec", "nr_periods", "nr_throttled",
+            "throttled_usec"};
+    private static final int CPU_STAT_USAGE = 0;
+    private static final int CPU_STAT_USER = 1;
+    private static final int CPU_STAT_SYSTEM = 2;
+    private static final int CPU_STAT_NR_PERIODS = 3;
+    private static final int CPU_STAT_NR_THROTTLED = 4;
+    private static final int CPU_STAT_THROTTLED = 5;
+
+    // "some"/"full" lines of a pressure file
+    private static final int PSI_AVG10 = 0;
+    private static final int PSI_AVG60 = 1;
+    private static final int PSI_TOTAL = 3;
+
+    private final byte[] mBuffer = new byte[1024];
+    private final long[] mCpuStatData = new long[CPU_STAT_KEYS.length];
+    private final double[] mPsiSome = new double[4];
+    private final double[] mPsiFull = new double[4];
+
+    private final String mCpuStatFile;
+    private final String mCpuMaxFile;
+    private final String mCpuPressureFile;
+    private final String mIoPressureFile;
+
+    /**
+     * The cgroup directory, null when the process is not in a cgroup v2 hierarchy.
+     */
+    public final String path;
+
+    public long base_usage_usec;
+    public long base_user_usec;
+    public long base_system_usec;
+    public long base_nr_periods;
+    public long base_nr_throttled;
+    public long base_throttled_usec;
+    public long rel_usage_usec;
+    public long rel_user_usec;
+    public long rel_system_usec;
+    public long rel_nr_periods;
+    public long rel_nr_throttled;
+    public long rel_throttled_usec;
+
+    /**
+     * From cpu.max; quota_usec is -1 when there is no limit.
+     */
+    public long quota_usec = -1;
+    public long period_usec;
+
+    /**
+     * Share of time in percent that some (or all) tasks stalled on CPU or I/O over the last
+     * 10s and 60s, as computed by the kernel, and stall time of the last interval in
+     * microseconds from the total counters.
+     */
+    public float cpu_some_avg10;
+    public float cpu_some_avg60;
+    public float io_some_avg10;
+    public float io_full_avg10;
+    public long base_cpu_some_usec;
+    public long base_io_some_usec;
+    public long base_io_full_usec;
+    public long rel_cpu_some_usec;
+    public long rel_io_some_usec;
+    public long rel_io_full_usec;
+
+    public CgroupCpuStats() {
+        path = findCgroup2Path();
+        final String dir = path != null ? path : "";
+        mCpuStatFile = dir + "/cpu.stat";
+        mCpuMaxFile = dir + "/cpu.max";
+        mCpuPressureFile = path != null && new File(dir, "cpu.pressure").exists()
+                ? dir + "/cpu.pressure" : "/proc/pressure/cpu";
+        mIoPressureFile = path != null && new File(dir, "io.pressure").exists()
+                ? dir + "/io.pressure" : "/proc/pressure/io";
+    }
+
+    public boolean isAvailable() {
+        return path != null;
+    }
+
+    /**
+     * Whether the cgroup has a CPU limit.
+     */
+    public boolean hasQuota() {
+        return quota_usec > 0 && period_usec > 0;
+    }
+
+    /**
+     * CPUs worth of time the quota grants, e.g. 1.5.
+     */
+    public float quotaCpus() {
+        return hasQuota() ? (float) quota_usec / period_usec : 0;
+    }
+
+    /**
+     * Usage of the last interval relative to the quota, in percent; 0 without a quota.
+     */
+    public int quotaPercent(long intervalMs) {
+        if (!hasQuota() || intervalMs <= 0) {
+            return 0;
+        }
+        final long allowedUsec = intervalMs * 1000 * quota_usec / period_usec;
+        return allowedUsec > 0 ? (int) (rel_usage_usec * 100 / allowedUsec) : 0;
+    }
+
+    public void update() {
+        if (path != null && readKeyValues(mCpuStatFile, CPU_STAT_KEYS, mCpuStatData)) {
+            final long[] data = mCpuStatData;
+            rel_usage_usec = data[CPU_STAT_USAGE] - base_usage_usec;
+            rel_user_usec = data[CPU_STAT_USER] - base_user_usec;
+            rel_system_usec = data[CPU_STAT_SYSTEM] - base_system_usec;
+            rel_nr_periods = data[CPU_STAT_NR_PERIODS] - base_nr_periods;
+            rel_nr_throttled = data[CPU_STAT_NR_THROTTLED] - base_nr_throttled;
+            rel_throttled_usec = data[CPU_STAT_THROTTLED] - base_throttled_usec;
+            base_usage_usec = data[CPU_STAT_USAGE];
+            base_user_usec = data[CPU_STAT_USER];
+            base_system_usec = data[CPU_STAT_SYSTEM];
+            base_nr_periods = data[CPU_STAT_NR_PERIODS];
+            base_nr_throttled = data[CPU_STAT_NR_THROTTLED];
+            base_throttled_usec = data[CPU_STAT_THROTTLED];
+            readCpuMax();
+        }
+
+        if (readPressure(mCpuPressureFile)) {
+            cpu_some_avg10 = (float) mPsiSome[PSI_AVG10];
+            cpu_some_avg60 = (float) mPsiSome[PSI_AVG60];
+            final long some = (long) mPsiSome[PSI_TOTAL];
+            rel_cpu_some_usec = some - base_cpu_some_usec;
+            base_cpu_some_usec = some;
+        }
+        if (readPressure(mIoPressureFile)) {
+            io_some_avg10 = (float) mPsiSome[PSI_AVG10];
+            io_full_avg10 = (float) mPsiFull[PSI_AVG10];
+            final long some = (long) mPsiSome[PSI_TOTAL];
+            final long full = (long) mPsiFull[PSI_TOTAL];
+            rel_io_some_usec = some - base_io_some_usec;
+            rel_io_full_usec = full - base_io_full_usec;
+            base_io_some_usec = some;
+            base_io_full_usec = full;
+        }
+    }
+
+    /**
+     * cpu.max is "$MAX $PERIOD", where $MAX is "max" without a limit.
+     */
+    private void readCpuMax() {
+        final int len = read(mCpuMaxFile);
+        if (len <= 0) {
+            quota_usec = -1;
+            return;
+        }
+        int i = 0;
+        long quota = -1;
+        if (mBuffer[0] >= '0' && mBuffer[0] <= '9') {
+            quota = 0;
+            while (i < len && mBuffer[i] >= '0' && mBuffer[i] <= '9') {
+                quota = quota * 10 + (mBuffer[i++] - '0');
+            }
+        } else {
+            while (i < len && mBuffer[i] != ' ') {
+                i++;
+            }
+        }
+        while (i < len && mBuffer[i] == ' ') {
+            i++;
+        }
+        long period = 0;
+        while (i < len && mBuffer[i] >= '0' && mBuffer[i] <= '9') {
+            period = period * 10 + (mBuffer[i++] - '0');
+        }
+        quota_usec = quota;
+        period_usec = period;
+    }
+
+    /**
+     * Parses "some avg10=0.00 avg60=0.00 avg300=0.00 total=0" and the matching "full" line.
+     */
+    private boolean readPressure(String file) {
+        final int len = read(file);
+        if (len <= 0) {
+            return false;
+        }
+        int lineStart = 0;
+        while (lineStart < len) {
+            final double[] out = mBuffer[lineStart] == 's' ? mPsiSome
+                    : (mBuffer[lineStart] == 'f' ? mPsiFull : null);
+            int i = lineStart;
+            int field = 0;
+            while (i < len && mBuffer[i] != '\n') {
+                if (mBuffer[i] == '=' && out != null && field < out.length) {
+                    i++;
+                    double value = 0;
+                    double scale = 0;
+                    while (i < len && (mBuffer[i] == '.' || (mBuffer[i] >= '0' && mBuffer[i] <= '9'))) {
+                        if (mBuffer[i] == '.') {
+                            scale = 1;
+                        } else {
+                            value = value * 10 + (mBuffer[i] - '0');
+                            scale *= 10;
+                        }
+                        i++;
+                    }
+                    out[field++] = scale > 0 ? value / scale : value;
+                } else {
+                    i++;
+                }
+            }
+            lineStart = i + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Parses "key value" lines; missing keys are left at 0.
+     */
+    private boolean readKeyValues(String file, String[] keys, long[] out) {
+        final int len = read(file);
+        if (len <= 0) {
+            return false;
+        }
+        for (int k = 0; k < out.length; k++) {
+            out[k] = 0;
+        }
+        int lineStart = 0;
+        while (lineStart < len) {
+            int keyEnd = lineStart;
+            while (keyEnd < len && mBuffer[keyEnd] != ' ' && mBuffer[keyEnd] != '\n') {
+                keyEnd++;
+            }
+            for (int k = 0; k < keys.length; k++) {
+                final String key = keys[k];
+                if (key.length() != keyEnd - lineStart || !matches(lineStart, key)) {
+                    continue;
+                }
+                int i = keyEnd + 1;
+                long value = 0;
+                while (i < len && mBuffer[i] >= '0' && mBuffer[i] <= '9') {
+                    value = value * 10 + (mBuffer[i++] - '0');
+                }
+                out[k] = value;
+                break;
+            }
+            while (lineStart < len && mBuffer[lineStart] != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return true;
+    }
+
+    private boolean matches(int offset, String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (mBuffer[offset + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int read(String file) {
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            return is.read(mBuffer);
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Resolves the "0::/path" entry of /proc/self/cgroup against the cgroup2 mount point
+     * from /proc/self/mountinfo. Runs once, so plain string handling is fine here.
+     */
+    private static String findCgroup2Path() {
+        final String cgroups = readText("/proc/self/cgroup");
+        if (cgroups == null) {
+            return null;
+        }
+        String relative = null;
+        for (String line : cgroups.split("\n")) {
+            if (line.startsWith("0::")) {
+                relative = line.substring(3).trim();
+                break;
+            }
+        }
+        if (relative == null) {
+            return null;
+        }
+        String mountPoint = null;
+        final String mounts = readText("/proc/self/mountinfo");
+        if (mounts != null) {
+            for (String line : mounts.split("\n")) {
+                // "... mount_point options - fstype source super_options"
+                final int separator = line.indexOf(" - ");
+                if (separator < 0 || !line.startsWith("cgroup2 ", separator + 3)) {
+                    continue;
+                }
+                final String[] fields = line.substring(0, separator).split(" ");
+                if (fields.length > 4) {
+                    mountPoint = fields[4];
+                    break;
+                }
+            }
+        }
+        if (mountPoint == null) {
+            return null;
+        }
+        final File dir = new File(mountPoint + ("/".equals(relative) ? "" : relative));
+        return new File(dir, "cpu.stat").exists() ? dir.getPath() : null;
+    }
+
+    private static String readText(String file) {
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            final StringBuilder sb = new StringBuilder();
+            final byte[] buffer = new byte[4096];
+            int len;
+            while ((len = is.read(buffer)) > 0) {
+                sb.append(new String(buffer, 0, len));
+            }
+            return sb.toString();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.lang.chapter05;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * Watches the intervals of a {@link ProcessCpuTracker} for threads, or the whole process,
+ * that stay busy, and reports when such an episode starts and when it is over.
+ * <p>
+ * Call {@link #check()} right after {@link ProcessCpuTracker#update()}. An episode starts
+ * once a thread is at or above the start threshold for the configured number of intervals
+ * in a row, and only ends after as many intervals below the lower end threshold, so a thread
+ * hovering around one value does not flap between the two.
+ * <p>
+ * Outside of episodes each thread keeps a moving average and a percentile sketch of its
+ * usage, reported with every event as the thread's usual load. The sketch is a fixed set of
+ * buckets whose counts are halved regularly, so old intervals fade out and the memory per
+ * thread stays constant however long the app runs.
+ */
+public class CpuAnomalyDetector {
+    // Sketch buckets of 5% each, the last one takes everything from 100% up.
+    private static final int SKETCH_BUCKETS = 21;
+    private static final int SKETCH_BUCKET_PERCENT = 5;
+    // The sketch counts are halved after this many intervals.
+    private static final int SKETCH_HALF_LIFE = 64;
+    // Weight of the newest interval in the moving average.
+    private static final float EWMA_ALPHA = 0.1f;
+
+    public interface Listener {
+        /**
+         * Called on the thread that calls {@link #check()}.
+         */
+        void onAnomalyStart(Anomaly anomaly);
+
+        /**
+         * Called with the same object that was passed to {@link #onAnomalyStart(Anomaly)},
+         * now with the end time filled in.
+         */
+        void onAnomalyEnd(Anomaly anomaly);
+    }
+
+    public static class Anomaly {
+        public final int tid;
+        public final String name;
+        /**
+         * Whether this is about the whole process rather than one of its threads.
+         */
+        public final boolean process;
+        public final long startUptime;
+        /**
+         * 0 while the episode is going on.
+         */
+        public long endUptime;
+        /**
+         * Whether the episode ended because the thread went away.
+         */
+        public boolean gone;
+        public int peakPercent;
+        public long busyMs;
+        public long intervalMs;
+        /**
+         * Usual load of the thread before the episode.
+         */
+        public final int baselineAverage;
+        public final int baselineP50;
+        public final int baselineP95;
+
+        Anomaly(ThreadState st, boolean process, long startUptime) {
+            this.tid = st.tid;
+            this.name = st.name;
+            this.process = process;
+            this.startUptime = startUptime;
+            this.baselineAverage = Math.round(st.average);
+            this.baselineP50 = st.percentile(50);
+            this.baselineP95 = st.percentile(95);
+        }
+
+        /**
+         * Average CPU percent over the episode so far.
+         */
+        public int averagePercent() {
+            return intervalMs > 0 ? (int) (busyMs * 100 / intervalMs) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return (process ? "process " : "thread ") + tid + " (" + name + ") "
+                    + (endUptime == 0 ? "busy" : (gone ? "gone" : "calm"))
+                    + " after " + intervalMs + "ms at " + averagePercent() + "% avg / "
+                    + peakPercent + "% peak, usually " + baselineAverage + "% avg / "
+                    + baselineP50 + "% p50 / " + baselineP95 + "% p95";
+        }
+    }
+
+    static class ThreadState {
+        final int tid;
+        String name;
+        float average = -1;
+        final int[] sketch = new int[SKETCH_BUCKETS];
+        int sketchCount;
+        int sketchIntervals;
+        int over;
+        int under;
+        Anomaly anomaly;
+        int generation;
+
+        ThreadState(int tid) {
+            this.tid = tid;
+        }
+
+        void addToBaseline(int percent) {
+            average = average < 0 ? percent : average + (percent - average) * EWMA_ALPHA;
+            sketch[Math.min(percent / SKETCH_BUCKET_PERCENT, SKETCH_BUCKETS - 1)]++;
+            sketchCount++;
+            if (++sketchIntervals == SKETCH_HALF_LIFE) {
+                sketchIntervals = 0;
+                sketchCount = 0;
+                for (int i = 0; i < SKETCH_BUCKETS; i++) {
+                    sketch[i] >>= 1;
+                    sketchCount += sketch[i];
+                }
+            }
+        }
+
+        /**
+         * Upper bound of the sketch bucket that holds the given percentile.
+         */
+        int percentile(int percent) {
+            if (sketchCount == 0) {
+                return 0;
+            }
+            final int rank = Math.max(1, (sketchCount * percent + 99) / 100);
+            int seen = 0;
+            for (int i = 0; i < SKETCH_BUCKETS; i++) {
+                seen += sketch[i];
+                if (seen >= rank) {
+                    return (i + 1) * SKETCH_BUCKET_PERCENT;
+                }
+            }
+            return SKETCH_BUCKETS * SKETCH_BUCKET_PERCENT;
+        }
+    }
+
+    private final ProcessCpuTracker mTracker;
+    private final int mThreadStartPercent;
+    private final int mThreadEndPercent;
+    private final int mProcessStartPercent;
+    private final int mProcessEndPercent;
+    private final int mStartIntervals;
+    private final int mEndIntervals;
+    private final Listener mListener;
+
+    private final SparseArray<ThreadState> mThreads = new SparseArray<>();
+    private final ThreadState mProcess;
+    private final ArrayList<Anomaly> mActive = new ArrayList<>();
+    private int mGeneration;
+
+    /**
+     * @param threadStartPercent  CPU percent of one interval at which a thread counts as busy
+     * @param threadEndPercent    CPU percent below which a busy thread counts as calm again
+     * @param processStartPercent the same for the whole process, may be above 100 on
+     *                            multi-core devices
+     * @param processEndPercent   the same for the whole process
+     * @param startIntervals      busy intervals in a row that start an episode
+     * @param endIntervals        calm intervals in a row that end it
+     */
+    public CpuAnomalyDetector(ProcessCpuTracker tracker, int threadStartPercent,
+                              int threadEndPercent, int processStartPercent,
+                              int processEndPercent, int startIntervals, int endIntervals,
+                              Listener listener) {
+        mTracker = tracker;
+        mThreadStartPercent = threadStartPercent;
+        mThreadEndPercent = threadEndPercent;
+        mProcessStartPercent = processStartPercent;
+        mProcessEndPercent = processEndPercent;
+        mStartIntervals = startIntervals;
+        mEndIntervals = endIntervals;
+        mListener = listener;
+        mProcess = new ThreadState(tracker.getCurrentProcStats().pid);
+    }
+
+    public CpuAnomalyDetector(ProcessCpuTracker tracker, Listener listener) {
+        this(tracker, 80, 40, 150, 80, 3, 3, listener);
+    }
+
+    /**
+     * Feeds the last interval of the tracker to the detector. Must be called on the thread
+     * that calls {@link ProcessCpuTracker#update()}.
+     */
+    public void check() {
+        final ProcessCpuTracker.Stats proc = mTracker.getCurrentProcStats();
+        final long interval = proc.rel_uptime;
+        if (interval <= 0) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final int generation = ++mGeneration;
+
+        mProcess.name = proc.name;
+        check(mProcess, true, proc.rel_utime + proc.rel_stime, interval,
+                mProcessStartPercent, mProcessEndPercent, now);
+
+        final ArrayList<ProcessCpuTracker.Stats> threads = proc.workingThreads;
+        final int N = threads != null ? threads.size() : 0;
+        for (int i = 0; i < N; i++) {
+            final ProcessCpuTracker.Stats st = threads.get(i);
+            ThreadState state = mThreads.get(st.pid);
+            if (state == null) {
+                state = new ThreadState(st.pid);
+                mThreads.put(st.pid, state);
+            }
+            state.name = st.name;
+            state.generation = generation;
+            check(state, false, st.rel_utime + st.rel_stime, interval,
+                    mThreadStartPercent, mThreadEndPercent, now);
+        }
+
+        // Threads the tracker no longer reports have exited.
+        for (int i = mThreads.size() - 1; i >= 0; i--) {
+            final ThreadState state = mThreads.valueAt(i);
+            if (state.generation != generation) {
+                if (state.anomaly != null) {
+                    state.anomaly.gone = true;
+                    end(state, now);
+                }
+                mThreads.removeAt(i);
+            }
+        }
+    }
+
+    private void check(ThreadState state, boolean process, int busyMs, long interval,
+                       int startPercent, int endPercent, long now) {
+        final int percent = (int) (busyMs * 100L / interval);
+        if (state.anomaly == null) {
+            if (percent >= startPercent) {
+                if (++state.over >= mStartIntervals) {
+                    state.over = 0;
+                    state.under = 0;
+                    final Anomaly anomaly = new Anomaly(state, process,
+                            now - interval * mStartIntervals);
+                    anomaly.peakPercent = percent;
+                    anomaly.busyMs = busyMs;
+                    anomaly.intervalMs = interval;
+                    state.anomaly = anomaly;
+                    mActive.add(anomaly);
+                    if (mListener != null) {
+                        mListener.onAnomalyStart(anomaly);
+                    }
+                }
+            } else {
+                state.over = 0;
+            }
+            // Busy intervals before the start count to the baseline too, the detector cannot
+            // know yet whether they are the first of an episode.
+            state.addToBaseline(percent);
+        } else {
+            final Anomaly anomaly = state.anomaly;
+            anomaly.busyMs += busyMs;
+            anomaly.intervalMs += interval;
+            if (percent > anomaly.peakPercent) {
+                anomaly.peakPercent = percent;
+            }
+            if (percent < endPercent) {
+                if (++state.under >= mEndIntervals) {
+                    end(state, now);
+                }
+            } else {
+                state.under = 0;
+            }
+        }
+    }
+
+    private void end(ThreadState state, long now) {
+        final Anomaly anomaly = state.anomaly;
+        anomaly.endUptime = now;
+        state.anomaly = null;
+        state.under = 0;
+        mActive.remove(anomaly);
+        if (mListener != null) {
+            mListener.onAnomalyEnd(anomaly);
+        }
+    }
+
+    /**
+     * Episodes that started and have not ended yet.
+     */
+    public int countActive() {
+        return mActive.size();
+    }
+
+    public Anomaly getActive(int index) {
+        return mActive.get(index);
+    }
+}
@@ -0,0 +1,145 @@
+package com.lang.chapter05;
+
+/**
+ * Typed copy of one {@link ProcessCpuTracker} interval. All values are primitives so that a
+ * snapshot can be filled, written and read back repeatedly without allocating; the record
+ * arrays grow on demand and are reused afterwards.
+ * <p>
+ * Times are in milliseconds unless the field name says otherwise, and all rel values are
+ * deltas over the interval ending at {@link #uptime}.
+ */
+public class CpuSnapshot {
+
+    public static class ThreadRecord {
+        public int tid;
+        /**
+         * Thread name from comm. Shared with the tracker, not copied.
+         */
+        public String name;
+        /**
+         * First letter of the state in stat, e.g. 'R' or 'S'.
+         */
+        public char state;
+        public int utime;
+        public int stime;
+        public int minFaults;
+        public int majFaults;
+        public long readBytes;
+        public long writeBytes;
+        public long syscr;
+        public long syscw;
+        public long runNs;
+        public long waitNs;
+        public long voluntaryCtxt;
+        public long nonvoluntaryCtxt;
+
+        /**
+         * Whether nothing at all happened on this thread during the interval.
+         */
+        public boolean isIdle() {
+            return utime == 0 && stime == 0 && minFaults == 0 && majFaults == 0
+                    && readBytes == 0 && writeBytes == 0 && syscr == 0 && syscw == 0
+                    && runNs == 0 && waitNs == 0
+                    && voluntaryCtxt == 0 && nonvoluntaryCtxt == 0;
+        }
+    }
+
+    public static class CoreRecord {
+        public int cpu;
+        public boolean online;
+        public int utime;
+        public int stime;
+        public int iowait;
+        public int irq;
+        public int softirq;
+        public int idle;
+        /**
+         * kHz, 0 when unknown.
+         */
+        public long effectiveFreq;
+    }
+
+    public long wallTime;
+    public long uptime;
+    public long realtime;
+    public long intervalMs;
+
+    // System wide times from /proc/stat, user includes nice.
+    public int sysUserTime;
+    public int sysSystemTime;
+    public int sysIoWaitTime;
+    public int sysIrqTime;
+    public int sysSoftIrqTime;
+    public int sysIdleTime;
+
+    public float load1;
+    public float load5;
+    public float load15;
+
+    // Memory footprint at the end of the interval in kB, see ProcessCpuTracker.MemoryStats.
+    // The pss and swap values may be a few seconds older than the rss.
+    public long memRss;
+    public long memPss;
+    public long memPssAnon;
+    public long memPssFile;
+    public long memSwap;
+
+    // Garbage collection during the interval, see GcMonitor.
+    public long gcCount;
+    public long gcTime;
+    public long gcBytesFreed;
+    public long gcBlockingCount;
+    public long gcBlockingTime;
+
+    // Cgroup v2 cpu accounting during the interval in microseconds, see CgroupCpuStats.
+    // cgroupQuotaMilliCpus is 0 without a cpu limit; the pressure stall times are 0 where
+    // the kernel has no PSI.
+    public long cgroupUsageUsec;
+    public long cgroupThrottledUsec;
+    public long cgroupNrPeriods;
+    public long cgroupNrThrottled;
+    public long cgroupQuotaMilliCpus;
+    public long cpuPressureUsec;
+    public long ioPressureUsec;
+
+    /**
+     * The tracked process itself, its tid is the pid.
+     */
+    public final ThreadRecord process = new ThreadRecord();
+
+    public int coreCount;
+    public CoreRecord[] cores = new CoreRecord[0];
+
+    public int threadCount;
+    public ThreadRecord[] threads = new ThreadRecord[0];
+
+    /**
+     * Makes room for {@code count} core records, keeping existing ones.
+     */
+    public void ensureCores(int count) {
+        if (cores.length < count) {
+            final CoreRecord[] grown = new CoreRecord[count];
+            System.arraycopy(cores, 0, grown, 0, cores.length);
+            for (int i = cores.length; i < count; i++) {
+                grown[i] = new CoreRecord();
+            }
+            cores = grown;
+        }
+        coreCount = count;
+    }
+
+    /**
+     * Makes room for {@code count} thread records, keeping existing ones.
+     */
+    public void ensureThreads(int count) {
+        if (threads.length < count) {
+            final ThreadRecord[] grown = new ThreadRecord[Math.max(count, threads.length * 2)];
+            System.arraycopy(threads, 0, grown, 0, threads.length);
+            for (int i = threads.length; i < grown.length; i++) {
+                grown[i] = new ThreadRecord();
+            }
+            threads = grown;
+        }
+        threadCount = count;
+    }
+}
@@ -0,0 +1,204 @@
+package com.lang.chapter05;
+
+import android.os.Debug;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scoped measurement of short code sections, below the jiffy resolution of
+ * {@link ProcessCpuTracker}:
+ * <pre>
+ * try (CpuSpans.Span span = CpuSpans.begin("onClick")) {
+ *     ...
+ * }
+ * </pre>
+ * Each span records wall time, thread CPU time ({@link Debug#threadCpuTimeNanos()}, i.e.
+ * CLOCK_THREAD_CPUTIME_ID with nanosecond resolution) and, when enabled, the number of
+ * objects allocated by the thread, into per-name {@link SpanHistogram}s.
+ * <p>
+ * While disabled, {@link #begin(String)} returns a shared no-op span after a single volatile
+ * read. While enabled, spans come from a per-thread pool, so measuring does not allocate
+ * either. Spans must be closed on the thread that began them, innermost first.
+ */
+public class CpuSpans {
+    private static volatile boolean sEnabled;
+    private static volatile boolean sCountAllocations;
+
+    private static final ConcurrentHashMap<String, SpanStats> sStats = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<SpanStack> sStacks = new ThreadLocal<SpanStack>() {
+        @Override
+        protected SpanStack initialValue() {
+            return new SpanStack();
+        }
+    };
+
+    private static final Span NOOP = new Span(null);
+
+    public static class SpanStats {
+        public final String name;
+        /**
+         * Nanoseconds.
+         */
+        public final SpanHistogram wallTime = new SpanHistogram();
+        /**
+         * Nanoseconds.
+         */
+        public final SpanHistogram cpuTime = new SpanHistogram();
+        /**
+         * Objects, only filled while allocation counting is on.
+         */
+        public final SpanHistogram allocations = new SpanHistogram();
+
+        SpanStats(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class Span implements AutoCloseable {
+        private final SpanStack mStack;
+        private SpanStats mStats;
+        private long mStartWall;
+        private long mStartCpu;
+        private int mStartAllocs;
+        private boolean mCountAllocs;
+
+        Span(SpanStack stack) {
+            mStack = stack;
+        }
+
+        @Override
+        public void close() {
+            if (mStack == null) {
+                return;
+            }
+            final long cpu = Debug.threadCpuTimeNanos() - mStartCpu;
+            final long wall = System.nanoTime() - mStartWall;
+            mStats.wallTime.record(wall);
+            mStats.cpuTime.record(cpu);
+            if (mCountAllocs) {
+                mStats.allocations.record(Debug.getThreadAllocCount() - mStartAllocs);
+            }
+            mStats = null;
+            mStack.depth--;
+        }
+    }
+
+    static class SpanStack {
+        Span[] spans = new Span[8];
+        int depth;
+
+        Span push() {
+            if (depth == spans.length) {
+                final Span[] grown = new Span[spans.length * 2];
+                System.arraycopy(spans, 0, grown, 0, spans.length);
+                spans = grown;
+            }
+            Span span = spans[depth];
+            if (span == null) {
+                span = spans[depth] = new Span(this);
+            }
+            depth++;
+            return span;
+        }
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Counts allocations per span through {@link Debug#startAllocCounting()}. This puts ART
+     * into its instrumented allocation path, which slows every allocation in the process, so
+     * only turn it on while investigating.
+     */
+    @SuppressWarnings("deprecation")
+    public static void setAllocationCounting(boolean count) {
+        if (count == sCountAllocations) {
+            return;
+        }
+        if (count) {
+            Debug.startAllocCounting();
+        } else {
+            Debug.stopAllocCounting();
+        }
+        sCountAllocations = count;
+    }
+
+    @SuppressWarnings("deprecation")
+    public static Span begin(String name) {
+        if (!sEnabled) {
+            return NOOP;
+        }
+        SpanStats stats = sStats.get(name);
+        if (stats == null) {
+            final SpanStats created = new SpanStats(name);
+            stats = sStats.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        final Span span = sStacks.get().push();
+        span.mStats = stats;
+        span.mCountAllocs = sCountAllocations;
+        if (span.mCountAllocs) {
+            span.mStartAllocs = Debug.getThreadAllocCount();
+        }
+        span.mStartWall = System.nanoTime();
+        span.mStartCpu = Debug.threadCpuTimeNanos();
+        return span;
+    }
+
+    public static SpanStats getStats(String name) {
+        return sStats.get(name);
+    }
+
+    public static void reset() {
+        sStats.clear();
+    }
+
+    /**
+     * One line per span name, sorted by total CPU time: count, then mean / p50 / p90 / p99 /
+     * max of wall time, CPU time and allocations.
+     */
+    public static String printCurrentState() {
+        final List<SpanStats> stats = new ArrayList<>(sStats.values());
+        Collections.sort(stats, new Comparator<SpanStats>() {
+            @Override
+            public int compare(SpanStats a, SpanStats b) {
+                final long ta = a.cpuTime.sum();
+                final long tb = b.cpuTime.sum();
+                return ta == tb ? 0 : (ta > tb ? -1 : 1);
+            }
+        });
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw, false);
+        pw.println("spans (mean / p50 / p90 / p99 / max):");
+        for (SpanStats s : stats) {
+            pw.print(s.name);
+            pw.print(": ");
+            pw.print(s.wallTime.count());
+            pw.print("x, wall ");
+            s.wallTime.print(pw, 1000, "us");
+            pw.print(", cpu ");
+            s.cpuTime.print(pw, 1000, "us");
+            if (s.allocations.count() > 0) {
+                pw.print(", allocs ");
+                s.allocations.print(pw, 1, "");
+            }
+            pw.println();
+        }
+        pw.flush();
+        return sw.toString();
+    }
+}
@@ -0,0 +1,269 @@
+package com.lang.chapter05;
+
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Streams the samples of a {@link CpuTraceWriter} file back out, one interval at a time.
+ * Only the current record and the tid to name table are held in memory, so traces of any
+ * length can be read. A record cut short at the end of the file, e.g. because the process
+ * died while writing, ends the stream instead of failing it.
+ */
+public class CpuTraceReader implements Closeable {
+    private final InputStream mIn;
+    private final SparseArray<String> mNames = new SparseArray<>();
+    private final int mVersion;
+
+    private byte[] mRecord = new byte[4096];
+    private int mRecordLength;
+    private int mPosition;
+
+    public CpuTraceReader(File file) throws IOException {
+        this(new BufferedInputStream(new FileInputStream(file), 64 * 1024), file.toString());
+    }
+
+    /**
+     * Reads the cpu trace records among the last {@code maxRecords} records of a
+     * {@link MmapRingLog}, e.g. one left behind by a process that was killed. Threads whose
+     * name records were all overwritten come back without a name.
+     */
+    public static CpuTraceReader fromRing(File ring, int maxRecords) throws IOException {
+        final List<MmapRingLog.Record> records = MmapRingLog.recover(ring, maxRecords);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(CpuTraceWriter.MAGIC >>> 24);
+        out.write(CpuTraceWriter.MAGIC >>> 16);
+        out.write(CpuTraceWriter.MAGIC >>> 8);
+        out.write(CpuTraceWriter.MAGIC);
+        out.write(CpuTraceWriter.VERSION);
+        // Names first: the ring repeats them once per pass, so the samples of a pass may
+        // come before the names that belong to them.
+        for (int pass = 0; pass < 2; pass++) {
+            for (MmapRingLog.Record record : records) {
+                if (record.type != CpuTraceWriter.RING_RECORD_TYPE || record.data.length == 0
+                        || (record.data[0] == CpuTraceWriter.RECORD_THREAD_NAME) != (pass == 0)) {
+                    continue;
+                }
+                int value = record.data.length;
+                while ((value & ~0x7F) != 0) {
+                    out.write((value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                out.write(value);
+                out.write(record.data, 0, record.data.length);
+            }
+        }
+        return new CpuTraceReader(new ByteArrayInputStream(out.toByteArray()), ring.toString());
+    }
+
+    private CpuTraceReader(InputStream in, String name) throws IOException {
+        mIn = in;
+        int magic = 0;
+        for (int i = 0; i < 4; i++) {
+            final int b = mIn.read();
+            if (b < 0) {
+                mIn.close();
+                throw new IOException("Not a cpu trace: " + name);
+            }
+            magic = (magic << 8) | b;
+        }
+        final int version = mIn.read();
+        if (magic != CpuTraceWriter.MAGIC || version < 1 || version > CpuTraceWriter.VERSION) {
+            mIn.close();
+            throw new IOException("Unsupported cpu trace " + Integer.toHexString(magic)
+                    + " version " + version + ": " + name);
+        }
+        mVersion = version;
+    }
+
+    /**
+     * Reads the next sample into {@code out}, reusing its records.
+     *
+     * @return false at the end of the trace
+     */
+    public boolean next(CpuSnapshot out) throws IOException {
+        while (readRecord()) {
+            final int type = mRecord[mPosition++];
+            if (type == CpuTraceWriter.RECORD_THREAD_NAME) {
+                readThreadName();
+            } else if (type == CpuTraceWriter.RECORD_SAMPLE) {
+                readSample(out);
+                return true;
+            }
+            // Unknown record types from newer writers are skipped.
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private void readThreadName() {
+        final int tid = (int) getVarLong();
+        final int len = (int) getVarLong();
+        final char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) getVarLong();
+        }
+        mNames.put(tid, new String(chars));
+    }
+
+    private void readSample(CpuSnapshot out) {
+        out.wallTime = getVarLong();
+        out.uptime = getVarLong();
+        out.realtime = getVarLong();
+        out.intervalMs = getVarLong();
+        out.sysUserTime = (int) getVarLong();
+        out.sysSystemTime = (int) getVarLong();
+        out.sysIoWaitTime = (int) getVarLong();
+        out.sysIrqTime = (int) getVarLong();
+        out.sysSoftIrqTime = (int) getVarLong();
+        out.sysIdleTime = (int) getVarLong();
+        out.load1 = Float.intBitsToFloat((int) getVarLong());
+        out.load5 = Float.intBitsToFloat((int) getVarLong());
+        out.load15 = Float.intBitsToFloat((int) getVarLong());
+        getThread(out.process);
+        if (mVersion >= 2) {
+            out.gcCount = getVarLong();
+            out.gcTime = getVarLong();
+            out.gcBytesFreed = getVarLong();
+            out.gcBlockingCount = getVarLong();
+            out.gcBlockingTime = getVarLong();
+        } else {
+            out.gcCount = 0;
+            out.gcTime = 0;
+            out.gcBytesFreed = 0;
+            out.gcBlockingCount = 0;
+            out.gcBlockingTime = 0;
+        }
+        if (mVersion >= 3) {
+            out.memRss = getVarLong();
+            out.memPss = getVarLong();
+            out.memPssAnon = getVarLong();
+            out.memPssFile = getVarLong();
+            out.memSwap = getVarLong();
+        } else {
+            out.memRss = 0;
+            out.memPss = 0;
+            out.memPssAnon = 0;
+            out.memPssFile = 0;
+            out.memSwap = 0;
+        }
+        if (mVersion >= 4) {
+            out.cgroupUsageUsec = getVarLong();
+            out.cgroupThrottledUsec = getVarLong();
+            out.cgroupNrPeriods = getVarLong();
+            out.cgroupNrThrottled = getVarLong();
+            out.cgroupQuotaMilliCpus = getVarLong();
+            out.cpuPressureUsec = getVarLong();
+            out.ioPressureUsec = getVarLong();
+        } else {
+            out.cgroupUsageUsec = 0;
+            out.cgroupThrottledUsec = 0;
+            out.cgroupNrPeriods = 0;
+            out.cgroupNrThrottled = 0;
+            out.cgroupQuotaMilliCpus = 0;
+            out.cpuPressureUsec = 0;
+            out.ioPressureUsec = 0;
+        }
+
+        out.ensureCores((int) getVarLong());
+        for (int i = 0; i < out.coreCount; i++) {
+            final CpuSnapshot.CoreRecord core = out.cores[i];
+            core.cpu = (int) getVarLong();
+            core.online = mRecord[mPosition++] != 0;
+            core.utime = (int) getVarLong();
+            core.stime = (int) getVarLong();
+            core.iowait = (int) getVarLong();
+            core.irq = (int) getVarLong();
+            core.softirq = (int) getVarLong();
+            core.idle = (int) getVarLong();
+            core.effectiveFreq = getVarLong();
+        }
+
+        out.ensureThreads((int) getVarLong());
+        for (int i = 0; i < out.threadCount; i++) {
+            getThread(out.threads[i]);
+        }
+    }
+
+    private void getThread(CpuSnapshot.ThreadRecord thread) {
+        thread.tid = (int) getVarLong();
+        thread.name = mNames.get(thread.tid);
+        thread.state = (char) (mRecord[mPosition++] & 0xFF);
+        thread.utime = (int) getVarLong();
+        thread.stime = (int) getVarLong();
+        thread.minFaults = (int) getVarLong();
+        thread.majFaults = (int) getVarLong();
+        thread.readBytes = getVarLong();
+        thread.writeBytes = getVarLong();
+        thread.syscr = getVarLong();
+        thread.syscw = getVarLong();
+        thread.runNs = getVarLong();
+        thread.waitNs = getVarLong();
+        thread.voluntaryCtxt = getVarLong();
+        thread.nonvoluntaryCtxt = getVarLong();
+    }
+
+    /**
+     * Loads the next length-prefixed record into mRecord.
+     *
+     * @return false at the end of the file or on a truncated record
+     */
+    private boolean readRecord() throws IOException {
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            final int b = mIn.read();
+            if (b < 0 || shift > 28) {
+                return false;
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        if (length <= 0) {
+            return false;
+        }
+        if (mRecord.length < length) {
+            mRecord = new byte[Math.max(length, mRecord.length * 2)];
+        }
+        int read = 0;
+        while (read < length) {
+            final int n = mIn.read(mRecord, read, length - read);
+            if (n < 0) {
+                return false;
+            }
+            read += n;
+        }
+        mRecordLength = length;
+        mPosition = 0;
+        return true;
+    }
+
+    private long getVarLong() {
+        long v = 0;
+        int shift = 0;
+        while (mPosition < mRecordLength) {
+            final byte b = mRecord[mPosition++];
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
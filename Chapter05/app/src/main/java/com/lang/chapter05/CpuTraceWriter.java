@@ -0,0 +1,259 @@
+package com.lang.chapter05;
+
+import android.util.SparseArray;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Appends {@link CpuSnapshot}s to a compact binary trace file.
+ * <p>
+ * Layout: a header ({@link #MAGIC} as 4 big endian bytes and a version byte), followed by
+ * records. Each record is a varint length, a type byte and the payload. Numbers in the
+ * payload are zigzag varints, so the usual small deltas take one or two bytes. Thread names
+ * are written once per tid in a {@link #RECORD_THREAD_NAME} record and samples only carry
+ * the threads that did something during the interval.
+ * <p>
+ * Encoding goes through a reused record buffer, so appending does not allocate once the
+ * buffers have grown to the thread count. Use {@link CpuTraceReader} to read the file back.
+ * <p>
+ * The records can also go to a {@link MmapRingLog} instead of a file, to keep the last
+ * minutes around for a process that gets killed; see {@link CpuTraceReader#fromRing}.
+ */
+public class CpuTraceWriter implements Closeable {
+    static final int MAGIC = 0x43505554; // "CPUT"
+    // Version 2 added the gc counters after the process record, version 3 the memory
+    // footprint after those, version 4 the cgroup cpu accounting after that.
+    static final int VERSION = 4;
+
+    static final int RECORD_THREAD_NAME = 1;
+    static final int RECORD_SAMPLE = 2;
+
+    /**
+     * Type of the {@link MmapRingLog} records that hold cpu trace records.
+     */
+    public static final int RING_RECORD_TYPE = 0x43505554;
+
+    private final OutputStream mOut;
+    private final MmapRingLog mRing;
+    private long mRingWrapCount;
+    private final SparseArray<String> mWrittenNames = new SparseArray<>();
+
+    private byte[] mRecord = new byte[4096];
+    private int mRecordLength;
+    private final byte[] mLengthPrefix = new byte[5];
+
+    /**
+     * Opens {@code file} for appending. A header is written when the file is new or empty,
+     * so one trace can span several sessions; a file of another version is rejected.
+     */
+    public CpuTraceWriter(File file) throws IOException {
+        final boolean empty = !file.exists() || file.length() == 0;
+        if (!empty) {
+            checkHeader(file);
+        }
+        mOut = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+        mRing = null;
+        if (empty) {
+            mOut.write(MAGIC >>> 24);
+            mOut.write(MAGIC >>> 16);
+            mOut.write(MAGIC >>> 8);
+            mOut.write(MAGIC);
+            mOut.write(VERSION);
+        }
+    }
+
+    /**
+     * Appends to {@code ring} as {@link #RING_RECORD_TYPE} records. The ring stays owned by
+     * the caller and may be shared with other writers. As older records get overwritten,
+     * thread names are written again after every pass over the ring.
+     */
+    public CpuTraceWriter(MmapRingLog ring) {
+        mOut = null;
+        mRing = ring;
+        mRingWrapCount = ring.getWrapCount();
+    }
+
+    private static void checkHeader(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                magic = (magic << 8) | (in.read() & 0xFF);
+            }
+            final int version = in.read();
+            if (magic != MAGIC || version != VERSION) {
+                throw new IOException("Cannot append to cpu trace " + Integer.toHexString(magic)
+                        + " version " + version + ": " + file);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public void append(CpuSnapshot snapshot) throws IOException {
+        if (mRing != null && mRing.getWrapCount() != mRingWrapCount) {
+            mRingWrapCount = mRing.getWrapCount();
+            mWrittenNames.clear();
+        }
+        writeNameIfChanged(snapshot.process);
+        int activeThreads = 0;
+        for (int i = 0; i < snapshot.threadCount; i++) {
+            final CpuSnapshot.ThreadRecord thread = snapshot.threads[i];
+            if (!thread.isIdle()) {
+                writeNameIfChanged(thread);
+                activeThreads++;
+            }
+        }
+
+        mRecordLength = 0;
+        putByte(RECORD_SAMPLE);
+        putVarLong(snapshot.wallTime);
+        putVarLong(snapshot.uptime);
+        putVarLong(snapshot.realtime);
+        putVarLong(snapshot.intervalMs);
+        putVarLong(snapshot.sysUserTime);
+        putVarLong(snapshot.sysSystemTime);
+        putVarLong(snapshot.sysIoWaitTime);
+        putVarLong(snapshot.sysIrqTime);
+        putVarLong(snapshot.sysSoftIrqTime);
+        putVarLong(snapshot.sysIdleTime);
+        putVarLong(Float.floatToIntBits(snapshot.load1));
+        putVarLong(Float.floatToIntBits(snapshot.load5));
+        putVarLong(Float.floatToIntBits(snapshot.load15));
+        putThread(snapshot.process);
+        putVarLong(snapshot.gcCount);
+        putVarLong(snapshot.gcTime);
+        putVarLong(snapshot.gcBytesFreed);
+        putVarLong(snapshot.gcBlockingCount);
+        putVarLong(snapshot.gcBlockingTime);
+        putVarLong(snapshot.memRss);
+        putVarLong(snapshot.memPss);
+        putVarLong(snapshot.memPssAnon);
+        putVarLong(snapshot.memPssFile);
+        putVarLong(snapshot.memSwap);
+        putVarLong(snapshot.cgroupUsageUsec);
+        putVarLong(snapshot.cgroupThrottledUsec);
+        putVarLong(snapshot.cgroupNrPeriods);
+        putVarLong(snapshot.cgroupNrThrottled);
+        putVarLong(snapshot.cgroupQuotaMilliCpus);
+        putVarLong(snapshot.cpuPressureUsec);
+        putVarLong(snapshot.ioPressureUsec);
+
+        putVarLong(snapshot.coreCount);
+        for (int i = 0; i < snapshot.coreCount; i++) {
+            final CpuSnapshot.CoreRecord core = snapshot.cores[i];
+            putVarLong(core.cpu);
+            putByte(core.online ? 1 : 0);
+            putVarLong(core.utime);
+            putVarLong(core.stime);
+            putVarLong(core.iowait);
+            putVarLong(core.irq);
+            putVarLong(core.softirq);
+            putVarLong(core.idle);
+            putVarLong(core.effectiveFreq);
+        }
+
+        putVarLong(activeThreads);
+        for (int i = 0; i < snapshot.threadCount; i++) {
+            final CpuSnapshot.ThreadRecord thread = snapshot.threads[i];
+            if (!thread.isIdle()) {
+                putThread(thread);
+            }
+        }
+        writeRecord();
+    }
+
+    public void flush() throws IOException {
+        if (mOut != null) {
+            mOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+        }
+    }
+
+    private void writeNameIfChanged(CpuSnapshot.ThreadRecord thread) throws IOException {
+        final String name = thread.name != null ? thread.name : "";
+        final String written = mWrittenNames.get(thread.tid);
+        if (name.equals(written)) {
+            return;
+        }
+        mWrittenNames.put(thread.tid, name);
+        mRecordLength = 0;
+        putByte(RECORD_THREAD_NAME);
+        putVarLong(thread.tid);
+        final int len = name.length();
+        putVarLong(len);
+        for (int i = 0; i < len; i++) {
+            putVarLong(name.charAt(i));
+        }
+        writeRecord();
+    }
+
+    private void putThread(CpuSnapshot.ThreadRecord thread) {
+        putVarLong(thread.tid);
+        putByte(thread.state);
+        putVarLong(thread.utime);
+        putVarLong(thread.stime);
+        putVarLong(thread.minFaults);
+        putVarLong(thread.majFaults);
+        putVarLong(thread.readBytes);
+        putVarLong(thread.writeBytes);
+        putVarLong(thread.syscr);
+        putVarLong(thread.syscw);
+        putVarLong(thread.runNs);
+        putVarLong(thread.waitNs);
+        putVarLong(thread.voluntaryCtxt);
+        putVarLong(thread.nonvoluntaryCtxt);
+    }
+
+    private void writeRecord() throws IOException {
+        if (mRing != null) {
+            mRing.append(RING_RECORD_TYPE, mRecord, 0, mRecordLength);
+            return;
+        }
+        int value = mRecordLength;
+        int n = 0;
+        while ((value & ~0x7F) != 0) {
+            mLengthPrefix[n++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mLengthPrefix[n++] = (byte) value;
+        mOut.write(mLengthPrefix, 0, n);
+        mOut.write(mRecord, 0, mRecordLength);
+    }
+
+    private void putByte(int value) {
+        ensureCapacity(1);
+        mRecord[mRecordLength++] = (byte) value;
+    }
+
+    private void putVarLong(long value) {
+        ensureCapacity(10);
+        // Zigzag so that the odd negative delta stays small too.
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            mRecord[mRecordLength++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        mRecord[mRecordLength++] = (byte) v;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mRecordLength + extra > mRecord.length) {
+            final byte[] grown = new byte[mRecord.length * 2];
+            System.arraycopy(mRecord, 0, grown, 0, mRecordLength);
+            mRecord = grown;
+        }
+    }
+}
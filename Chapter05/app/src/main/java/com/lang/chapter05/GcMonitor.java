@@ -0,0 +1,148 @@
+package com.lang.chapter05;
+
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Samples cumulative garbage collector counters so that each {@link ProcessCpuTracker}
+ * interval can tell how much of its CPU went into GC.
+ * <p>
+ * On ART the values come from {@link Debug#getRuntimeStat(String)} (API 23+): collection count
+ * and time, bytes freed, and count and time of blocking collections, i.e. the ones that
+ * paused the allocating thread. On a plain JVM, e.g. in local unit tests, they come from the
+ * GarbageCollectorMXBeans, which have no bytes freed and do not separate out blocking
+ * collections, so those stay 0. java.lang.management is not part of the Android SDK, hence
+ * the reflection.
+ */
+public class GcMonitor {
+    private static final String TAG = "GcMonitor";
+
+    private static final int GC_COUNT = 0;
+    private static final int GC_TIME = 1;
+    private static final int GC_BYTES_FREED = 2;
+    private static final int GC_BLOCKING_COUNT = 3;
+    private static final int GC_BLOCKING_TIME = 4;
+
+    private static final String[] ART_STATS = {
+            "art.gc.gc-count", "art.gc.gc-time", "art.gc.bytes-freed",
+            "art.gc.blocking-gc-count", "art.gc.blocking-gc-time"};
+
+    private final long[] mData = new long[ART_STATS.length];
+    private final boolean mArt;
+    private boolean mAvailable;
+
+    // JVM only: the GarbageCollectorMXBeans and their accessors.
+    private List<?> mGcBeans;
+    private Method mGetCollectionCount;
+    private Method mGetCollectionTime;
+
+    public long base_count;
+    public long base_time;
+    public long base_bytes_freed;
+    public long base_blocking_count;
+    public long base_blocking_time;
+
+    /**
+     * Collections during the last interval.
+     */
+    public long rel_count;
+
+    /**
+     * Time in milliseconds spent collecting during the last interval, concurrent
+     * collections included.
+     */
+    public long rel_time;
+
+    public long rel_bytes_freed;
+
+    /**
+     * Collections that blocked the allocating thread during the last interval.
+     */
+    public long rel_blocking_count;
+
+    /**
+     * Time in milliseconds of those blocking collections.
+     */
+    public long rel_blocking_time;
+
+    public GcMonitor() {
+        final String vm = System.getProperty("java.vm.name");
+        mArt = vm != null && vm.startsWith("Dalvik");
+        if (mArt) {
+            mAvailable = Build.VERSION.SDK_INT >= 23;
+        } else {
+            try {
+                final Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+                mGcBeans = (List<?>) factory.getMethod("getGarbageCollectorMXBeans").invoke(null);
+                final Class<?> bean = Class.forName("java.lang.management.GarbageCollectorMXBean");
+                mGetCollectionCount = bean.getMethod("getCollectionCount");
+                mGetCollectionTime = bean.getMethod("getCollectionTime");
+                mAvailable = true;
+            } catch (Exception e) {
+                Log.w(TAG, "no gc counters on this vm: " + e);
+            }
+        }
+    }
+
+    public boolean isAvailable() {
+        return mAvailable;
+    }
+
+    /**
+     * Reads the counters and updates the base and rel values.
+     */
+    public boolean update() {
+        if (!mAvailable || !read(mData)) {
+            return false;
+        }
+        final long[] data = mData;
+        rel_count = data[GC_COUNT] - base_count;
+        rel_time = data[GC_TIME] - base_time;
+        rel_bytes_freed = data[GC_BYTES_FREED] - base_bytes_freed;
+        rel_blocking_count = data[GC_BLOCKING_COUNT] - base_blocking_count;
+        rel_blocking_time = data[GC_BLOCKING_TIME] - base_blocking_time;
+        base_count = data[GC_COUNT];
+        base_time = data[GC_TIME];
+        base_bytes_freed = data[GC_BYTES_FREED];
+        base_blocking_count = data[GC_BLOCKING_COUNT];
+        base_blocking_time = data[GC_BLOCKING_TIME];
+        return true;
+    }
+
+    private boolean read(long[] out) {
+        if (mArt) {
+            for (int i = 0; i < ART_STATS.length; i++) {
+                final String value = Debug.getRuntimeStat(ART_STATS[i]);
+                if (value == null) {
+                    mAvailable = false;
+                    return false;
+                }
+                out[i] = Long.parseLong(value);
+            }
+            return true;
+        }
+        long count = 0;
+        long time = 0;
+        try {
+            for (Object bean : mGcBeans) {
+                // -1 means undefined for this collector.
+                count += Math.max(0, (Long) mGetCollectionCount.invoke(bean));
+                time += Math.max(0, (Long) mGetCollectionTime.invoke(bean));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "reading gc counters failed: " + e);
+            mAvailable = false;
+            return false;
+        }
+        out[GC_COUNT] = count;
+        out[GC_TIME] = time;
+        out[GC_BYTES_FREED] = 0;
+        out[GC_BLOCKING_COUNT] = 0;
+        out[GC_BLOCKING_TIME] = 0;
+        return true;
+    }
+}
@@ -0,0 +1,317 @@
+package com.lang.chapter05;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stack sampling profiler for threads that {@link ProcessCpuTracker} reports as hot.
+ * <p>
+ * Call {@link #check()} right after {@link ProcessCpuTracker#update()}. When a thread's
+ * {@code rel_utime + rel_stime} over the last interval crosses the threshold, the Linux tid is
+ * mapped to its Java {@link Thread} and the stack is sampled at a fixed rate for a bounded
+ * window. The samples are aggregated into the folded format understood by flame graph tools
+ * ({@code frame;frame;frame count} per line, root first).
+ * <p>
+ * Nothing runs between checks, so the steady-state cost is one pass over the working threads.
+ * The sessions run on a thread of their own; set a {@link Budget} to have their CPU time
+ * accounted and to keep them from starting once it is spent.
+ */
+public class HotThreadSampler {
+    private static final String TAG = "HotThreadSampler";
+
+    // The kernel keeps at most 15 bytes of a thread name in /proc/<pid>/task/<tid>/comm.
+    private static final int MAX_COMM_LENGTH = 15;
+
+    public interface Callback {
+        /**
+         * Called on the sampler thread when a sampling window finishes.
+         */
+        void onProfile(Profile profile);
+    }
+
+    public interface Budget {
+        /**
+         * Called on the sampler thread before a session starts and before each of its samples.
+         */
+        boolean hasBudget();
+
+        /**
+         * Called on the sampler thread with the CPU time it just spent on a session.
+         */
+        void charge(long costNs);
+    }
+
+    public static class Profile {
+        public final int tid;
+        public final String threadName;
+        /**
+         * CPU usage in percent of the interval that triggered the profile.
+         */
+        public final int triggerPercent;
+        public final int sampleCount;
+        /**
+         * Folded stacks, one {@code frame;frame;frame count} line per distinct stack.
+         */
+        public final String folded;
+
+        Profile(int tid, String threadName, int triggerPercent, int sampleCount, String folded) {
+            this.tid = tid;
+            this.threadName = threadName;
+            this.triggerPercent = triggerPercent;
+            this.sampleCount = sampleCount;
+            this.folded = folded;
+        }
+    }
+
+    private final ProcessCpuTracker mTracker;
+    private final int mThresholdPercent;
+    private final long mSampleIntervalMs;
+    private final long mWindowMs;
+    private final long mCooldownMs;
+    private final int mMaxDepth;
+    private final Callback mCallback;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // tid -> running session, only touched from the sampler thread.
+    private final Map<Integer, Session> mSessions = new HashMap<>();
+    // tid -> uptime when the last session of that thread finished.
+    private final Map<Integer, Long> mLastFinished = new HashMap<>();
+
+    private Thread[] mThreadBuffer = new Thread[64];
+
+    private volatile Budget mBudget;
+
+    /**
+     * @param thresholdPercent CPU percent of one interval ({@code rel_utime + rel_stime}
+     *                         over {@code rel_uptime}) that starts a profile
+     * @param sampleIntervalMs time between two stack samples
+     * @param windowMs         how long one thread is sampled
+     * @param cooldownMs       minimum time before the same thread is profiled again
+     * @param maxDepth         frames kept per sample, counted from the top of the stack
+     */
+    public HotThreadSampler(ProcessCpuTracker tracker, int thresholdPercent, long sampleIntervalMs,
+                            long windowMs, long cooldownMs, int maxDepth, Callback callback) {
+        mTracker = tracker;
+        mThresholdPercent = thresholdPercent;
+        mSampleIntervalMs = sampleIntervalMs;
+        mWindowMs = windowMs;
+        mCooldownMs = cooldownMs;
+        mMaxDepth = maxDepth;
+        mCallback = callback;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public HotThreadSampler(ProcessCpuTracker tracker, Callback callback) {
+        this(tracker, 50, 10, 2000, 30000, 64, callback);
+    }
+
+    /**
+     * Looks at the last interval of the tracker and starts sampling every thread above the
+     * threshold. Must be called on the thread that calls {@link ProcessCpuTracker#update()}.
+     */
+    public void check() {
+        final ProcessCpuTracker.Stats proc = mTracker.getCurrentProcStats();
+        if (proc.workingThreads == null || proc.rel_uptime <= 0) {
+            return;
+        }
+        final long interval = proc.rel_uptime;
+        final int N = proc.workingThreads.size();
+        for (int i = 0; i < N; i++) {
+            final ProcessCpuTracker.Stats st = proc.workingThreads.get(i);
+            final long percent = (st.rel_utime + st.rel_stime) * 100L / interval;
+            if (percent < mThresholdPercent) {
+                // workingThreads is sorted by load, nothing hotter follows.
+                break;
+            }
+            final int tid = st.pid;
+            final String comm = st.name;
+            final int triggerPercent = (int) percent;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    startSession(tid, comm, triggerPercent);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param budget charged with the CPU time of every session, may be null
+     */
+    public void setBudget(Budget budget) {
+        mBudget = budget;
+    }
+
+    public void release() {
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+    }
+
+    private void startSession(int tid, String comm, int triggerPercent) {
+        if (mSessions.containsKey(tid)) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final Long lastFinished = mLastFinished.get(tid);
+        if (lastFinished != null && now - lastFinished < mCooldownMs) {
+            return;
+        }
+        final Budget budget = mBudget;
+        if (budget != null && !budget.hasBudget()) {
+            return;
+        }
+        final long startCpu = Debug.threadCpuTimeNanos();
+        final List<Thread> threads = findJavaThreads(tid, comm);
+        if (threads.isEmpty()) {
+            Log.w(TAG, "no java thread for tid " + tid + " (" + comm + ")");
+        } else {
+            final Session session = new Session(tid, comm, triggerPercent, threads,
+                    now + mWindowMs);
+            mSessions.put(tid, session);
+            mHandler.post(session);
+        }
+        if (budget != null) {
+            budget.charge(Debug.threadCpuTimeNanos() - startCpu);
+        }
+    }
+
+    /**
+     * Maps a Linux tid to the Java threads it may belong to. ART names the native thread after
+     * the Java thread, keeping the first 15 characters, or the last 15 characters for dotted
+     * names such as class names. The main thread is the one whose tid equals the pid.
+     * All matches are returned; names are not unique, so sampling is restricted to
+     * runnable candidates later on.
+     */
+    private List<Thread> findJavaThreads(int tid, String comm) {
+        final List<Thread> result = new ArrayList<>();
+        if (tid == Process.myPid()) {
+            result.add(Looper.getMainLooper().getThread());
+            return result;
+        }
+        if (comm == null) {
+            return result;
+        }
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        int count;
+        while ((count = root.enumerate(mThreadBuffer, true)) == mThreadBuffer.length) {
+            mThreadBuffer = new Thread[mThreadBuffer.length * 2];
+        }
+        for (int i = 0; i < count; i++) {
+            final Thread t = mThreadBuffer[i];
+            if (commMatches(t.getName(), comm)) {
+                result.add(t);
+            }
+            mThreadBuffer[i] = null;
+        }
+        return result;
+    }
+
+    private static boolean commMatches(String javaName, String comm) {
+        if (javaName.length() <= MAX_COMM_LENGTH) {
+            return javaName.equals(comm);
+        }
+        return javaName.startsWith(comm) || javaName.endsWith(comm);
+    }
+
+    private class Session implements Runnable {
+        final int tid;
+        final String comm;
+        final int triggerPercent;
+        final List<Thread> threads;
+        final long endTime;
+        final Map<String, Integer> folded = new HashMap<>();
+        final StringBuilder key = new StringBuilder(256);
+        int samples;
+
+        Session(int tid, String comm, int triggerPercent, List<Thread> threads, long endTime) {
+            this.tid = tid;
+            this.comm = comm;
+            this.triggerPercent = triggerPercent;
+            this.threads = threads;
+            this.endTime = endTime;
+        }
+
+        @Override
+        public void run() {
+            final Budget budget = mBudget;
+            if (budget != null && !budget.hasBudget()) {
+                // Keep what was sampled so far.
+                finish();
+                return;
+            }
+            final long startCpu = Debug.threadCpuTimeNanos();
+            final int N = threads.size();
+            for (int i = 0; i < N; i++) {
+                final Thread t = threads.get(i);
+                // With several candidates only the running one can be burning the CPU.
+                if (N > 1 && t.getState() != Thread.State.RUNNABLE) {
+                    continue;
+                }
+                sample(t.getStackTrace());
+            }
+            final boolean more = SystemClock.uptimeMillis() < endTime && threads.get(0).isAlive();
+            if (!more) {
+                finish();
+            }
+            if (budget != null) {
+                budget.charge(Debug.threadCpuTimeNanos() - startCpu);
+            }
+            if (more) {
+                mHandler.postDelayed(this, mSampleIntervalMs);
+            }
+        }
+
+        private void sample(StackTraceElement[] stack) {
+            if (stack.length == 0) {
+                return;
+            }
+            samples++;
+            key.setLength(0);
+            final int depth = Math.min(stack.length, mMaxDepth);
+            // Folded stacks go from the root to the leaf.
+            for (int i = depth - 1; i >= 0; i--) {
+                final StackTraceElement frame = stack[i];
+                key.append(frame.getClassName()).append('.').append(frame.getMethodName());
+                if (i > 0) {
+                    key.append(';');
+                }
+            }
+            final String k = key.toString();
+            final Integer count = folded.get(k);
+            folded.put(k, count == null ? 1 : count + 1);
+        }
+
+        private void finish() {
+            mSessions.remove(tid);
+            mLastFinished.put(tid, SystemClock.uptimeMillis());
+            final StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : folded.entrySet()) {
+                sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+            final Profile profile = new Profile(tid, comm, triggerPercent, samples, sb.toString());
+            if (mCallback != null) {
+                mCallback.onProfile(profile);
+            } else {
+                Log.i(TAG, "hot thread " + tid + "/" + comm + " " + triggerPercent + "%, "
+                        + samples + " samples:\n" + profile.folded);
+            }
+        }
+    }
+}
@@ -19,6 +19,46 @@ import java.util.Arrays;
 public class MainActivity extends AppCompatActivity {
     public static Context sContext;
     public static ProcessCpuTracker processCpuTracker = new ProcessCpuTracker(Process.myPid());
+    public static HotThreadSampler hotThreadSampler = new HotThreadSampler(processCpuTracker, null);
+    // Background sampling needs a tracker of its own, the buttons update processCpuTracker
+    // on the main thread.
+    private static ProcessCpuTracker samplerTracker = new ProcessCpuTracker(Process.myPid());
+    public static CpuAnomalyDetector anomalyDetector = new CpuAnomalyDetector(samplerTracker,
+            new CpuAnomalyDetector.Listener() {
+                @Override
+                public void onAnomalyStart(CpuAnomalyDetector.Anomaly anomaly) {
+                    android.util.Log.w("CpuAnomalyDetector", anomaly.toString());
+                }
+
+                @Override
+                public void onAnomalyEnd(CpuAnomalyDetector.Anomaly anomaly) {
+                    android.util.Log.w("CpuAnomalyDetector", anomaly.toString());
+                }
+            });
+    public static AdaptiveCpuSampler adaptiveSampler = new AdaptiveCpuSampler(samplerTracker, null,
+            new AdaptiveCpuSampler.Listener() {
+                @Override
+                public void onSample(ProcessCpuTracker tracker, boolean fast) {
+                    anomalyDetector.check();
+                    tracker.snapshot(sRingSnapshot);
+                    final CpuTraceWriter ringWriter = sRingWriter;
+                    if (ringWriter != null) {
+                        try {
+                            ringWriter.append(sRingSnapshot);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    metricsServer.publish(sRingSnapshot);
+                }
+            });
+    // Recent samples survive the process in files/cpu_ring.bin, read them back with
+    // CpuTraceReader.fromRing().
+    private static volatile CpuTraceWriter sRingWriter;
+    private static final CpuSnapshot sRingSnapshot = new CpuSnapshot();
+    // Debug builds serve the samples on http://127.0.0.1:9405/metrics, reach it from the
+    // host with "adb forward tcp:9405 tcp:9405".
+    public static MetricsServer metricsServer = new MetricsServer(9405);
     private Handler handler = new Handler();
 
     @Override
@@ -26,14 +66,34 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         sContext = getApplicationContext();
+        CpuSpans.setEnabled(true);
+        if (sRingWriter == null) {
+            try {
+                sRingWriter = new CpuTraceWriter(
+                        new MmapRingLog(new File(getFilesDir(), "cpu_ring.bin"), 1024 * 1024));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (BuildConfig.DEBUG) {
+            try {
+                metricsServer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        adaptiveSampler.start();
 
         final Button testGc = findViewById(R.id.test_gc);
         testGc.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 processCpuTracker.update();
-                testGc();
+                try (CpuSpans.Span span = CpuSpans.begin("testGc")) {
+                    testGc();
+                }
                 processCpuTracker.update();
+                hotThreadSampler.check();
                 android.util.Log.e("ProcessCpuTracker",
                         processCpuTracker.printCurrentState(SystemClock.uptimeMillis()));
             }
@@ -50,6 +110,7 @@ public class MainActivity extends AppCompatActivity {
                     @Override
                     public void run() {
                         processCpuTracker.update();
+                        hotThreadSampler.check();
                         android.util.Log.e("ProcessCpuTracker",
                                 processCpuTracker.printCurrentState(SystemClock.uptimeMillis()));
                     }
@@ -62,8 +123,11 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 processCpuTracker.update();
+                hotThreadSampler.check();
                 android.util.Log.e("ProcessCpuTracker",
                         processCpuTracker.printCurrentState(SystemClock.uptimeMillis()));
+                android.util.Log.e("ProcessCpuTracker", CpuSpans.printCurrentState());
+                android.util.Log.e("ProcessCpuTracker", adaptiveSampler.printCurrentState());
             }
         });
 
@@ -0,0 +1,501 @@
+package com.lang.chapter05;
+
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Serves the tracker samples as Prometheus text exposition on
+ * {@code http://127.0.0.1:<port>/metrics}, so a scraper on the device or behind
+ * {@code adb forward tcp:<port> tcp:<port>} can chart a soak test.
+ * <p>
+ * Call {@link #publish(CpuSnapshot)} with every snapshot; the intervals are summed up into
+ * counters since the server started. The socket is bound to the loopback address only.
+ * Requests are answered one after the other on a single thread, and the response is
+ * rendered byte by byte into a buffer that is reused across scrapes, so a scrape allocates
+ * the same handful of objects however many threads there are.
+ */
+public class MetricsServer {
+    private static final String TAG = "MetricsServer";
+
+    private static final byte[] RESPONSE_OK = ascii("HTTP/1.1 200 OK\r\n"
+            + "Content-Type: text/plain; version=0.0.4\r\nConnection: close\r\nContent-Length: ");
+    private static final byte[] RESPONSE_NOT_FOUND = ascii("HTTP/1.1 404 Not Found\r\n"
+            + "Connection: close\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] REQUEST_METRICS = ascii("GET /metrics ");
+    private static final String[] SYSTEM_MODES = {
+            "user", "system", "iowait", "irq", "softirq", "idle"};
+
+    static class ThreadTotals {
+        final int tid;
+        String name;
+        long utime;
+        long stime;
+        long minFaults;
+        long majFaults;
+        long readBytes;
+        long writeBytes;
+        int generation;
+
+        ThreadTotals(int tid) {
+            this.tid = tid;
+        }
+    }
+
+    private final int mPort;
+
+    // Guarded by this.
+    private final SparseArray<ThreadTotals> mThreads = new SparseArray<>();
+    private final ThreadTotals mProcess = new ThreadTotals(Process.myPid());
+    private final long[] mSystemTimes = new long[6];
+    private float mLoad1;
+    private float mLoad5;
+    private float mLoad15;
+    private long mGcCount;
+    private long mGcTime;
+    private long mMemRss;
+    private long mMemPss;
+    private long mMemSwap;
+    private long mCgroupUsage;
+    private long mCgroupThrottled;
+    private long mCgroupNrThrottled;
+    private int mGeneration;
+    private long mSamples;
+
+    // Only touched on the server thread.
+    private byte[] mBody = new byte[16 * 1024];
+    private int mBodyLength;
+    private final byte[] mHeader = new byte[256];
+    private final byte[] mRequest = new byte[1024];
+
+    private volatile ServerSocket mServerSocket;
+    private Thread mThread;
+
+    public MetricsServer(int port) {
+        mPort = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mThread != null) {
+            return;
+        }
+        mServerSocket = new ServerSocket(mPort, 4, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                serve();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        final ServerSocket socket = mServerSocket;
+        mServerSocket = null;
+        mThread = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The port actually bound, useful when constructed with port 0.
+     */
+    public int getLocalPort() {
+        final ServerSocket socket = mServerSocket;
+        return socket != null ? socket.getLocalPort() : -1;
+    }
+
+    /**
+     * Adds the interval of {@code snapshot} to the counters. May be called on any thread.
+     */
+    public synchronized void publish(CpuSnapshot snapshot) {
+        mSamples++;
+        final long[] sys = mSystemTimes;
+        sys[0] += snapshot.sysUserTime;
+        sys[1] += snapshot.sysSystemTime;
+        sys[2] += snapshot.sysIoWaitTime;
+        sys[3] += snapshot.sysIrqTime;
+        sys[4] += snapshot.sysSoftIrqTime;
+        sys[5] += snapshot.sysIdleTime;
+        mLoad1 = snapshot.load1;
+        mLoad5 = snapshot.load5;
+        mLoad15 = snapshot.load15;
+        mGcCount += snapshot.gcCount;
+        mGcTime += snapshot.gcTime;
+        mMemRss = snapshot.memRss;
+        mMemPss = snapshot.memPss;
+        mMemSwap = snapshot.memSwap;
+        mCgroupUsage += snapshot.cgroupUsageUsec;
+        mCgroupThrottled += snapshot.cgroupThrottledUsec;
+        mCgroupNrThrottled += snapshot.cgroupNrThrottled;
+        add(mProcess, snapshot.process);
+
+        final int generation = ++mGeneration;
+        for (int i = 0; i < snapshot.threadCount; i++) {
+            final CpuSnapshot.ThreadRecord rec = snapshot.threads[i];
+            ThreadTotals totals = mThreads.get(rec.tid);
+            if (totals == null) {
+                totals = new ThreadTotals(rec.tid);
+                mThreads.put(rec.tid, totals);
+            }
+            add(totals, rec);
+            totals.generation = generation;
+        }
+        // Threads missing from the snapshot have exited, their series end here.
+        for (int i = mThreads.size() - 1; i >= 0; i--) {
+            if (mThreads.valueAt(i).generation != generation) {
+                mThreads.removeAt(i);
+            }
+        }
+    }
+
+    private static void add(ThreadTotals totals, CpuSnapshot.ThreadRecord rec) {
+        totals.name = rec.name;
+        totals.utime += rec.utime;
+        totals.stime += rec.stime;
+        totals.minFaults += rec.minFaults;
+        totals.majFaults += rec.majFaults;
+        totals.readBytes += rec.readBytes;
+        totals.writeBytes += rec.writeBytes;
+    }
+
+    private void serve() {
+        ServerSocket server;
+        while ((server = mServerSocket) != null) {
+            try {
+                final Socket socket = server.accept();
+                try {
+                    socket.setSoTimeout(5000);
+                    handle(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (mServerSocket != null) {
+                    Log.w(TAG, "scrape failed", e);
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        final InputStream in = socket.getInputStream();
+        final OutputStream out = socket.getOutputStream();
+        // Read up to the end of the headers, only the request line matters.
+        int length = 0;
+        while (length < mRequest.length) {
+            final int n = in.read(mRequest, length, mRequest.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+            if (endsHeaders(length)) {
+                break;
+            }
+        }
+        if (!startsWith(mRequest, length, REQUEST_METRICS)) {
+            out.write(RESPONSE_NOT_FOUND);
+            out.flush();
+            return;
+        }
+
+        synchronized (this) {
+            render();
+        }
+        int headerLength = copy(RESPONSE_OK, mHeader, 0);
+        headerLength = putLong(mHeader, headerLength, mBodyLength);
+        mHeader[headerLength++] = '\r';
+        mHeader[headerLength++] = '\n';
+        mHeader[headerLength++] = '\r';
+        mHeader[headerLength++] = '\n';
+        out.write(mHeader, 0, headerLength);
+        out.write(mBody, 0, mBodyLength);
+        out.flush();
+    }
+
+    private boolean endsHeaders(int length) {
+        return length >= 4 && mRequest[length - 4] == '\r' && mRequest[length - 3] == '\n'
+                && mRequest[length - 2] == '\r' && mRequest[length - 1] == '\n';
+    }
+
+    private void render() {
+        mBodyLength = 0;
+
+        help("cpu_tracker_samples_total", "counter", "Tracker intervals published.");
+        name("cpu_tracker_samples_total");
+        value(mSamples);
+
+        help("cpu_tracker_system_cpu_seconds_total", "counter",
+                "CPU time of all cores from /proc/stat.");
+        for (int i = 0; i < mSystemTimes.length; i++) {
+            name("cpu_tracker_system_cpu_seconds_total");
+            label('{', "mode", SYSTEM_MODES[i]);
+            text("} ");
+            millisValue(mSystemTimes[i]);
+        }
+
+        help("cpu_tracker_load_average", "gauge", "Load averages from /proc/loadavg.");
+        load("1m", mLoad1);
+        load("5m", mLoad5);
+        load("15m", mLoad15);
+
+        help("cpu_tracker_process_cpu_seconds_total", "counter", "CPU time of the process.");
+        cpu("cpu_tracker_process_cpu_seconds_total", mProcess, false);
+        help("cpu_tracker_process_page_faults_total", "counter", "Page faults of the process.");
+        faults("cpu_tracker_process_page_faults_total", mProcess, false);
+        help("cpu_tracker_process_io_bytes_total", "counter",
+                "Bytes the process read from and wrote to storage.");
+        io("cpu_tracker_process_io_bytes_total", mProcess, false);
+
+        help("cpu_tracker_thread_cpu_seconds_total", "counter", "CPU time per thread.");
+        final int N = mThreads.size();
+        for (int i = 0; i < N; i++) {
+            cpu("cpu_tracker_thread_cpu_seconds_total", mThreads.valueAt(i), true);
+        }
+        help("cpu_tracker_thread_page_faults_total", "counter", "Page faults per thread.");
+        for (int i = 0; i < N; i++) {
+            faults("cpu_tracker_thread_page_faults_total", mThreads.valueAt(i), true);
+        }
+        help("cpu_tracker_thread_io_bytes_total", "counter", "Storage I/O per thread.");
+        for (int i = 0; i < N; i++) {
+            io("cpu_tracker_thread_io_bytes_total", mThreads.valueAt(i), true);
+        }
+
+        help("cpu_tracker_gc_collections_total", "counter", "Garbage collections.");
+        name("cpu_tracker_gc_collections_total");
+        value(mGcCount);
+        help("cpu_tracker_gc_seconds_total", "counter", "Time spent in garbage collection.");
+        name("cpu_tracker_gc_seconds_total");
+        text(" ");
+        millisValue(mGcTime);
+
+        help("cpu_tracker_memory_bytes", "gauge", "Memory footprint of the process.");
+        memory("rss", mMemRss);
+        memory("pss", mMemPss);
+        memory("swap", mMemSwap);
+
+        if (mCgroupUsage > 0) {
+            help("cpu_tracker_cgroup_cpu_seconds_total", "counter", "CPU usage of the cgroup.");
+            name("cpu_tracker_cgroup_cpu_seconds_total");
+            text(" ");
+            millisValue(mCgroupUsage / 1000);
+            help("cpu_tracker_cgroup_throttled_seconds_total", "counter",
+                    "Time the cgroup was throttled by its CPU quota.");
+            name("cpu_tracker_cgroup_throttled_seconds_total");
+            text(" ");
+            millisValue(mCgroupThrottled / 1000);
+            help("cpu_tracker_cgroup_throttled_periods_total", "counter",
+                    "Quota periods in which the cgroup was throttled.");
+            name("cpu_tracker_cgroup_throttled_periods_total");
+            value(mCgroupNrThrottled);
+        }
+    }
+
+    private void cpu(String metric, ThreadTotals t, boolean thread) {
+        labels(metric, t, thread, "mode", "user");
+        millisValue(t.utime);
+        labels(metric, t, thread, "mode", "system");
+        millisValue(t.stime);
+    }
+
+    private void faults(String metric, ThreadTotals t, boolean thread) {
+        labels(metric, t, thread, "type", "minor");
+        putLong(t.minFaults);
+        newline();
+        labels(metric, t, thread, "type", "major");
+        putLong(t.majFaults);
+        newline();
+    }
+
+    private void io(String metric, ThreadTotals t, boolean thread) {
+        labels(metric, t, thread, "direction", "read");
+        putLong(t.readBytes);
+        newline();
+        labels(metric, t, thread, "direction", "write");
+        putLong(t.writeBytes);
+        newline();
+    }
+
+    private void load(String period, float load) {
+        name("cpu_tracker_load_average");
+        label('{', "period", period);
+        text("} ");
+        final long hundredths = (long) (load * 100 + 0.5f);
+        putLong(hundredths / 100);
+        put('.');
+        putPadded(hundredths % 100, 2);
+        newline();
+    }
+
+    private void memory(String type, long kb) {
+        name("cpu_tracker_memory_bytes");
+        label('{', "type", type);
+        text("} ");
+        putLong(kb * 1024);
+        newline();
+    }
+
+    /**
+     * {@code metric{tid="..",name="..",key="value"} } for threads, only the key for the
+     * process.
+     */
+    private void labels(String metric, ThreadTotals t, boolean thread, String key, String value) {
+        name(metric);
+        if (thread) {
+            text("{tid=\"");
+            putLong(t.tid);
+            put('"');
+            label(',', "name", t.name != null ? t.name : "");
+            label(',', key, value);
+        } else {
+            label('{', key, value);
+        }
+        text("} ");
+    }
+
+    private void help(String metric, String type, String help) {
+        text("# HELP ");
+        text(metric);
+        put(' ');
+        text(help);
+        newline();
+        text("# TYPE ");
+        text(metric);
+        put(' ');
+        text(type);
+        newline();
+    }
+
+    private void name(String metric) {
+        text(metric);
+    }
+
+    private void label(char separator, String key, String value) {
+        put(separator);
+        text(key);
+        text("=\"");
+        final int len = value.length();
+        for (int i = 0; i < len; i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                put('\\');
+                put(c);
+            } else if (c == '\n') {
+                put('\\');
+                put('n');
+            } else {
+                put(c < 0x80 ? c : '?');
+            }
+        }
+        put('"');
+    }
+
+    private void value(long value) {
+        put(' ');
+        putLong(value);
+        newline();
+    }
+
+    /**
+     * Writes milliseconds as seconds with three decimals.
+     */
+    private void millisValue(long ms) {
+        putLong(ms / 1000);
+        put('.');
+        putPadded(ms % 1000, 3);
+        newline();
+    }
+
+    private void text(String s) {
+        final int len = s.length();
+        ensureCapacity(len);
+        for (int i = 0; i < len; i++) {
+            mBody[mBodyLength++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void newline() {
+        put('\n');
+    }
+
+    private void put(char c) {
+        ensureCapacity(1);
+        mBody[mBodyLength++] = (byte) c;
+    }
+
+    private void putLong(long value) {
+        ensureCapacity(20);
+        mBodyLength = putLong(mBody, mBodyLength, value);
+    }
+
+    private void putPadded(long value, int digits) {
+        for (long limit = 10; digits > 1; digits--, limit *= 10) {
+            if (value < limit) {
+                put('0');
+            }
+        }
+        putLong(value);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mBodyLength + extra > mBody.length) {
+            final byte[] grown = new byte[Math.max(mBodyLength + extra, mBody.length * 2)];
+            System.arraycopy(mBody, 0, grown, 0, mBodyLength);
+            mBody = grown;
+        }
+    }
+
+    private static int putLong(byte[] buffer, int offset, long value) {
+        if (value < 0) {
+            buffer[offset++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[offset + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+
+    private static int copy(byte[] src, byte[] dst, int offset) {
+        System.arraycopy(src, 0, dst, offset, src.length);
+        return offset + src.length;
+    }
+
+    private static boolean startsWith(byte[] buffer, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
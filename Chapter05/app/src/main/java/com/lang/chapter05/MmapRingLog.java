@@ -0,0 +1,300 @@
+package com.lang.chapter05;
+
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size ring of binary records in a memory-mapped file, meant for the recent history
+ * that explains an ANR or an OOM kill after the fact.
+ * <p>
+ * The file is a small header followed by the ring. An append reserves its bytes with one
+ * atomic add on the write position and then copies the record into the mapping, so any
+ * number of threads can append at once without locks or system calls; the kernel writes the
+ * dirty pages back on its own, also after the process was killed. Only a power loss or a
+ * kernel crash can lose records.
+ * <p>
+ * Every record is 8-byte aligned and starts with a header carrying its own position in the
+ * stream and a checksum over header and payload. {@link #recover(File, int)} scans the ring
+ * for such headers, so it needs no separate index that could be stale: a record that was
+ * torn by a crash, or partly overwritten by a newer one, fails its checksum and is skipped.
+ */
+public class MmapRingLog implements Closeable {
+    private static final int MAGIC = 0x4350524C; // "CPRL"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 64;
+
+    // Record header: position (8), uptime (8), payload length (4), type (4), checksum (4),
+    // padding (4).
+    private static final int RECORD_HEADER_SIZE = 32;
+    private static final int RECORD_POSITION = 0;
+    private static final int RECORD_UPTIME = 8;
+    private static final int RECORD_LENGTH = 16;
+    private static final int RECORD_TYPE = 20;
+    private static final int RECORD_CHECKSUM = 24;
+
+    private static final int FNV_OFFSET = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    public static class Record {
+        /**
+         * Offset of the record in the stream of everything ever appended.
+         */
+        public final long position;
+        public final long uptime;
+        public final int type;
+        public final byte[] data;
+
+        Record(long position, long uptime, int type, byte[] data) {
+            this.position = position;
+            this.uptime = uptime;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final AtomicLong mWritePosition;
+
+    /**
+     * Opens or creates the ring. An existing ring of the same capacity is continued after
+     * its newest intact record, anything else is started over.
+     *
+     * @param capacity size of the ring in bytes, rounded down to a multiple of 8
+     */
+    public MmapRingLog(File file, int capacity) throws IOException {
+        mCapacity = capacity & ~7;
+        if (mCapacity < RECORD_HEADER_SIZE * 4) {
+            throw new IllegalArgumentException("Ring too small: " + capacity);
+        }
+        mFile = new RandomAccessFile(file, "rw");
+        final long size = FILE_HEADER_SIZE + (long) mCapacity;
+        final boolean reuse = mFile.length() == size && readHeader(mFile) == mCapacity;
+        mFile.setLength(size);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        long position = 0;
+        if (reuse) {
+            final List<Record> records = scan(mBuffer, mCapacity);
+            if (!records.isEmpty()) {
+                final Record last = records.get(records.size() - 1);
+                position = last.position + align(RECORD_HEADER_SIZE + last.data.length);
+            }
+        } else {
+            for (int i = 0; i < mCapacity; i += 8) {
+                mBuffer.putLong(FILE_HEADER_SIZE + i, 0);
+            }
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(8, mCapacity);
+        }
+        mWritePosition = new AtomicLong(position);
+    }
+
+    /**
+     * Appends a record. Safe to call from any thread; does not allocate.
+     *
+     * @param type free for the caller to tell its records apart
+     * @return false if the record is larger than a quarter of the ring
+     */
+    public boolean append(int type, byte[] data, int offset, int length) {
+        final int size = align(RECORD_HEADER_SIZE + length);
+        if (size > mCapacity / 4) {
+            return false;
+        }
+        final long position = mWritePosition.getAndAdd(size);
+        final long uptime = SystemClock.uptimeMillis();
+
+        int checksum = FNV_OFFSET;
+        checksum = hashLong(checksum, position);
+        checksum = hashLong(checksum, uptime);
+        checksum = hashInt(checksum, length);
+        checksum = hashInt(checksum, type);
+        for (int i = 0; i < length; i++) {
+            checksum = (checksum ^ (data[offset + i] & 0xFF)) * FNV_PRIME;
+        }
+
+        // Payload first and the header last, so a reader racing with the append is more
+        // likely to see an old header that no longer checks out than a new one ahead of
+        // its payload. The checksum decides either way.
+        final int start = (int) (position % mCapacity);
+        for (int i = 0; i < length; i++) {
+            mBuffer.put(offsetOf(start, RECORD_HEADER_SIZE + i), data[offset + i]);
+        }
+        putInt(start, RECORD_TYPE, type);
+        putInt(start, RECORD_LENGTH, length);
+        putLong(start, RECORD_UPTIME, uptime);
+        putLong(start, RECORD_POSITION, position);
+        putInt(start, RECORD_CHECKSUM, checksum);
+        return true;
+    }
+
+    /**
+     * How often the ring has been filled, i.e. how often old records have started to be
+     * overwritten.
+     */
+    public long getWrapCount() {
+        return mWritePosition.get() / mCapacity;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Asks the kernel to write the mapping back now. Not needed for crashes or kills of the
+     * process, only against losing the tail on a power loss.
+     */
+    public void force() {
+        mBuffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBuffer.force();
+        mFile.close();
+    }
+
+    /**
+     * Reads the newest intact records of a ring, e.g. one left behind by a process that
+     * died, oldest first.
+     *
+     * @param maxRecords how many records to return at most
+     */
+    public static List<Record> recover(File file, int maxRecords) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final int capacity = readHeader(raf);
+            if (capacity <= 0 || raf.length() < FILE_HEADER_SIZE + (long) capacity) {
+                throw new IOException("Not a ring log: " + file);
+            }
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, FILE_HEADER_SIZE + (long) capacity);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            final List<Record> records = scan(buffer, capacity);
+            return records.size() > maxRecords
+                    ? new ArrayList<>(records.subList(records.size() - maxRecords, records.size()))
+                    : records;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int readHeader(RandomAccessFile raf) throws IOException {
+        if (raf.length() < FILE_HEADER_SIZE) {
+            return -1;
+        }
+        raf.seek(0);
+        final int magic = Integer.reverseBytes(raf.readInt());
+        final int version = Integer.reverseBytes(raf.readInt());
+        final int capacity = Integer.reverseBytes(raf.readInt());
+        if (magic != MAGIC || version != VERSION || (capacity & 7) != 0) {
+            return -1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Collects every record whose header sits where its position says and whose checksum
+     * holds, drops those that newer records have overwritten, and sorts the rest by position.
+     */
+    private static List<Record> scan(MappedByteBuffer buffer, int capacity) {
+        final List<Record> records = new ArrayList<>();
+        long end = 0;
+        for (int start = 0; start < capacity; start += 8) {
+            final long position = buffer.getLong(FILE_HEADER_SIZE + start);
+            if (position < 0 || position % capacity != start) {
+                continue;
+            }
+            final long uptime = getLong(buffer, capacity, start, RECORD_UPTIME);
+            final int length = getInt(buffer, capacity, start, RECORD_LENGTH);
+            final int type = getInt(buffer, capacity, start, RECORD_TYPE);
+            if (length < 0 || align(RECORD_HEADER_SIZE + length) > capacity / 4) {
+                continue;
+            }
+            int checksum = FNV_OFFSET;
+            checksum = hashLong(checksum, position);
+            checksum = hashLong(checksum, uptime);
+            checksum = hashInt(checksum, length);
+            checksum = hashInt(checksum, type);
+            final byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = buffer.get(FILE_HEADER_SIZE
+                        + (start + RECORD_HEADER_SIZE + i) % capacity);
+                checksum = (checksum ^ (data[i] & 0xFF)) * FNV_PRIME;
+            }
+            if (checksum != getInt(buffer, capacity, start, RECORD_CHECKSUM)) {
+                continue;
+            }
+            records.add(new Record(position, uptime, type, data));
+            end = Math.max(end, position + align(RECORD_HEADER_SIZE + length));
+        }
+
+        // Records before the last pass over the ring may still check out where the newer
+        // ones have not reached their header, but their bytes are no longer theirs.
+        for (int i = records.size() - 1; i >= 0; i--) {
+            if (records.get(i).position < end - capacity) {
+                records.remove(i);
+            }
+        }
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return a.position < b.position ? -1 : (a.position == b.position ? 0 : 1);
+            }
+        });
+        return records;
+    }
+
+    private int offsetOf(int start, int field) {
+        return FILE_HEADER_SIZE + (start + field) % mCapacity;
+    }
+
+    // Header fields are 4-byte aligned and the ring a multiple of 8, so a field never
+    // straddles the end of the ring.
+    private void putInt(int start, int field, int value) {
+        mBuffer.putInt(offsetOf(start, field), value);
+    }
+
+    private void putLong(int start, int field, long value) {
+        putInt(start, field, (int) value);
+        putInt(start, field + 4, (int) (value >>> 32));
+    }
+
+    private static int getInt(MappedByteBuffer buffer, int capacity, int start, int field) {
+        return buffer.getInt(FILE_HEADER_SIZE + (start + field) % capacity);
+    }
+
+    private static long getLong(MappedByteBuffer buffer, int capacity, int start, int field) {
+        return (getInt(buffer, capacity, start, field) & 0xFFFFFFFFL)
+                | ((long) getInt(buffer, capacity, start, field + 4) << 32);
+    }
+
+    private static int hashInt(int hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash = (hash ^ ((value >>> (i * 8)) & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static int hashLong(int hash, long value) {
+        return hashInt(hashInt(hash, (int) value), (int) (value >>> 32));
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+}
@@ -29,10 +29,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -110,31 +110,121 @@ public class ProcessCpuTracker {
 
     private final ArrayList<Stats> mProcStats = new ArrayList<Stats>();
     private final ArrayList<Stats> mWorkingProcs = new ArrayList<Stats>();
+    // Processes that disappeared during the last update, reported once.
+    private final ArrayList<Stats> mRemovedProcs = new ArrayList<Stats>();
     private boolean mWorkingProcsSorted;
 
+    // Whether update() also scans every /proc/<pid>, not only the tracked process.
+    private final boolean mIncludeSystemProcs;
+
     private boolean mFirst = true;
 
     private byte[] mBuffer = new byte[4096];
 
+    // Reused by printCurrentState, which is called once per interval.
+    @SuppressLint("SimpleDateFormat")
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private final Date mDate = new Date();
+    private final StringWriter mStateWriter = new StringWriter(4096);
+    private final PrintWriter mStatePrinter = new PrintWriter(mStateWriter, false);
+
     // /proc/self/stat
     private static final int PROCESS_STATS_STATUS = 2 - 2;
     private static final int PROCESS_STATS_MINOR_FAULTS = 9 - 2;
     private static final int PROCESS_STATS_MAJOR_FAULTS = 11 - 2;
     private static final int PROCESS_STATS_UTIME = 13 - 2;
     private static final int PROCESS_STATS_STIME = 14 - 2;
-
-    // /proc/stat
-    private static final int SYSTEM_STATS_USER_TIME = 2;
-    private static final int SYSTEM_STATS_NICE_TIME = 3;
-    private static final int SYSTEM_STATS_SYS_TIME = 4;
-    private static final int SYSTEM_STATS_IDLE_TIME = 5;
-    private static final int SYSTEM_STATS_IOWAIT_TIME = 6;
-    private static final int SYSTEM_STATS_IRQ_TIME = 7;
-    private static final int SYSTEM_STATS_SOFT_IRQ_TIME = 8;
+    private static final int PROCESS_STATS_VSIZE = 22 - 2;
+
+    // /proc/self/io, /proc/self/task/<tid>/io
+    private static final byte[][] IO_STATS_KEYS = {
+            "syscr:".getBytes(), "syscw:".getBytes(), "read_bytes:".getBytes(),
+            "write_bytes:".getBytes(), "cancelled_write_bytes:".getBytes()};
+    private static final int IO_STATS_SYSCR = 0;
+    private static final int IO_STATS_SYSCW = 1;
+    private static final int IO_STATS_READ_BYTES = 2;
+    private static final int IO_STATS_WRITE_BYTES = 3;
+    private static final int IO_STATS_CANCELLED_WRITE_BYTES = 4;
+
+    // How many threads printCurrentState lists in the I/O ranking.
+    private static final int TOP_IO_THREADS = 5;
+
+    private final long[] mIoStatsData = new long[IO_STATS_KEYS.length];
+    private final ArrayList<Stats> mIoSortedThreads = new ArrayList<Stats>();
+
+    // /proc/self/task/<tid>/schedstat
+    private static final int SCHED_STATS_RUN_TIME = 0;
+    private static final int SCHED_STATS_WAIT_TIME = 1;
+    private static final int SCHED_STATS_TIMESLICES = 2;
+
+    // /proc/self/task/<tid>/status
+    private static final byte[][] STATUS_CTXT_KEYS = {
+            "voluntary_ctxt_switches:".getBytes(), "nonvoluntary_ctxt_switches:".getBytes()};
+    private static final int STATUS_VOLUNTARY_CTXT = 0;
+    private static final int STATUS_NONVOLUNTARY_CTXT = 1;
+
+    // How many threads printCurrentState lists in the run-queue delay ranking.
+    private static final int TOP_SCHED_THREADS = 5;
+
+    private final long[] mSchedStatsData = new long[3];
+    private final long[] mStatusCtxtData = new long[STATUS_CTXT_KEYS.length];
+    // False once schedstat turned out to be missing (kernel without CONFIG_SCHED_INFO).
+    private boolean mHasSchedStats = true;
+
+    // /proc/self/statm, in pages
+    private static final int STATM_SIZE = 0;
+    private static final int STATM_RESIDENT = 1;
+    private static final int STATM_SHARED = 2;
+
+    // /proc/self/smaps_rollup, in kB
+    private static final byte[][] ROLLUP_KEYS = {
+            "Rss:".getBytes(), "Pss:".getBytes(), "Pss_Anon:".getBytes(),
+            "Pss_File:".getBytes(), "Pss_Shmem:".getBytes(), "Anonymous:".getBytes(),
+            "Swap:".getBytes(), "SwapPss:".getBytes()};
+    private static final int ROLLUP_PSS = 1;
+    private static final int ROLLUP_PSS_ANON = 2;
+    private static final int ROLLUP_PSS_FILE = 3;
+    private static final int ROLLUP_PSS_SHMEM = 4;
+    private static final int ROLLUP_ANONYMOUS = 5;
+    private static final int ROLLUP_SWAP = 6;
+    private static final int ROLLUP_SWAP_PSS = 7;
+
+    // smaps_rollup walks every mapping of the process in the kernel, so it is read at most
+    // every MIN ms, at least every MAX ms, and in between only when RSS moved noticeably.
+    private static final long MEMORY_ROLLUP_MIN_INTERVAL = 5 * 1000;
+    private static final long MEMORY_ROLLUP_MAX_INTERVAL = 60 * 1000;
+    private static final long MEMORY_ROLLUP_RSS_DELTA_KB = 4 * 1024;
+
+    private final long mPageKb;
+    private final long[] mStatmData = new long[3];
+    private final long[] mRollupData = new long[ROLLUP_KEYS.length];
+    private final MemoryStats mMemoryStats = new MemoryStats();
+
+    // /proc/stat, index of the value after the "cpu"/"cpuN" label
+    private static final int SYSTEM_STATS_USER_TIME = 0;
+    private static final int SYSTEM_STATS_NICE_TIME = 1;
+    private static final int SYSTEM_STATS_SYS_TIME = 2;
+    private static final int SYSTEM_STATS_IDLE_TIME = 3;
+    private static final int SYSTEM_STATS_IOWAIT_TIME = 4;
+    private static final int SYSTEM_STATS_IRQ_TIME = 5;
+    private static final int SYSTEM_STATS_SOFT_IRQ_TIME = 6;
+
+    // Per-core entries of /proc/stat, indexed by cpu number. Offline cores keep their entry
+    // with online == false.
+    private final ArrayList<CpuCoreStats> mCpuCoreStats = new ArrayList<CpuCoreStats>();
+    private final long[] mCpuCoreData = new long[7];
+    // /proc/stat is far larger than a page on many-core machines (the intr line alone), only
+    // the leading cpu lines are read.
+    private byte[] mSystemStatBuffer = new byte[4096];
+    // time_in_state has a row per frequency step, a few dozen on big cores.
+    private byte[] mTimeInStateBuffer = new byte[1024];
 
     private Stats mCurrentProcStat;
     private int mCurrentProcID;
 
+    private final GcMonitor mGcMonitor = new GcMonitor();
+    private final CgroupCpuStats mCgroupStats = new CgroupCpuStats();
+
     public interface FilterStats {
         /**
          * Which stats to pick when filtering
@@ -145,6 +235,9 @@ public class ProcessCpuTracker {
     public static class Stats {
         public final int pid;
         final String statFile;
+        final String ioFile;
+        final String schedstatFile;
+        final String statusFile;
         final String cmdlineFile;
         final String threadsDir;
         final ArrayList<Stats> threadStats = null;
@@ -203,17 +296,60 @@ public class ProcessCpuTracker {
 
         public String status;
 
+        /**
+         * Storage I/O from the io file, in bytes and syscall counts. The rel_ values are the
+         * deltas of the last interval. read_bytes/write_bytes are what actually hit (or will
+         * hit) the block layer, unlike rchar/wchar which include page cache hits.
+         */
+        public long base_read_bytes;
+        public long base_write_bytes;
+        public long base_cancelled_write_bytes;
+        public long base_syscr;
+        public long base_syscw;
+        public long rel_read_bytes;
+        public long rel_write_bytes;
+        public long rel_cancelled_write_bytes;
+        public long rel_syscr;
+        public long rel_syscw;
+
+        /**
+         * Scheduler stats in nanoseconds: time spent on the CPU, time spent runnable on a
+         * run queue waiting for a CPU, and the number of timeslices run. Collected for threads;
+         * the process values are the sum over its threads.
+         */
+        public long base_run_ns;
+        public long base_wait_ns;
+        public long base_timeslices;
+        public long rel_run_ns;
+        public long rel_wait_ns;
+        public long rel_timeslices;
+
+        /**
+         * Context switches from status. Voluntary ones mean the thread blocked, involuntary
+         * ones mean it was preempted while it still wanted to run.
+         */
+        public long base_voluntary_ctxt;
+        public long base_nonvoluntary_ctxt;
+        public long rel_voluntary_ctxt;
+        public long rel_nonvoluntary_ctxt;
+
         Stats(int _pid, boolean isThread) {
             pid = _pid;
             if (isThread) {
                 final File procDir = new File("/proc/self/task", Integer.toString(pid));
                 workingThreads = null;
                 statFile = procDir + "/stat";
+                ioFile = procDir + "/io";
+                schedstatFile = procDir + "/schedstat";
+                statusFile = procDir + "/status";
                 cmdlineFile = new File(procDir, "comm").toString();
                 threadsDir = null;
             } else {
                 final File procDir = new File("/proc", Integer.toString(pid));
                 statFile = new File(procDir, "stat").toString();
+                ioFile = new File(procDir, "io").toString();
+                schedstatFile = new File(procDir, "schedstat").toString();
+                statusFile = new File(procDir, "status").toString();
                 cmdlineFile = new File(procDir, "cmdline").toString();
                 threadsDir = (new File(procDir, "task")).toString();
                 workingThreads = new ArrayList<>();
@@ -221,6 +357,171 @@ public class ProcessCpuTracker {
         }
     }
 
+    /**
+     * One cpuN line of /proc/stat plus the cpufreq state of that core.
+     */
+    public static class CpuCoreStats {
+        public final int cpu;
+        final String curFreqFile;
+        final String maxFreqFile;
+        final String timeInStateFile;
+
+        public boolean online;
+
+        /**
+         * Times in milliseconds, user includes nice.
+         */
+        public long base_utime;
+        public long base_stime;
+        public long base_iowait;
+        public long base_irq;
+        public long base_softirq;
+        public long base_idle;
+        public int rel_utime;
+        public int rel_stime;
+        public int rel_iowait;
+        public int rel_irq;
+        public int rel_softirq;
+        public int rel_idle;
+
+        /**
+         * Frequencies in kHz. The effective frequency is the time weighted average from
+         * time_in_state over the last interval, or the current frequency when the
+         * cpufreq stats are not readable. 0 when unknown.
+         */
+        public long cur_freq;
+        public long max_freq;
+        public long effective_freq;
+
+        // time_in_state of the previous sample: frequency and cumulative time pairs.
+        long[] baseTimeInState = new long[32];
+        int baseTimeInStateCount;
+        boolean hasTimeInState = true;
+
+        CpuCoreStats(int _cpu) {
+            cpu = _cpu;
+            final String cpufreqDir = "/sys/devices/system/cpu/cpu" + cpu + "/cpufreq/";
+            curFreqFile = cpufreqDir + "scaling_cur_freq";
+            maxFreqFile = cpufreqDir + "cpuinfo_max_freq";
+            timeInStateFile = cpufreqDir + "stats/time_in_state";
+        }
+
+        /**
+         * Busy percent of the last interval.
+         */
+        public int busyPercent() {
+            final int busy = rel_utime + rel_stime + rel_irq + rel_softirq;
+            final int total = busy + rel_iowait + rel_idle;
+            return total > 0 ? busy * 100 / total : 0;
+        }
+    }
+
+    /**
+     * Memory footprint of the tracked process. statm values are refreshed on every update,
+     * smaps_rollup values adaptively, see {@link #rollup_uptime}. All sizes in kB.
+     */
+    public static class MemoryStats {
+        // Number of samples kept in the history ring.
+        static final int HISTORY_SIZE = 120;
+
+        public long vsize;
+        public long rss;
+        public long shared;
+
+        public long pss;
+        public long pss_anon;
+        public long pss_file;
+        public long pss_shmem;
+        public long anon;
+        public long swap;
+        public long swap_pss;
+
+        /**
+         * Whether smaps_rollup exists (Linux 4.14+); without it the pss and swap values
+         * stay 0.
+         */
+        public boolean has_rollup = true;
+
+        /**
+         * Uptime of the last smaps_rollup read and how long it took, in microseconds.
+         */
+        public long rollup_uptime;
+        public long rollup_cost_us;
+
+        long rollupRss;
+
+        // Ring of the last HISTORY_SIZE updates, oldest at historyStart, so that memory and
+        // CPU trends can be read off one timeline.
+        final long[] historyUptime = new long[HISTORY_SIZE];
+        final long[] historyRss = new long[HISTORY_SIZE];
+        final long[] historyPss = new long[HISTORY_SIZE];
+        final long[] historySwap = new long[HISTORY_SIZE];
+        final int[] historyCpu = new int[HISTORY_SIZE];
+        int historyStart;
+        int historyCount;
+
+        void addHistory(long uptime, int cpuTime) {
+            final int index = (historyStart + historyCount) % HISTORY_SIZE;
+            historyUptime[index] = uptime;
+            historyRss[index] = rss;
+            historyPss[index] = pss;
+            historySwap[index] = swap;
+            historyCpu[index] = cpuTime;
+            if (historyCount < HISTORY_SIZE) {
+                historyCount++;
+            } else {
+                historyStart = (historyStart + 1) % HISTORY_SIZE;
+            }
+        }
+
+        public int countHistory() {
+            return historyCount;
+        }
+
+        /**
+         * Fills {@code out} with uptime, rss, pss, swap (kB) and process CPU time (ms) of the
+         * interval of history entry {@code i}, 0 being the oldest.
+         */
+        public void getHistory(int i, long[] out) {
+            final int index = (historyStart + i) % HISTORY_SIZE;
+            out[0] = historyUptime[index];
+            out[1] = historyRss[index];
+            out[2] = historyPss[index];
+            out[3] = historySwap[index];
+            out[4] = historyCpu[index];
+        }
+    }
+
+    private final static Comparator<Stats> sIoComparator = new Comparator<Stats>() {
+        public final int
+        compare(Stats sta, Stats stb) {
+            long ta = sta.rel_read_bytes + sta.rel_write_bytes;
+            long tb = stb.rel_read_bytes + stb.rel_write_bytes;
+            if (ta != tb) {
+                return ta > tb ? -1 : 1;
+            }
+            long ca = sta.rel_syscr + sta.rel_syscw;
+            long cb = stb.rel_syscr + stb.rel_syscw;
+            if (ca != cb) {
+                return ca > cb ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    private final static Comparator<Stats> sSchedDelayComparator = new Comparator<Stats>() {
+        public final int
+        compare(Stats sta, Stats stb) {
+            if (sta.rel_wait_ns != stb.rel_wait_ns) {
+                return sta.rel_wait_ns > stb.rel_wait_ns ? -1 : 1;
+            }
+            if (sta.rel_nonvoluntary_ctxt != stb.rel_nonvoluntary_ctxt) {
+                return sta.rel_nonvoluntary_ctxt > stb.rel_nonvoluntary_ctxt ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
     private final static Comparator<Stats> sLoadComparator = new Comparator<Stats>() {
         public final int
         compare(Stats sta, Stats stb) {
@@ -241,10 +542,23 @@ public class ProcessCpuTracker {
 
 
     public ProcessCpuTracker(int pid) {
+        this(pid, false);
+    }
+
+    /**
+     * @param includeSystemProcs also track every process visible in /proc, so that
+     *                           neighbours stealing CPU from the tracked process show up.
+     *                           Since Android N /proc only exposes other processes to
+     *                           privileged callers, so on devices this is mostly useful
+     *                           for debuggable builds and plain Linux hosts.
+     */
+    public ProcessCpuTracker(int pid, boolean includeSystemProcs) {
         long jiffyHz = Os.sysconf(OsConstants._SC_CLK_TCK);
         mJiffyMillis = 1000 / jiffyHz;
         mCurrentProcID = pid;
         mCurrentProcStat = new Stats(mCurrentProcID, false);
+        mIncludeSystemProcs = includeSystemProcs;
+        mPageKb = Os.sysconf(OsConstants._SC_PAGESIZE) / 1024;
     }
 
     public void update() {
@@ -254,18 +568,19 @@ public class ProcessCpuTracker {
         final long nowRealtime = SystemClock.elapsedRealtime();
         final long nowWallTime = System.currentTimeMillis();
 
-        final String[] sysCpu = readProcFile("/proc/stat");
-        if (sysCpu != null) {
+        final long[] sysCpu = mSystemCpuData;
+        if (collectSystemCpuStats()) {
             // Total user time is user + nice time.
-            final long usertime = Long.parseLong(sysCpu[SYSTEM_STATS_SYS_TIME]) * mJiffyMillis;
+            final long usertime = (sysCpu[SYSTEM_STATS_USER_TIME]
+                    + sysCpu[SYSTEM_STATS_NICE_TIME]) * mJiffyMillis;
             // Total system time is simply system time.
-            final long systemtime = Long.parseLong(sysCpu[SYSTEM_STATS_SYS_TIME]) * mJiffyMillis;
+            final long systemtime = sysCpu[SYSTEM_STATS_SYS_TIME] * mJiffyMillis;
             // Total idle time is simply idle time.
-            final long idletime = Long.parseLong(sysCpu[SYSTEM_STATS_IDLE_TIME]) * mJiffyMillis;
+            final long idletime = sysCpu[SYSTEM_STATS_IDLE_TIME] * mJiffyMillis;
             // Total irq time is iowait + irq + softirq time.
-            final long iowaittime = Long.parseLong(sysCpu[SYSTEM_STATS_IOWAIT_TIME]) * mJiffyMillis;
-            final long irqtime = Long.parseLong(sysCpu[SYSTEM_STATS_IRQ_TIME]) * mJiffyMillis;
-            final long softirqtime = Long.parseLong(sysCpu[SYSTEM_STATS_SOFT_IRQ_TIME]) * mJiffyMillis;
+            final long iowaittime = sysCpu[SYSTEM_STATS_IOWAIT_TIME] * mJiffyMillis;
+            final long irqtime = sysCpu[SYSTEM_STATS_IRQ_TIME] * mJiffyMillis;
+            final long softirqtime = sysCpu[SYSTEM_STATS_SOFT_IRQ_TIME] * mJiffyMillis;
 
             // This code is trying to avoid issues with idle time going backwards,
             // but currently it gets into situations where it triggers most of the time. :(
@@ -302,11 +617,12 @@ public class ProcessCpuTracker {
         mCurrentSampleWallTime = nowWallTime;
 
         collectProcsStats("/proc/self/stat", mCurrentProcStat);
+        collectIoStats(mCurrentProcStat);
+        clearRelSchedStats(mCurrentProcStat);
         if (mCurrentProcStat.workingThreads != null) {
             File[] threadsProcFiles = new File(mCurrentProcStat.threadsDir).listFiles();
             for (File thread : threadsProcFiles) {
                 int threadID = Integer.parseInt(thread.getName());
-                Log.d("xxxxx", "threadId:" + threadID);
                 Stats threadStat = findThreadStat(threadID, mCurrentProcStat.workingThreads);
                 if (threadStat == null) {
                     threadStat = new Stats(threadID, true);
@@ -315,10 +631,30 @@ public class ProcessCpuTracker {
                     mCurrentProcStat.workingThreads.add(threadStat);
                 }
                 collectProcsStats(threadStat.statFile, threadStat);
+                collectIoStats(threadStat);
+                if (collectSchedStats(threadStat)) {
+                    addRelSchedStats(mCurrentProcStat, threadStat);
+                }
+            }
+            // Threads that exited since the last update would otherwise keep reporting their
+            // last interval forever.
+            final ArrayList<Stats> threads = mCurrentProcStat.workingThreads;
+            for (int i = threads.size() - 1; i >= 0; i--) {
+                if (threads.get(i).base_uptime < nowUptime) {
+                    threads.remove(i);
+                }
             }
-            Collections.sort(mCurrentProcStat.workingThreads, sLoadComparator);
+            Collections.sort(threads, sLoadComparator);
+        }
+
+        if (mIncludeSystemProcs) {
+            mCurPids = collectStats(mFirst, mCurPids, mProcStats);
         }
 
+        mGcMonitor.update();
+        mCgroupStats.update();
+        collectMemoryStats(nowUptime);
+
         final String[] loadAverages = readProcFile("/proc/loadavg");
         if (loadAverages != null) {
             float load1 = Float.parseFloat(loadAverages[0]);
@@ -338,14 +674,176 @@ public class ProcessCpuTracker {
         mFirst = false;
     }
 
-    private void collectProcsStats(String procFile, Stats st) {
+    /**
+     * Stats of the tracked process; its {@link Stats#workingThreads} are sorted by load
+     * after every {@link #update()}.
+     */
+    final public Stats getCurrentProcStats() {
+        return mCurrentProcStat;
+    }
+
+    /**
+     * How long a CPU jiffy is in milliseconds, i.e. the resolution of the utime/stime values.
+     */
+    final public long getJiffyMillis() {
+        return mJiffyMillis;
+    }
+
+    /**
+     * Copies the last interval into {@code out}, reusing its records.
+     */
+    final public CpuSnapshot snapshot(CpuSnapshot out) {
+        out.wallTime = mCurrentSampleWallTime;
+        out.uptime = mCurrentSampleTime;
+        out.realtime = mCurrentSampleRealTime;
+        // The first update has nothing to compare against.
+        out.intervalMs = mLastSampleTime != 0 ? mCurrentSampleTime - mLastSampleTime : 0;
+        out.sysUserTime = mRelUserTime;
+        out.sysSystemTime = mRelSystemTime;
+        out.sysIoWaitTime = mRelIoWaitTime;
+        out.sysIrqTime = mRelIrqTime;
+        out.sysSoftIrqTime = mRelSoftIrqTime;
+        out.sysIdleTime = mRelIdleTime;
+        out.load1 = mLoad1;
+        out.load5 = mLoad5;
+        out.load15 = mLoad15;
+
+        copyStats(mCurrentProcStat, out.process);
+
+        final MemoryStats mem = mMemoryStats;
+        out.memRss = mem.rss;
+        out.memPss = mem.pss;
+        out.memPssAnon = mem.pss_anon;
+        out.memPssFile = mem.pss_file;
+        out.memSwap = mem.swap;
+
+        final GcMonitor gc = mGcMonitor;
+        out.gcCount = gc.rel_count;
+        out.gcTime = gc.rel_time;
+        out.gcBytesFreed = gc.rel_bytes_freed;
+        out.gcBlockingCount = gc.rel_blocking_count;
+        out.gcBlockingTime = gc.rel_blocking_time;
+
+        final CgroupCpuStats cg = mCgroupStats;
+        out.cgroupUsageUsec = cg.rel_usage_usec;
+        out.cgroupThrottledUsec = cg.rel_throttled_usec;
+        out.cgroupNrPeriods = cg.rel_nr_periods;
+        out.cgroupNrThrottled = cg.rel_nr_throttled;
+        out.cgroupQuotaMilliCpus = cg.hasQuota() ? cg.quota_usec * 1000 / cg.period_usec : 0;
+        out.cpuPressureUsec = cg.rel_cpu_some_usec;
+        out.ioPressureUsec = cg.rel_io_some_usec;
+
+        final int NC = mCpuCoreStats.size();
+        out.ensureCores(NC);
+        for (int i = 0; i < NC; i++) {
+            final CpuCoreStats core = mCpuCoreStats.get(i);
+            final CpuSnapshot.CoreRecord rec = out.cores[i];
+            rec.cpu = core.cpu;
+            rec.online = core.online;
+            rec.utime = core.rel_utime;
+            rec.stime = core.rel_stime;
+            rec.iowait = core.rel_iowait;
+            rec.irq = core.rel_irq;
+            rec.softirq = core.rel_softirq;
+            rec.idle = core.rel_idle;
+            rec.effectiveFreq = core.effective_freq;
+        }
+
+        final ArrayList<Stats> threads = mCurrentProcStat.workingThreads;
+        final int NT = threads != null ? threads.size() : 0;
+        out.ensureThreads(NT);
+        for (int i = 0; i < NT; i++) {
+            copyStats(threads.get(i), out.threads[i]);
+        }
+        return out;
+    }
+
+    private static void copyStats(Stats st, CpuSnapshot.ThreadRecord rec) {
+        rec.tid = st.pid;
+        rec.name = st.name;
+        rec.state = st.status != null && st.status.length() > 0 ? st.status.charAt(0) : '?';
+        rec.utime = st.rel_utime;
+        rec.stime = st.rel_stime;
+        rec.minFaults = st.rel_minfaults;
+        rec.majFaults = st.rel_majfaults;
+        rec.readBytes = st.rel_read_bytes;
+        rec.writeBytes = st.rel_write_bytes;
+        rec.syscr = st.rel_syscr;
+        rec.syscw = st.rel_syscw;
+        rec.runNs = st.rel_run_ns;
+        rec.waitNs = st.rel_wait_ns;
+        rec.voluntaryCtxt = st.rel_voluntary_ctxt;
+        rec.nonvoluntaryCtxt = st.rel_nonvoluntary_ctxt;
+    }
+
+    final public MemoryStats getMemoryStats() {
+        return mMemoryStats;
+    }
+
+    /**
+     * GC counters sampled together with every update.
+     */
+    final public GcMonitor getGcMonitor() {
+        return mGcMonitor;
+    }
+
+    /**
+     * Cgroup v2 usage, throttling and pressure sampled together with every update.
+     */
+    final public CgroupCpuStats getCgroupStats() {
+        return mCgroupStats;
+    }
+
+    final public int countCpuCoreStats() {
+        return mCpuCoreStats.size();
+    }
+
+    final public CpuCoreStats getCpuCoreStats(int cpu) {
+        return mCpuCoreStats.get(cpu);
+    }
+
+    final public int countStats() {
+        return mProcStats.size();
+    }
+
+    final public Stats getStats(int index) {
+        return mProcStats.get(index);
+    }
+
+    final public List<Stats> getStats(FilterStats filter) {
+        final ArrayList<Stats> statses = new ArrayList<>(mProcStats.size());
+        final int N = mProcStats.size();
+        for (int p = 0; p < N; p++) {
+            Stats stats = mProcStats.get(p);
+            if (filter.needed(stats)) {
+                statses.add(stats);
+            }
+        }
+        return statses;
+    }
+
+    /**
+     * Processes that used CPU during the last interval, plus the ones that were added or
+     * removed, ordered by load.
+     */
+    final public int countWorkingStats() {
+        buildWorkingProcs();
+        return mWorkingProcs.size();
+    }
+
+    final public Stats getWorkingStats(int index) {
+        buildWorkingProcs();
+        return mWorkingProcs.get(index);
+    }
+
+    private boolean collectProcsStats(String procFile, Stats st) {
 
         String[] procStats = readProcFile(procFile);
         //for (int i = 0; i < procStats.length; i++) {
         //    android.util.Log.e(TAG,"i:" + i + ", sys:" + procStats[i]);
         //}
         if (procStats == null) {
-            return;
+            return false;
         }
         final String status = procStats[PROCESS_STATS_STATUS];
         final long minfaults = Long.parseLong(procStats[PROCESS_STATS_MINOR_FAULTS]);
@@ -373,6 +871,514 @@ public class ProcessCpuTracker {
         st.base_minfaults = minfaults;
         st.base_majfaults = majfaults;
         st.status = status;
+        if (st.vsize == 0 && procStats.length > PROCESS_STATS_VSIZE) {
+            st.vsize = Long.parseLong(procStats[PROCESS_STATS_VSIZE]);
+        }
+        return true;
+    }
+
+    private void collectMemoryStats(long now) {
+        final MemoryStats mem = mMemoryStats;
+        if (readProcLongs("/proc/self/statm", mStatmData)) {
+            mem.vsize = mStatmData[STATM_SIZE] * mPageKb;
+            mem.rss = mStatmData[STATM_RESIDENT] * mPageKb;
+            mem.shared = mStatmData[STATM_SHARED] * mPageKb;
+            mCurrentProcStat.vsize = mem.vsize * 1024;
+        }
+
+        if (mem.has_rollup) {
+            final long sinceRollup = now - mem.rollup_uptime;
+            final boolean due = mem.rollup_uptime == 0
+                    || sinceRollup >= MEMORY_ROLLUP_MAX_INTERVAL
+                    || (sinceRollup >= MEMORY_ROLLUP_MIN_INTERVAL
+                    && Math.abs(mem.rss - mem.rollupRss) >= MEMORY_ROLLUP_RSS_DELTA_KB);
+            if (due) {
+                final long start = System.nanoTime();
+                if (readProcKeyValues("/proc/self/smaps_rollup", ROLLUP_KEYS, mRollupData)) {
+                    final long[] rollup = mRollupData;
+                    mem.pss = rollup[ROLLUP_PSS];
+                    mem.pss_anon = rollup[ROLLUP_PSS_ANON];
+                    mem.pss_file = rollup[ROLLUP_PSS_FILE];
+                    mem.pss_shmem = rollup[ROLLUP_PSS_SHMEM];
+                    mem.anon = rollup[ROLLUP_ANONYMOUS];
+                    mem.swap = rollup[ROLLUP_SWAP];
+                    mem.swap_pss = rollup[ROLLUP_SWAP_PSS];
+                    mem.rollup_uptime = now;
+                    mem.rollup_cost_us = (System.nanoTime() - start) / 1000;
+                    mem.rollupRss = mem.rss;
+                } else {
+                    mem.has_rollup = false;
+                }
+            }
+        }
+        mem.addHistory(now, mCurrentProcStat.rel_utime + mCurrentProcStat.rel_stime);
+    }
+
+    /**
+     * Reads the cpu lines at the top of /proc/stat: the aggregate line into mSystemCpuData and
+     * every cpuN line into its CpuCoreStats, followed by that core's cpufreq state.
+     */
+    private boolean collectSystemCpuStats() {
+        final int len = readCpuLines("/proc/stat");
+        if (len <= 0) {
+            return false;
+        }
+        final byte[] buffer = mSystemStatBuffer;
+        for (int i = 0; i < mCpuCoreStats.size(); i++) {
+            mCpuCoreStats.get(i).online = false;
+        }
+        boolean foundTotal = false;
+        int lineStart = 0;
+        while (lineStart + 3 < len && buffer[lineStart] == 'c' && buffer[lineStart + 1] == 'p'
+                && buffer[lineStart + 2] == 'u') {
+            int i = lineStart + 3;
+            int cpu = -1;
+            while (i < len && buffer[i] >= '0' && buffer[i] <= '9') {
+                cpu = (cpu < 0 ? 0 : cpu * 10) + (buffer[i] - '0');
+                i++;
+            }
+            final long[] values = cpu < 0 ? mSystemCpuData : mCpuCoreData;
+            parseLongs(buffer, i, len, values);
+            if (cpu < 0) {
+                foundTotal = true;
+            } else {
+                while (mCpuCoreStats.size() <= cpu) {
+                    mCpuCoreStats.add(new CpuCoreStats(mCpuCoreStats.size()));
+                }
+                final CpuCoreStats core = mCpuCoreStats.get(cpu);
+                updateCpuCoreTimes(core, values);
+                collectCpuFreqStats(core);
+            }
+            while (lineStart < len && buffer[lineStart] != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return foundTotal;
+    }
+
+    private void updateCpuCoreTimes(CpuCoreStats core, long[] values) {
+        final long utime = (values[SYSTEM_STATS_USER_TIME] + values[SYSTEM_STATS_NICE_TIME]) * mJiffyMillis;
+        final long stime = values[SYSTEM_STATS_SYS_TIME] * mJiffyMillis;
+        final long idle = values[SYSTEM_STATS_IDLE_TIME] * mJiffyMillis;
+        final long iowait = values[SYSTEM_STATS_IOWAIT_TIME] * mJiffyMillis;
+        final long irq = values[SYSTEM_STATS_IRQ_TIME] * mJiffyMillis;
+        final long softirq = values[SYSTEM_STATS_SOFT_IRQ_TIME] * mJiffyMillis;
+        // A core that was offline restarts from whatever it had, don't report that as one interval.
+        final boolean wasOffline = !core.online && core.base_utime + core.base_idle > 0
+                && idle < core.base_idle;
+        core.online = true;
+        if (wasOffline) {
+            core.base_utime = utime;
+            core.base_stime = stime;
+            core.base_idle = idle;
+            core.base_iowait = iowait;
+            core.base_irq = irq;
+            core.base_softirq = softirq;
+        }
+        core.rel_utime = (int) (utime - core.base_utime);
+        core.rel_stime = (int) (stime - core.base_stime);
+        core.rel_idle = (int) (idle - core.base_idle);
+        core.rel_iowait = (int) (iowait - core.base_iowait);
+        core.rel_irq = (int) (irq - core.base_irq);
+        core.rel_softirq = (int) (softirq - core.base_softirq);
+        core.base_utime = utime;
+        core.base_stime = stime;
+        core.base_idle = idle;
+        core.base_iowait = iowait;
+        core.base_irq = irq;
+        core.base_softirq = softirq;
+    }
+
+    /**
+     * Reads the current and maximum frequency of a core and derives the effective frequency
+     * of the last interval from the time_in_state deltas.
+     */
+    private void collectCpuFreqStats(CpuCoreStats core) {
+        final long[] value = mCpuCoreData;
+        core.cur_freq = readProcLongs(core.curFreqFile, value) ? value[0] : 0;
+        if (core.max_freq == 0 && readProcLongs(core.maxFreqFile, value)) {
+            core.max_freq = value[0];
+        }
+        core.effective_freq = core.cur_freq;
+        if (!core.hasTimeInState) {
+            return;
+        }
+        final int len = readWholeFile(core.timeInStateFile);
+        if (len < 0) {
+            // Not exposed on this kernel, or denied by SELinux.
+            core.hasTimeInState = false;
+            return;
+        }
+        final long effective = updateTimeInState(core, mTimeInStateBuffer, len);
+        if (effective > 0) {
+            core.effective_freq = effective;
+        }
+    }
+
+    /**
+     * Parses the "freq time" rows of a time_in_state file into the core's base table.
+     * Returns the frequency of the interval since the previous call, weighted by the time
+     * spent at each step, or 0 if there is no previous call or no time passed.
+     */
+    static long updateTimeInState(CpuCoreStats core, byte[] buffer, int len) {
+        long[] base = core.baseTimeInState;
+        long weighted = 0;
+        long total = 0;
+        int count = 0;
+        int i = 0;
+        while (i < len) {
+            long freq = 0;
+            long time = 0;
+            while (i < len && buffer[i] >= '0' && buffer[i] <= '9') {
+                freq = freq * 10 + (buffer[i++] - '0');
+            }
+            while (i < len && buffer[i] == ' ') {
+                i++;
+            }
+            while (i < len && buffer[i] >= '0' && buffer[i] <= '9') {
+                time = time * 10 + (buffer[i++] - '0');
+            }
+            while (i < len && (buffer[i] < '0' || buffer[i] > '9')) {
+                i++;
+            }
+            if (freq == 0) {
+                continue;
+            }
+            if (count * 2 + 1 >= base.length) {
+                base = core.baseTimeInState = Arrays.copyOf(base, base.length * 2);
+            }
+            // The frequency table does not change at runtime, entries line up by position.
+            if (count < core.baseTimeInStateCount && base[count * 2] == freq) {
+                final long delta = time - base[count * 2 + 1];
+                weighted += delta * freq;
+                total += delta;
+            }
+            base[count * 2] = freq;
+            base[count * 2 + 1] = time;
+            count++;
+        }
+        core.baseTimeInStateCount = count;
+        return total > 0 ? weighted / total : 0;
+    }
+
+    /**
+     * Reads a whole file into mTimeInStateBuffer, growing it to the file size. Returns the
+     * number of bytes read, or -1 if the file cannot be read.
+     */
+    private int readWholeFile(String file) {
+        FileInputStream is = null;
+        int len = 0;
+        try {
+            is = new FileInputStream(file);
+            while (true) {
+                if (len == mTimeInStateBuffer.length) {
+                    mTimeInStateBuffer = Arrays.copyOf(mTimeInStateBuffer, len * 2);
+                }
+                final int read = is.read(mTimeInStateBuffer, len,
+                        mTimeInStateBuffer.length - len);
+                if (read <= 0) {
+                    break;
+                }
+                len += read;
+            }
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Reads the leading lines of a file into mSystemStatBuffer until the first line that does
+     * not start with "cpu", growing the buffer as needed. Returns the number of bytes read.
+     */
+    private int readCpuLines(String file) {
+        FileInputStream is = null;
+        int len = 0;
+        try {
+            is = new FileInputStream(file);
+            while (true) {
+                if (len == mSystemStatBuffer.length) {
+                    mSystemStatBuffer = Arrays.copyOf(mSystemStatBuffer, len * 2);
+                }
+                final int read = is.read(mSystemStatBuffer, len, mSystemStatBuffer.length - len);
+                if (read <= 0) {
+                    break;
+                }
+                final int start = len;
+                len += read;
+                if (hasNonCpuLine(mSystemStatBuffer, start, len)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return len;
+    }
+
+    private static boolean hasNonCpuLine(byte[] buffer, int start, int len) {
+        for (int i = Math.max(start, 1); i + 1 < len; i++) {
+            if (buffer[i - 1] == '\n' && buffer[i] != 'c') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void parseLongs(byte[] buffer, int i, int len, long[] out) {
+        Arrays.fill(out, 0);
+        for (int n = 0; n < out.length; n++) {
+            while (i < len && buffer[i] == ' ') {
+                i++;
+            }
+            long value = 0;
+            while (i < len && buffer[i] >= '0' && buffer[i] <= '9') {
+                value = value * 10 + (buffer[i] - '0');
+                i++;
+            }
+            out[n] = value;
+        }
+    }
+
+    /**
+     * Reads the io file of a process or thread. Other processes' io files need the same
+     * permission as ptrace, so failing reads just leave the I/O stats at zero.
+     */
+    private boolean collectIoStats(Stats st) {
+        final long[] ioStats = mIoStatsData;
+        if (!readProcKeyValues(st.ioFile, IO_STATS_KEYS, ioStats)) {
+            return false;
+        }
+        final long readBytes = ioStats[IO_STATS_READ_BYTES];
+        final long writeBytes = ioStats[IO_STATS_WRITE_BYTES];
+        final long cancelledWriteBytes = ioStats[IO_STATS_CANCELLED_WRITE_BYTES];
+        final long syscr = ioStats[IO_STATS_SYSCR];
+        final long syscw = ioStats[IO_STATS_SYSCW];
+
+        st.rel_read_bytes = readBytes - st.base_read_bytes;
+        st.rel_write_bytes = writeBytes - st.base_write_bytes;
+        st.rel_cancelled_write_bytes = cancelledWriteBytes - st.base_cancelled_write_bytes;
+        st.rel_syscr = syscr - st.base_syscr;
+        st.rel_syscw = syscw - st.base_syscw;
+        st.base_read_bytes = readBytes;
+        st.base_write_bytes = writeBytes;
+        st.base_cancelled_write_bytes = cancelledWriteBytes;
+        st.base_syscr = syscr;
+        st.base_syscw = syscw;
+        return true;
+    }
+
+    /**
+     * Reads schedstat and the context switch counters of status for a thread.
+     */
+    private boolean collectSchedStats(Stats st) {
+        final long[] schedStats = mSchedStatsData;
+        if (mHasSchedStats) {
+            if (readProcLongs(st.schedstatFile, schedStats)) {
+                final long runNs = schedStats[SCHED_STATS_RUN_TIME];
+                final long waitNs = schedStats[SCHED_STATS_WAIT_TIME];
+                final long timeslices = schedStats[SCHED_STATS_TIMESLICES];
+                st.rel_run_ns = runNs - st.base_run_ns;
+                st.rel_wait_ns = waitNs - st.base_wait_ns;
+                st.rel_timeslices = timeslices - st.base_timeslices;
+                st.base_run_ns = runNs;
+                st.base_wait_ns = waitNs;
+                st.base_timeslices = timeslices;
+            } else if (!new File(st.schedstatFile).exists()
+                    && new File(st.statFile).exists()) {
+                // The thread is alive but the kernel has no schedstat, stop trying.
+                mHasSchedStats = false;
+            }
+        }
+
+        final long[] ctxt = mStatusCtxtData;
+        if (!readProcKeyValues(st.statusFile, STATUS_CTXT_KEYS, ctxt)) {
+            return false;
+        }
+        final long voluntary = ctxt[STATUS_VOLUNTARY_CTXT];
+        final long nonvoluntary = ctxt[STATUS_NONVOLUNTARY_CTXT];
+        st.rel_voluntary_ctxt = voluntary - st.base_voluntary_ctxt;
+        st.rel_nonvoluntary_ctxt = nonvoluntary - st.base_nonvoluntary_ctxt;
+        st.base_voluntary_ctxt = voluntary;
+        st.base_nonvoluntary_ctxt = nonvoluntary;
+        return true;
+    }
+
+    private static void clearRelSchedStats(Stats st) {
+        st.rel_run_ns = 0;
+        st.rel_wait_ns = 0;
+        st.rel_timeslices = 0;
+        st.rel_voluntary_ctxt = 0;
+        st.rel_nonvoluntary_ctxt = 0;
+    }
+
+    private static void addRelSchedStats(Stats total, Stats st) {
+        total.rel_run_ns += st.rel_run_ns;
+        total.rel_wait_ns += st.rel_wait_ns;
+        total.rel_timeslices += st.rel_timeslices;
+        total.rel_voluntary_ctxt += st.rel_voluntary_ctxt;
+        total.rel_nonvoluntary_ctxt += st.rel_nonvoluntary_ctxt;
+    }
+
+    private static void clearRelIoStats(Stats st) {
+        st.rel_read_bytes = 0;
+        st.rel_write_bytes = 0;
+        st.rel_cancelled_write_bytes = 0;
+        st.rel_syscr = 0;
+        st.rel_syscw = 0;
+    }
+
+    /**
+     * Incrementally scans /proc. Both the pid list and {@code allProcs} are kept sorted by pid,
+     * so new and vanished processes fall out of a single merge pass.
+     */
+    private int[] collectStats(boolean first, int[] curPids, ArrayList<Stats> allProcs) {
+        mRemovedProcs.clear();
+        final int[] pids = getPids("/proc", curPids);
+        int NP = (pids == null) ? 0 : pids.length;
+        int NS = allProcs.size();
+        int curStatsIndex = 0;
+        for (int i = 0; i < NP; i++) {
+            final int pid = pids[i];
+            if (pid < 0) {
+                NP = pid;
+                break;
+            }
+            Stats st = curStatsIndex < NS ? allProcs.get(curStatsIndex) : null;
+
+            if (st != null && st.pid == pid) {
+                // Update an existing process...
+                st.added = false;
+                st.working = false;
+                curStatsIndex++;
+                if (st.interesting) {
+                    if (!collectProcsStats(st.statFile, st)) {
+                        continue;
+                    }
+                    collectIoStats(st);
+                    if (st.rel_utime == 0 && st.rel_stime == 0) {
+                        st.active = false;
+                        continue;
+                    }
+                    st.active = true;
+                    st.working = true;
+                }
+                continue;
+            }
+
+            if (st == null || st.pid > pid) {
+                // We have a new process!
+                st = new Stats(pid, false);
+                allProcs.add(curStatsIndex, st);
+                curStatsIndex++;
+                NS++;
+                if (collectProcsStats(st.statFile, st)) {
+                    collectIoStats(st);
+                    // Kernel threads have no address space.
+                    st.interesting = st.vsize != 0;
+                    st.baseName = readFile(new File("/proc", Integer.toString(pid)) + "/comm", '\n');
+                    getName(st, st.cmdlineFile);
+                }
+                st.rel_utime = 0;
+                st.rel_stime = 0;
+                st.rel_minfaults = 0;
+                st.rel_majfaults = 0;
+                clearRelIoStats(st);
+                st.added = true;
+                if (!first && st.interesting) {
+                    st.working = true;
+                }
+                continue;
+            }
+
+            // This process has gone away!
+            markRemoved(st);
+            allProcs.remove(curStatsIndex);
+            NS--;
+            i--;
+        }
+
+        // Start at the current index, all processes remaining
+        while (curStatsIndex < NS) {
+            // This process has gone away!
+            markRemoved(allProcs.get(curStatsIndex));
+            allProcs.remove(curStatsIndex);
+            NS--;
+        }
+        return pids;
+    }
+
+    private void markRemoved(Stats st) {
+        st.rel_utime = 0;
+        st.rel_stime = 0;
+        st.rel_minfaults = 0;
+        st.rel_majfaults = 0;
+        clearRelIoStats(st);
+        st.removed = true;
+        st.working = true;
+        if (st.interesting) {
+            mRemovedProcs.add(st);
+        }
+    }
+
+    /**
+     * Lists the numeric entries of {@code dir} in ascending order, reusing {@code array} when
+     * it is large enough. Unused trailing slots are set to -1.
+     */
+    private static int[] getPids(String dir, int[] array) {
+        final String[] names = new File(dir).list();
+        if (names == null) {
+            return array;
+        }
+        int count = 0;
+        for (String name : names) {
+            if (isNumeric(name)) {
+                count++;
+            }
+        }
+        if (array == null || array.length < count) {
+            array = new int[count + 16];
+        }
+        int i = 0;
+        for (String name : names) {
+            if (isNumeric(name)) {
+                array[i++] = Integer.parseInt(name);
+            }
+        }
+        Arrays.sort(array, 0, count);
+        Arrays.fill(array, count, array.length, -1);
+        return array;
+    }
+
+    private static boolean isNumeric(String name) {
+        final int len = name.length();
+        if (len == 0) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            final char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
     }
 
     final void buildWorkingProcs() {
@@ -396,16 +1402,17 @@ public class ProcessCpuTracker {
                     }
                 }
             }
+            mWorkingProcs.addAll(mRemovedProcs);
             Collections.sort(mWorkingProcs, sLoadComparator);
             mWorkingProcsSorted = true;
         }
     }
 
-    @SuppressLint("SimpleDateFormat")
     final public String printCurrentState(long now) {
-        final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw, false);
+        final SimpleDateFormat sdf = mDateFormat;
+        final StringWriter sw = mStateWriter;
+        final PrintWriter pw = mStatePrinter;
+        sw.getBuffer().setLength(0);
         pw.println("");
         pw.print("CPU usage from ");
         if (now > mLastSampleTime) {
@@ -420,9 +1427,11 @@ public class ProcessCpuTracker {
             pw.print("ms later");
         }
         pw.print(" (");
-        pw.print(sdf.format(new Date(mLastSampleWallTime)));
+        mDate.setTime(mLastSampleWallTime);
+        pw.print(sdf.format(mDate));
         pw.print(" to ");
-        pw.print(sdf.format(new Date(mCurrentSampleWallTime)));
+        mDate.setTime(mCurrentSampleWallTime);
+        pw.print(sdf.format(mDate));
         pw.print(")");
         long sampleTime = mCurrentSampleTime - mLastSampleTime;
         long sampleRealTime = mCurrentSampleRealTime - mLastSampleRealTime;
@@ -451,9 +1460,72 @@ public class ProcessCpuTracker {
             }
         }
 
+        printGc(pw, st);
+        printCgroup(pw, sampleTime);
+        printMemory(pw, now);
+        printProcessIo(pw, st);
+        if (st.workingThreads != null) {
+            mIoSortedThreads.clear();
+            mIoSortedThreads.addAll(st.workingThreads);
+            Collections.sort(mIoSortedThreads, sIoComparator);
+            final int M = Math.min(TOP_IO_THREADS, mIoSortedThreads.size());
+            boolean header = false;
+            for (int j = 0; j < M; j++) {
+                Stats tst = mIoSortedThreads.get(j);
+                if (tst.rel_read_bytes + tst.rel_write_bytes + tst.rel_syscr + tst.rel_syscw == 0) {
+                    break;
+                }
+                if (!header) {
+                    pw.println("top io threads:");
+                    header = true;
+                }
+                printProcessIo(pw, tst);
+            }
+            mIoSortedThreads.clear();
+        }
+
+        if (st.workingThreads != null) {
+            printSchedDelay(pw, st, st.rel_uptime);
+            // Reuses the I/O list, it is only a sort buffer.
+            mIoSortedThreads.addAll(st.workingThreads);
+            Collections.sort(mIoSortedThreads, sSchedDelayComparator);
+            final int M = Math.min(TOP_SCHED_THREADS, mIoSortedThreads.size());
+            boolean header = false;
+            for (int j = 0; j < M; j++) {
+                Stats tst = mIoSortedThreads.get(j);
+                if (tst.rel_wait_ns == 0 && tst.rel_nonvoluntary_ctxt == 0) {
+                    break;
+                }
+                if (!header) {
+                    pw.println("top run queue delay threads:");
+                    header = true;
+                }
+                printSchedDelay(pw, tst, st.rel_uptime);
+            }
+            mIoSortedThreads.clear();
+        }
+
+        if (mIncludeSystemProcs) {
+            buildWorkingProcs();
+            pw.println("process stats:");
+            final int N = mWorkingProcs.size();
+            for (int i = 0; i < N; i++) {
+                Stats pst = mWorkingProcs.get(i);
+                pw.print(pst.added ? "+" : (pst.removed ? "-" : " "));
+                printProcessCPU(pw,
+                        pst.pid, pst.name, pst.status, (int) pst.rel_uptime,
+                        pst.rel_utime, pst.rel_stime, 0, 0, 0, 0, pst.rel_minfaults, pst.rel_majfaults);
+            }
+        }
+
         printProcessCPU(pw, -1, "TOTAL", "", totalTime, mRelUserTime, mRelSystemTime,
                 mRelIoWaitTime, mRelIrqTime, mRelSoftIrqTime, mRelIdleTime, 0, 0);
-        pw.println(printCurrentLoad());
+        final int NC = mCpuCoreStats.size();
+        for (int i = 0; i < NC; i++) {
+            printCpuCore(pw, mCpuCoreStats.get(i));
+        }
+        printCurrentLoad(pw);
+        pw.println();
 
         if (DEBUG) {
             android.util.Log.i(TAG, "totalTime " + totalTime + " over sample time "
@@ -463,17 +1535,13 @@ public class ProcessCpuTracker {
         return sw.toString();
     }
 
-    final private String printCurrentLoad() {
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw, false);
+    final private void printCurrentLoad(PrintWriter pw) {
         pw.print("Load: ");
         pw.print(mLoad1);
         pw.print(" / ");
         pw.print(mLoad5);
         pw.print(" / ");
         pw.println(mLoad15);
-        pw.flush();
-        return sw.toString();
     }
 
     private void printRatio(PrintWriter pw, long numerator, long denominator) {
@@ -489,6 +1557,184 @@ public class ProcessCpuTracker {
         }
     }
 
+    private void printMemory(PrintWriter pw, long now) {
+        final MemoryStats mem = mMemoryStats;
+        if (mem.rss == 0) {
+            return;
+        }
+        pw.print("mem: rss ");
+        pw.print(mem.rss / 1024);
+        pw.print("MB (");
+        pw.print(mem.shared / 1024);
+        pw.print("MB shared)");
+        if (mem.rollup_uptime != 0) {
+            pw.print(", pss ");
+            pw.print(mem.pss / 1024);
+            pw.print("MB (");
+            pw.print(mem.pss_anon / 1024);
+            pw.print("MB anon + ");
+            pw.print(mem.pss_file / 1024);
+            pw.print("MB file + ");
+            pw.print(mem.pss_shmem / 1024);
+            pw.print("MB shmem), swap ");
+            pw.print(mem.swap / 1024);
+            pw.print("MB, pss from ");
+            pw.print((now - mem.rollup_uptime) / 1000);
+            pw.print("s ago");
+        }
+        pw.print(", vsize ");
+        pw.print(mem.vsize / 1024);
+        pw.println("MB");
+    }
+
+    private void printCgroup(PrintWriter pw, long intervalMs) {
+        final CgroupCpuStats cg = mCgroupStats;
+        if (cg.isAvailable() && intervalMs > 0) {
+            pw.print("cgroup: ");
+            printRatio(pw, cg.rel_usage_usec / 1000, intervalMs);
+            pw.print("% cpu");
+            if (cg.hasQuota()) {
+                pw.print(" of ");
+                pw.print(cg.quotaCpus());
+                pw.print(" quota (");
+                pw.print(cg.quotaPercent(intervalMs));
+                pw.print("%)");
+            }
+            if (cg.rel_nr_throttled > 0) {
+                pw.print(", throttled ");
+                pw.print(cg.rel_nr_throttled);
+                pw.print("/");
+                pw.print(cg.rel_nr_periods);
+                pw.print(" periods for ");
+                pw.print(cg.rel_throttled_usec / 1000);
+                pw.print("ms");
+            }
+            pw.println();
+        }
+        if (cg.base_cpu_some_usec > 0 || cg.base_io_some_usec > 0) {
+            pw.print("pressure: cpu some ");
+            pw.print(cg.cpu_some_avg10);
+            pw.print("% / ");
+            pw.print(cg.cpu_some_avg60);
+            pw.print("% (10s / 60s), io some ");
+            pw.print(cg.io_some_avg10);
+            pw.print("% full ");
+            pw.print(cg.io_full_avg10);
+            pw.println("% (10s)");
+        }
+    }
+
+    private void printGc(PrintWriter pw, Stats st) {
+        final GcMonitor gc = mGcMonitor;
+        if (!gc.isAvailable() || gc.rel_count == 0) {
+            return;
+        }
+        pw.print("gc: ");
+        pw.print(gc.rel_count);
+        pw.print(" collections, ");
+        pw.print(gc.rel_time);
+        pw.print("ms");
+        if (gc.rel_blocking_count > 0) {
+            pw.print(" (");
+            pw.print(gc.rel_blocking_count);
+            pw.print(" blocking, ");
+            pw.print(gc.rel_blocking_time);
+            pw.print("ms)");
+        }
+        if (gc.rel_bytes_freed > 0) {
+            pw.print(", ");
+            pw.print(gc.rel_bytes_freed / 1024);
+            pw.print("KB freed");
+        }
+        final int cpuTime = st.rel_utime + st.rel_stime;
+        if (cpuTime > 0) {
+            // GC time is wall time on the GC threads and may be more than the process CPU time
+            // of a short interval, so it is capped at it; a hint where the CPU went, not an
+            // exact split.
+            pw.print(" = ");
+            printRatio(pw, Math.min(gc.rel_time, cpuTime), cpuTime);
+            pw.print("% of process cpu");
+        }
+        pw.println();
+    }
+
+    private void printProcessIo(PrintWriter pw, Stats st) {
+        pw.print("io ");
+        pw.print(st.pid);
+        pw.print("/");
+        pw.print(st.name);
+        pw.print(": ");
+        pw.print(st.rel_read_bytes / 1024);
+        pw.print("KB read + ");
+        pw.print(st.rel_write_bytes / 1024);
+        pw.print("KB written");
+        if (st.rel_cancelled_write_bytes > 0) {
+            pw.print(" - ");
+            pw.print(st.rel_cancelled_write_bytes / 1024);
+            pw.print("KB cancelled");
+        }
+        pw.print(" / syscalls: ");
+        pw.print(st.rel_syscr);
+        pw.print(" read ");
+        pw.print(st.rel_syscw);
+        pw.println(" write");
+    }
+
+    private void printCpuCore(PrintWriter pw, CpuCoreStats core) {
+        if (!core.online) {
+            pw.print("cpu");
+            pw.print(core.cpu);
+            pw.println(": offline");
+            return;
+        }
+        final int coreTime = core.rel_utime + core.rel_stime + core.rel_iowait
+                + core.rel_irq + core.rel_softirq + core.rel_idle;
+        printProcessCPU(pw, -1, "cpu" + core.cpu, core.effective_freq > 0
+                        ? (core.effective_freq / 1000) + "MHz" : "", coreTime,
+                core.rel_utime, core.rel_stime, core.rel_iowait, core.rel_irq,
+                core.rel_softirq, 0, 0, 0);
+        if (core.max_freq > 0) {
+            pw.print("  freq: ");
+            pw.print(core.effective_freq / 1000);
+            pw.print("MHz effective, ");
+            pw.print(core.cur_freq / 1000);
+            pw.print("MHz now, ");
+            pw.print(core.max_freq / 1000);
+            pw.print("MHz max (");
+            printRatio(pw, core.effective_freq, core.max_freq);
+            pw.println("% of max)");
+        }
+    }
+
+    private void printSchedDelay(PrintWriter pw, Stats st, long intervalMs) {
+        pw.print("sched ");
+        pw.print(st.pid);
+        pw.print("/");
+        pw.print(st.name);
+        pw.print(": ");
+        pw.print(st.rel_run_ns / 1000000);
+        pw.print("ms running + ");
+        pw.print(st.rel_wait_ns / 1000000);
+        pw.print("ms runnable waiting");
+        if (intervalMs > 0) {
+            pw.print(" (");
+            printRatio(pw, st.rel_wait_ns / 1000000, intervalMs);
+            pw.print("% of interval)");
+        }
+        if (st.rel_timeslices > 0) {
+            pw.print(", ");
+            pw.print(st.rel_timeslices);
+            pw.print(" slices, avg delay ");
+            pw.print(st.rel_wait_ns / st.rel_timeslices / 1000);
+            pw.print("us");
+        }
+        pw.print(" / csw: ");
+        pw.print(st.rel_voluntary_ctxt);
+        pw.print(" voluntary ");
+        pw.print(st.rel_nonvoluntary_ctxt);
+        pw.println(" involuntary");
+    }
+
     private void printProcessCPU(PrintWriter pw, int pid, String label, String status,
                                  int totalTime, int user, int system, int iowait, int irq, int softIrq, int idle,
                                  int minFaults, int majFaults) {
@@ -565,28 +1811,130 @@ public class ProcessCpuTracker {
     }
 
     protected String[] readProcFile(String file) {
-        RandomAccessFile procFile = null;
-        String procFileContents;
+        // A single read into mBuffer instead of RandomAccessFile.readLine(), which issues
+        // one read per byte; this runs for every thread and, with system procs, every pid.
+        String procFileContents = readFile(file, '\n');
+        if (procFileContents == null) {
+            // The process or thread has gone away.
+            return null;
+        }
+        if (localLOGV) Log.d(TAG, "procFileContents = " + procFileContents);
+        // The command name may itself contain ')', the real end is the last one.
+        int rightIndex = procFileContents.lastIndexOf(")");
+        if (rightIndex > 0) {
+            procFileContents = procFileContents.substring(rightIndex + 2);
+        }
+
+        return procFileContents.split(" ");
+    }
+
+    /**
+     * Parses a "key: value" per line proc file such as io or status. {@code out[i]} receives
+     * the value of {@code keys[i]}; keys include the trailing ':'. Works on the raw bytes in
+     * mBuffer so no strings are created per line.
+     */
+    private boolean readProcKeyValues(String file, byte[][] keys, long[] out) {
+        FileInputStream is = null;
+        int len = 0;
         try {
-            procFile = new RandomAccessFile(file, "r");
-            procFileContents = procFile.readLine();
-            Log.d("wanglang", "procFileContents = " + procFileContents);
-            int rightIndex = procFileContents.indexOf(")");
-            if (rightIndex > 0) {
-                procFileContents = procFileContents.substring(rightIndex + 2);
+            is = new FileInputStream(file);
+            len = is.read(mBuffer);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        }
+        if (len <= 0) {
+            return false;
+        }
+        final byte[] buffer = mBuffer;
+        Arrays.fill(out, 0);
+        int lineStart = 0;
+        while (lineStart < len) {
+            for (int k = 0; k < keys.length; k++) {
+                final byte[] key = keys[k];
+                if (!regionMatches(buffer, lineStart, len, key)) {
+                    continue;
+                }
+                int i = lineStart + key.length;
+                while (i < len && (buffer[i] == ' ' || buffer[i] == '\t')) {
+                    i++;
+                }
+                long value = 0;
+                while (i < len && buffer[i] >= '0' && buffer[i] <= '9') {
+                    value = value * 10 + (buffer[i] - '0');
+                    i++;
+                }
+                out[k] = value;
+                break;
+            }
+            while (lineStart < len && buffer[lineStart] != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return true;
+    }
 
-            return procFileContents.split(" ");
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-            return null;
+    /**
+     * Parses a single line of space separated numbers, such as schedstat, into {@code out}.
+     */
+    private boolean readProcLongs(String file, long[] out) {
+        FileInputStream is = null;
+        int len = 0;
+        try {
+            is = new FileInputStream(file);
+            len = is.read(mBuffer);
+        } catch (IOException e) {
+            return false;
         } finally {
             try {
-                procFile.close();
+                if (is != null) {
+                    is.close();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+        if (len <= 0) {
+            return false;
+        }
+        final byte[] buffer = mBuffer;
+        Arrays.fill(out, 0);
+        int i = 0;
+        for (int n = 0; n < out.length; n++) {
+            while (i < len && buffer[i] == ' ') {
+                i++;
+            }
+            if (i >= len || buffer[i] < '0' || buffer[i] > '9') {
+                return n > 0;
+            }
+            long value = 0;
+            while (i < len && buffer[i] >= '0' && buffer[i] <= '9') {
+                value = value * 10 + (buffer[i] - '0');
+                i++;
+            }
+            out[n] = value;
+        }
+        return true;
+    }
+
+    private static boolean regionMatches(byte[] buffer, int offset, int len, byte[] key) {
+        if (offset + key.length > len) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private String readFile(String file, char endChar) {
@@ -614,7 +1962,9 @@ public class ProcessCpuTracker {
             //
         } finally {
             try {
-                is.close();
+                if (is != null) {
+                    is.close();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,96 @@
+package com.lang.chapter05;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with power of two buckets: bucket i holds values in
+ * [2^(i-1), 2^i), bucket 0 holds 0. Recording is a handful of atomic adds, so any number of
+ * threads can record concurrently; percentiles are accurate to a factor of two, which is
+ * plenty to tell a 50us handler from a 5ms one.
+ */
+public class SpanHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    public long count() {
+        return mCount.get();
+    }
+
+    public long sum() {
+        return mSum.get();
+    }
+
+    public long max() {
+        return mMax.get();
+    }
+
+    public long mean() {
+        final long count = mCount.get();
+        return count > 0 ? mSum.get() / count : 0;
+    }
+
+    /**
+     * Upper bound of the bucket that contains the given percentile (0-100).
+     */
+    public long percentile(int percent) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (count * percent + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return i == 0 ? 0 : Math.min(mMax.get(), (1L << i) - 1);
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Prints "mean / p50 / p90 / p99 / max" with every value divided by {@code divisor}.
+     */
+    void print(PrintWriter pw, long divisor, String unit) {
+        pw.print(mean() / divisor);
+        pw.print(" / ");
+        pw.print(percentile(50) / divisor);
+        pw.print(" / ");
+        pw.print(percentile(90) / divisor);
+        pw.print(" / ");
+        pw.print(percentile(99) / divisor);
+        pw.print(" / ");
+        pw.print(max() / divisor);
+        pw.print(unit);
+    }
+}
@@ -0,0 +1,278 @@
+package com.lang.chapter05;
+
+import android.util.SparseArray;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes {@link CpuSnapshot}s as Chrome Trace Event Format JSON, which opens directly in
+ * Perfetto UI and chrome://tracing.
+ * <p>
+ * Every interval becomes counter events: system CPU buckets, load averages and per-core
+ * utilisation on the process track, CPU time, faults and I/O on one counter track per
+ * thread, and a complete ("X") event per thread and interval labelled with its state.
+ * Events are written as they come, so a capture of any length never has to fit in memory;
+ * {@link #close()} terminates the JSON array.
+ * <p>
+ * Existing binary traces can be converted with {@link #convert(File, File)}.
+ */
+public class TraceEventExporter implements Closeable {
+    private final Writer mOut;
+    private final SparseArray<String> mNamedThreads = new SparseArray<>();
+    private boolean mFirstEvent = true;
+    private boolean mFirstArg;
+    private int mPid;
+
+    public TraceEventExporter(File file) throws IOException {
+        mOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"),
+                64 * 1024);
+        mOut.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+    }
+
+    /**
+     * Converts a {@link CpuTraceWriter} file into a trace event JSON file.
+     */
+    public static void convert(File binaryTrace, File json) throws IOException {
+        final CpuTraceReader reader = new CpuTraceReader(binaryTrace);
+        final TraceEventExporter exporter = new TraceEventExporter(json);
+        try {
+            final CpuSnapshot snapshot = new CpuSnapshot();
+            while (reader.next(snapshot)) {
+                exporter.append(snapshot);
+            }
+        } finally {
+            reader.close();
+            exporter.close();
+        }
+    }
+
+    public void append(CpuSnapshot snapshot) throws IOException {
+        if (snapshot.intervalMs <= 0) {
+            // The first update of a tracker has no interval yet.
+            return;
+        }
+        mPid = snapshot.process.tid;
+        // Timestamps are in microseconds, counters are set at the end of their interval.
+        final long endUs = snapshot.uptime * 1000;
+        final long startUs = (snapshot.uptime - snapshot.intervalMs) * 1000;
+        final long interval = snapshot.intervalMs;
+
+        nameThread(snapshot.process.tid, snapshot.process.name);
+
+        final int total = snapshot.sysUserTime + snapshot.sysSystemTime + snapshot.sysIoWaitTime
+                + snapshot.sysIrqTime + snapshot.sysSoftIrqTime + snapshot.sysIdleTime;
+        if (total > 0) {
+            beginCounter("system cpu %", mPid, endUs);
+            putArg("user", snapshot.sysUserTime * 100.0 / total);
+            putArg("system", snapshot.sysSystemTime * 100.0 / total);
+            putArg("iowait", snapshot.sysIoWaitTime * 100.0 / total);
+            putArg("irq", (snapshot.sysIrqTime + snapshot.sysSoftIrqTime) * 100.0 / total);
+            endEvent();
+        }
+
+        beginCounter("load average", mPid, endUs);
+        putArg("1min", snapshot.load1);
+        putArg("5min", snapshot.load5);
+        putArg("15min", snapshot.load15);
+        endEvent();
+
+        if (snapshot.coreCount > 0) {
+            beginCounter("core busy %", mPid, endUs);
+            for (int i = 0; i < snapshot.coreCount; i++) {
+                final CpuSnapshot.CoreRecord core = snapshot.cores[i];
+                final int coreTotal = core.utime + core.stime + core.iowait + core.irq
+                        + core.softirq + core.idle;
+                final int busy = core.utime + core.stime + core.irq + core.softirq;
+                putArg("cpu" + core.cpu, core.online && coreTotal > 0 ? busy * 100.0 / coreTotal : 0);
+            }
+            endEvent();
+            beginCounter("core freq MHz", mPid, endUs);
+            for (int i = 0; i < snapshot.coreCount; i++) {
+                final CpuSnapshot.CoreRecord core = snapshot.cores[i];
+                putArg("cpu" + core.cpu, core.effectiveFreq / 1000);
+            }
+            endEvent();
+        }
+
+        if (snapshot.gcCount > 0) {
+            beginCounter("gc", mPid, endUs);
+            putArg("count", snapshot.gcCount);
+            putArg("time_ms", snapshot.gcTime);
+            putArg("blocking_ms", snapshot.gcBlockingTime);
+            putArg("freed_KB", snapshot.gcBytesFreed / 1024);
+            endEvent();
+        }
+
+        if (snapshot.memRss > 0) {
+            beginCounter("memory MB", mPid, endUs);
+            putArg("rss", snapshot.memRss / 1024.0);
+            putArg("pss", snapshot.memPss / 1024.0);
+            putArg("pss_anon", snapshot.memPssAnon / 1024.0);
+            putArg("pss_file", snapshot.memPssFile / 1024.0);
+            putArg("swap", snapshot.memSwap / 1024.0);
+            endEvent();
+        }
+
+        if (snapshot.cgroupUsageUsec > 0) {
+            final long intervalUs = snapshot.intervalMs * 1000;
+            beginCounter("cgroup cpu %", mPid, endUs);
+            putArg("usage", snapshot.cgroupUsageUsec * 100.0 / intervalUs);
+            if (snapshot.cgroupQuotaMilliCpus > 0) {
+                putArg("of_quota", snapshot.cgroupUsageUsec * 100.0 * 1000
+                        / (intervalUs * snapshot.cgroupQuotaMilliCpus));
+            }
+            putArg("throttled", snapshot.cgroupThrottledUsec * 100.0 / intervalUs);
+            endEvent();
+        }
+
+        if (snapshot.cpuPressureUsec > 0 || snapshot.ioPressureUsec > 0) {
+            final long intervalUs = snapshot.intervalMs * 1000;
+            beginCounter("pressure stall %", mPid, endUs);
+            putArg("cpu_some", snapshot.cpuPressureUsec * 100.0 / intervalUs);
+            putArg("io_some", snapshot.ioPressureUsec * 100.0 / intervalUs);
+            endEvent();
+        }
+
+        writeThreadCounters("process", snapshot.process, endUs, interval);
+        for (int i = 0; i < snapshot.threadCount; i++) {
+            final CpuSnapshot.ThreadRecord thread = snapshot.threads[i];
+            if (thread.isIdle()) {
+                continue;
+            }
+            nameThread(thread.tid, thread.name);
+            writeThreadCounters(thread.name + " " + thread.tid, thread, endUs, interval);
+            writeThreadSlice(thread, startUs, interval);
+        }
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.write("\n]}\n");
+        mOut.close();
+    }
+
+    private void writeThreadCounters(String label, CpuSnapshot.ThreadRecord thread, long tsUs,
+                                     long interval) throws IOException {
+        beginCounter(label + " cpu %", mPid, tsUs);
+        putArg("user", thread.utime * 100.0 / interval);
+        putArg("kernel", thread.stime * 100.0 / interval);
+        putArg("runqueue", thread.waitNs / 10000.0 / interval);
+        endEvent();
+        if (thread.minFaults != 0 || thread.majFaults != 0) {
+            beginCounter(label + " faults", mPid, tsUs);
+            putArg("minor", thread.minFaults);
+            putArg("major", thread.majFaults);
+            endEvent();
+        }
+        if (thread.readBytes != 0 || thread.writeBytes != 0) {
+            beginCounter(label + " io KB", mPid, tsUs);
+            putArg("read", thread.readBytes / 1024);
+            putArg("write", thread.writeBytes / 1024);
+            endEvent();
+        }
+    }
+
+    private void writeThreadSlice(CpuSnapshot.ThreadRecord thread, long startUs, long interval)
+            throws IOException {
+        beginEvent();
+        mOut.write("\"ph\":\"X\",\"name\":\"");
+        writeEscaped(String.valueOf(thread.state));
+        mOut.write(' ');
+        mOut.write(Long.toString((thread.utime + thread.stime) * 100L / interval));
+        mOut.write("%\",\"pid\":");
+        mOut.write(Integer.toString(mPid));
+        mOut.write(",\"tid\":");
+        mOut.write(Integer.toString(thread.tid));
+        mOut.write(",\"ts\":");
+        mOut.write(Long.toString(startUs));
+        mOut.write(",\"dur\":");
+        mOut.write(Long.toString(interval * 1000));
+        mOut.write(",\"args\":{");
+        mFirstArg = true;
+        putArg("utime_ms", thread.utime);
+        putArg("stime_ms", thread.stime);
+        putArg("runqueue_ms", thread.waitNs / 1000000);
+        putArg("nonvoluntary_csw", thread.nonvoluntaryCtxt);
+        endEvent();
+    }
+
+    private void nameThread(int tid, String name) throws IOException {
+        if (name == null || name.equals(mNamedThreads.get(tid))) {
+            return;
+        }
+        mNamedThreads.put(tid, name);
+        beginEvent();
+        mOut.write("\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":");
+        mOut.write(Integer.toString(mPid));
+        mOut.write(",\"tid\":");
+        mOut.write(Integer.toString(tid));
+        mOut.write(",\"args\":{\"name\":\"");
+        writeEscaped(name);
+        mOut.write("\"}}");
+    }
+
+    private void beginEvent() throws IOException {
+        if (!mFirstEvent) {
+            mOut.write(",\n");
+        }
+        mFirstEvent = false;
+        mOut.write('{');
+    }
+
+    private void beginCounter(String name, int pid, long tsUs) throws IOException {
+        beginEvent();
+        mOut.write("\"ph\":\"C\",\"name\":\"");
+        writeEscaped(name);
+        mOut.write("\",\"pid\":");
+        mOut.write(Integer.toString(pid));
+        mOut.write(",\"ts\":");
+        mOut.write(Long.toString(tsUs));
+        mOut.write(",\"args\":{");
+        mFirstArg = true;
+    }
+
+    private void putArg(String name, double value) throws IOException {
+        if (!mFirstArg) {
+            mOut.write(',');
+        }
+        mFirstArg = false;
+        mOut.write('"');
+        writeEscaped(name);
+        mOut.write("\":");
+        if (value == (long) value) {
+            mOut.write(Long.toString((long) value));
+        } else {
+            // Two decimals are plenty for percentages and keep the file small.
+            mOut.write(Double.toString(Math.round(value * 100) / 100.0));
+        }
+    }
+
+    private void endEvent() throws IOException {
+        mOut.write("}}");
+    }
+
+    private void writeEscaped(String s) throws IOException {
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                mOut.write('\\');
+                mOut.write(c);
+            } else if (c < 0x20) {
+                mOut.write(String.format("\\u%04x", (int) c));
+            } else {
+                mOut.write(c);
+            }
+        }
+    }
+}
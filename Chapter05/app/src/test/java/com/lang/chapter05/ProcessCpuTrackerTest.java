@@ -0,0 +1,55 @@
+package com.lang.chapter05;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds time_in_state contents to {@link ProcessCpuTracker#updateTimeInState}.
+ */
+public class ProcessCpuTrackerTest {
+
+    private static long update(ProcessCpuTracker.CpuCoreStats core, String timeInState) {
+        final byte[] buffer = timeInState.getBytes(Charset.forName("US-ASCII"));
+        return ProcessCpuTracker.updateTimeInState(core, buffer, buffer.length);
+    }
+
+    @Test
+    public void firstReadHasNoInterval() {
+        final ProcessCpuTracker.CpuCoreStats core = new ProcessCpuTracker.CpuCoreStats(0);
+        assertEquals(0, update(core, "300000 100\n1000000 200\n2000000 300\n"));
+        assertEquals(3, core.baseTimeInStateCount);
+    }
+
+    @Test
+    public void weightsEveryRow() {
+        final ProcessCpuTracker.CpuCoreStats core = new ProcessCpuTracker.CpuCoreStats(0);
+        update(core, "300000 100\n1000000 200\n2000000 300\n");
+        // 10 ticks at 300MHz, 0 at 1GHz, 30 at 2GHz.
+        final long effective = update(core, "300000 110\n1000000 200\n2000000 330\n");
+        assertEquals((10 * 300000L + 30 * 2000000L) / 40, effective);
+    }
+
+    @Test
+    public void growsPastInitialTable() {
+        final ProcessCpuTracker.CpuCoreStats core = new ProcessCpuTracker.CpuCoreStats(0);
+        final StringBuilder before = new StringBuilder();
+        final StringBuilder after = new StringBuilder();
+        for (int i = 1; i <= 40; i++) {
+            before.append(i * 100000).append(' ').append(0).append('\n');
+            after.append(i * 100000).append(' ').append(i == 40 ? 5 : 0).append('\n');
+        }
+        update(core, before.toString());
+        assertEquals(40, core.baseTimeInStateCount);
+        assertEquals(4000000, update(core, after.toString()));
+    }
+
+    @Test
+    public void noTimePassed() {
+        final ProcessCpuTracker.CpuCoreStats core = new ProcessCpuTracker.CpuCoreStats(0);
+        update(core, "300000 100\n1000000 200\n");
+        assertEquals(0, update(core, "300000 100\n1000000 200\n"));
+    }
+}